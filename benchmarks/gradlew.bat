@@ -0,0 +1 @@
+../gradlew.bat
\ No newline at end of file
@@ -0,0 +1,131 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.openjdk.jmh.annotations.*;
+
+import static pl.morgwai.base.servlet.guiced.jpa.TransactionBenchmark.PERSISTENCE_UNIT_NAME;
+
+
+
+/**
+ * Compares inserting {@link #inserts} entities concurrently with a separate transaction per
+ * entity against {@link BatchingJpaWriter} and {@link GroupCommitCoordinator} against an in-memory
+ * H2 DB with Hibernate. The measured time is the time until all the inserts are committed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchingWriterBenchmark {
+
+
+
+	/** Number of entities inserted in a single benchmark invocation. */
+	@Param({"1000"})
+	public int inserts;
+
+	/** Max batch size of the writer and max group size of the coordinator. */
+	@Param({"10", "100"})
+	public int maxBatchSize;
+
+	/** Thread pool size of the executor performing transactions. */
+	@Param({"4"})
+	public int jpaThreadPoolSize;
+
+	EntityManagerFactory entityManagerFactory;
+	ExecutorService jpaExecutor;
+	ScheduledExecutorService scheduler;
+	BatchingJpaWriter writer;
+	GroupCommitCoordinator groupCommitCoordinator;
+
+
+
+	@Setup(Level.Trial)
+	public void setup() {
+		entityManagerFactory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT_NAME);
+		jpaExecutor = Executors.newFixedThreadPool(jpaThreadPoolSize);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		writer = new BatchingJpaWriter("benchmarkWriter", entityManagerFactory, jpaExecutor,
+				scheduler, maxBatchSize, 1l);
+		groupCommitCoordinator = new GroupCommitCoordinator("benchmarkCoordinator",
+				entityManagerFactory, jpaExecutor, scheduler, maxBatchSize, 1l);
+	}
+
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		writer.close();
+		groupCommitCoordinator.close();
+		jpaExecutor.shutdown();
+		jpaExecutor.awaitTermination(5l, TimeUnit.SECONDS);
+		scheduler.shutdownNow();
+		entityManagerFactory.close();
+	}
+
+
+
+	@Benchmark
+	public void txPerEntity() {
+		final var futures = new CompletableFuture<?>[inserts];
+		for (int i = 0; i < inserts; i++) {
+			futures[i] = CompletableFuture.runAsync(
+				() -> {
+					final var entityManager = entityManagerFactory.createEntityManager();
+					try {
+						JpaServlet.executeWithinTx(
+							() -> entityManager,
+							() -> {
+								entityManager.persist(new BenchmarkRecord("perEntity"));
+								return null;
+							}
+						);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					} finally {
+						entityManager.close();
+					}
+				},
+				jpaExecutor
+			);
+		}
+		CompletableFuture.allOf(futures).join();
+	}
+
+
+
+	@Benchmark
+	public void batched() {
+		final var futures = new CompletableFuture<?>[inserts];
+		for (int i = 0; i < inserts; i++) {
+			futures[i] = writer.persist(new BenchmarkRecord("batched"));
+		}
+		writer.flush();
+		CompletableFuture.allOf(futures).join();
+	}
+
+
+
+	@Benchmark
+	public void groupCommit() {
+		final var futures = new CompletableFuture<?>[inserts];
+		for (int i = 0; i < inserts; i++) {
+			futures[i] = groupCommitCoordinator.executeWithinGroupTx((entityManager) -> {
+				entityManager.persist(new BenchmarkRecord("grouped"));
+				return null;
+			});
+		}
+		CompletableFuture.allOf(futures).join();
+	}
+}
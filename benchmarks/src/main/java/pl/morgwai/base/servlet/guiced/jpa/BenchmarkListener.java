@@ -0,0 +1,37 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.LinkedList;
+
+import com.google.inject.Module;
+
+import pl.morgwai.base.servlet.scopes.ServletModule;
+
+
+
+/**
+ * Listener used by benchmarks outside of a container to create JPA executors and access
+ * {@link #servletModule}.
+ */
+class BenchmarkListener extends JpaServletContextListener {
+
+
+
+	final boolean virtual;
+
+	BenchmarkListener(boolean virtual) { this.virtual = virtual; }
+
+	BenchmarkListener() { this(false); }
+
+
+
+	ServletModule getServletModule() { return servletModule; }
+
+
+
+	@Override protected boolean shouldUseVirtualJpaThreads() { return virtual; }
+	@Override protected String getMainPersistenceUnitName() { return "benchmark"; }
+	@Override protected int getMainJpaThreadPoolSize() { return 1; }
+	@Override protected LinkedList<Module> configureInjections() { return new LinkedList<>(); }
+	@Override protected void configureServletsFiltersEndpoints() {}
+}
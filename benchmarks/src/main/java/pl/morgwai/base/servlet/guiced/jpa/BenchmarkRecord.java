@@ -0,0 +1,31 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+
+
+
+/** Entity used by {@link TransactionBenchmark}. */
+@Entity
+public class BenchmarkRecord {
+
+
+
+	@Id
+	@GeneratedValue
+	Long id;
+	public Long getId() { return id; }
+
+	String payload;
+	public String getPayload() { return payload; }
+
+
+
+	protected BenchmarkRecord() {}
+
+	public BenchmarkRecord(String payload) {
+		this.payload = payload;
+	}
+}
@@ -0,0 +1,178 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+
+/**
+ * Compares rendering a table row with 2 escaped values the way the sample app used to do it
+ * (copying each value to a new {@code char[]}, appending it char by char to a new
+ * {@code StringBuilder} per row, then {@code toString()} and encoding by the response writer)
+ * against {@link HtmlEscaper} writing directly to the response {@link Writer}, encoding
+ * directly to the response {@link OutputStream} and rendering a pre-encoded {@link HtmlTemplate}.
+ * Run with {@code -prof gc} to compare allocations per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlEscapingBenchmark {
+
+
+
+	/** Length of each of the escaped values. */
+	@Param({"32", "1024"})
+	public int valueLength;
+
+	/** Every how many chars an escapable one occurs in the values ({@code 0} means never). */
+	@Param({"0", "16"})
+	public int escapableEvery;
+
+	String query;
+	String result;
+	final CountingWriter charSink = new CountingWriter();
+	final PrintWriter writer = new PrintWriter(charSink);
+	final CountingOutputStream byteSink = new CountingOutputStream();
+
+
+
+	@Setup(Level.Trial)
+	public void setup() {
+		query = createValue('q');
+		result = createValue('r');
+	}
+
+	String createValue(char filler) {
+		final var value = new StringBuilder(valueLength);
+		for (int i = 1; i <= valueLength; i++) {
+			value.append((escapableEvery > 0 && i % escapableEvery == 0) ? '<' : filler);
+		}
+		return value.toString();
+	}
+
+
+
+	@Benchmark
+	public long appendFilteredToWriter() {
+		final var row = new StringBuilder(500);
+		row.append("<tr><td>");
+		appendFiltered(query, row);
+		row.append("</td><td>");
+		appendFiltered(result, row);
+		row.append("</td></tr>");
+		writer.println(row.toString());
+		return charSink.count;
+	}
+
+	@Benchmark
+	public long appendFilteredToBytes() throws IOException {
+		final var row = new StringBuilder(500);
+		row.append("<tr><td>");
+		appendFiltered(query, row);
+		row.append("</td><td>");
+		appendFiltered(result, row);
+		row.append("</td></tr>\n");
+		byteSink.write(row.toString().getBytes(StandardCharsets.UTF_8));
+		return byteSink.count;
+	}
+
+	@Benchmark
+	public long escaperToWriter() {
+		writer.write("<tr><td>");
+		HtmlEscaper.write(query, writer);
+		writer.write("</td><td>");
+		HtmlEscaper.write(result, writer);
+		writer.println("</td></tr>");
+		return charSink.count;
+	}
+
+	static final byte[] ROW_START = "<tr><td>".getBytes(StandardCharsets.UTF_8);
+	static final byte[] CELL_SEPARATOR = "</td><td>".getBytes(StandardCharsets.UTF_8);
+	static final byte[] ROW_END = "</td></tr>\n".getBytes(StandardCharsets.UTF_8);
+
+	@Benchmark
+	public long escaperToBytes() throws IOException {
+		byteSink.write(ROW_START);
+		HtmlEscaper.write(query, byteSink);
+		byteSink.write(CELL_SEPARATOR);
+		HtmlEscaper.write(result, byteSink);
+		byteSink.write(ROW_END);
+		return byteSink.count;
+	}
+
+	static final HtmlTemplate ROW = new HtmlTemplate("<tr><td>{}</td><td>{}</td></tr>\n");
+
+	@Benchmark
+	public long templateToBytes() throws IOException {
+		ROW.write(byteSink, query, result);
+		return byteSink.count;
+	}
+
+
+
+	/** Copy of the sample app's former {@code QueryRecordListServlet.appendFiltered(...)}. */
+	// Adapted from
+	// github.com/apache/tomcat/blob/trunk/webapps/examples/WEB-INF/classes/util/HTMLFilter.java
+	public static void appendFiltered(String message, StringBuilder target) {
+		if (message == null) return;
+		char[] content = new char[message.length()];
+		message.getChars(0, message.length(), content, 0);
+		for (char c : content) {
+			switch (c) {
+				case '<':
+					target.append("&lt;");
+					break;
+				case '>':
+					target.append("&gt;");
+					break;
+				case '&':
+					target.append("&amp;");
+					break;
+				case '"':
+					target.append("&quot;");
+					break;
+				case '\'':
+					target.append("&apos;");
+					break;
+				default:
+					target.append(c);
+			}
+		}
+	}
+
+
+
+	/** Discards written chars, only counting them, like a response writer with a large buffer. */
+	static class CountingWriter extends Writer {
+
+		long count = 0l;
+
+		@Override public void write(char[] chars, int offset, int length) { count += length; }
+		@Override public void write(String string, int offset, int length) { count += length; }
+		@Override public void write(int c) { count++; }
+		@Override public void flush() {}
+		@Override public void close() {}
+	}
+
+
+
+	/** Discards written bytes, only counting them. */
+	static class CountingOutputStream extends OutputStream {
+
+		long count = 0l;
+
+		@Override public void write(byte[] bytes, int offset, int length) { count += length; }
+		@Override public void write(byte[] bytes) { count += bytes.length; }
+		@Override public void write(int b) { count++; }
+	}
+}
@@ -0,0 +1,100 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.*;
+
+import pl.morgwai.base.servlet.scopes.ContextTrackingExecutor;
+
+
+
+/**
+ * Load benchmark comparing a fixed size platform-thread JPA executor with the virtual-thread one
+ * (see {@link JpaServletContextListener#shouldUseVirtualJpaThreads()}).
+ * <p>
+ * Each benchmark invocation dispatches {@link #requests} tasks that simulate JPA operations: each
+ * task acquires 1 of {@link #connections} permits of a fake JDBC connection pool, blocks for
+ * {@link #queryMicros} and releases its permit. The measured time is the time until all the tasks
+ * complete.</p>
+ * <p>
+ * Virtual threads require Java 21+: on older JVMs {@code VIRTUAL} mode falls back to platform
+ * threads.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JpaExecutorBenchmark {
+
+
+
+	public enum ExecutorMode { FIXED, VIRTUAL }
+
+	@Param({"FIXED", "VIRTUAL"})
+	public ExecutorMode executorMode;
+
+	/** Size of the fake JDBC connection pool. */
+	@Param({"10"})
+	public int connections;
+
+	/** Thread pool size of the executor in {@code FIXED} mode. */
+	@Param({"20"})
+	public int fixedThreadPoolSize;
+
+	/** Number of tasks dispatched in a single benchmark invocation. */
+	@Param({"100", "1000", "10000"})
+	public int requests;
+
+	/** How long a simulated JPA operation blocks while holding a connection. */
+	@Param({"200"})
+	public long queryMicros;
+
+	ContextTrackingExecutor executor;
+	Semaphore connectionPool;
+
+
+
+	@Setup(Level.Trial)
+	public void setup() {
+		final var listener = new BenchmarkListener(executorMode == ExecutorMode.VIRTUAL);
+		executor = listener.createJpaExecutor(
+			"benchmark",
+			executorMode == ExecutorMode.VIRTUAL ? connections : fixedThreadPoolSize
+		);
+		connectionPool = new Semaphore(connections);
+	}
+
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(10l, TimeUnit.SECONDS);
+	}
+
+
+
+	@Benchmark
+	public void dispatchRequests() throws InterruptedException {
+		final var completed = new CountDownLatch(requests);
+		final var queryNanos = TimeUnit.MICROSECONDS.toNanos(queryMicros);
+		for (int i = 0; i < requests; i++) {
+			executor.execute(() -> {
+				connectionPool.acquireUninterruptibly();
+				try {
+					LockSupport.parkNanos(queryNanos);
+				} finally {
+					connectionPool.release();
+					completed.countDown();
+				}
+			});
+		}
+		completed.await();
+	}
+}
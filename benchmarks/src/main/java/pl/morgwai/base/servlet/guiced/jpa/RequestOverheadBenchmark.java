@@ -0,0 +1,137 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Provider;
+import javax.persistence.EntityManager;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.inject.Guice;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pl.morgwai.base.servlet.scopes.ContainerCallContext;
+import pl.morgwai.base.servlet.scopes.ServletRequestContext;
+
+
+
+/**
+ * Measures per-request overhead that the lib adds on top of the actual request processing:
+ * <ul>
+ *   <li>{@link SimpleAsyncJpaServlet#service(HttpServletRequest, HttpServletResponse)} dispatch to
+ *       a 1-thread {@link JpaServlet#jpaExecutor} and back (with an empty {@code doGet(...)}),</li>
+ *   <li>creation and use of {@link SimpleAsyncJpaServlet.AsyncHttpServletRequest} wrapper,</li>
+ *   <li>lookup of an {@link EntityManager} via request-scoped
+ *       {@link JpaServlet#entityManagerProvider} (both in a new and in an already existing request
+ *       context),</li>
+ *   <li>{@link JpaServlet#removeEntityManagerFromRequestScope()} followed by another lookup.</li>
+ * </ul>
+ * <p>
+ * Servlet API objects are {@link ServletMocks fakes} and the scoped {@link EntityManager} is a
+ * no-op {@link java.lang.reflect.Proxy}, so the results do not include any container or JPA
+ * provider costs.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestOverheadBenchmark {
+
+
+
+	BenchmarkListener listener;
+	final Semaphore completed = new Semaphore(0);
+	HttpServletRequest request;
+	HttpServletResponse response;
+	BenchmarkServlet servlet;
+	ContainerCallContext existingCtx;
+
+
+
+	@Setup(Level.Trial)
+	public void setup() {
+		listener = new BenchmarkListener();
+		final var servletModule = listener.getServletModule();
+		final var entityManager = ServletMocks.newEntityManager();
+		final var injector = Guice.createInjector(
+			servletModule,
+			(binder) -> binder.bind(EntityManager.class)
+				.toProvider(() -> entityManager)
+				.in(servletModule.containerCallScope)
+		);
+		JpaServletContextListener.singlePersistenceUnitApp = true;
+
+		request = ServletMocks.newRequest(ServletMocks.newAsyncContext(completed::release));
+		response = ServletMocks.newResponse();
+		servlet = new BenchmarkServlet();
+		servlet.entityManagerProvider = injector.getProvider(EntityManager.class);
+		servlet.containerCallContextTracker = servletModule.containerCallContextTracker;
+		servlet.jpaExecutor = listener.createJpaExecutor("benchmark", 1);
+		existingCtx = new ServletRequestContext(request, servletModule.containerCallContextTracker);
+	}
+
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		servlet.jpaExecutor.shutdown();
+		servlet.jpaExecutor.awaitTermination(10l, TimeUnit.SECONDS);
+	}
+
+
+
+	@Benchmark
+	public void dispatch() throws Exception {
+		servlet.service(request, response);
+		completed.acquire();
+	}
+
+
+
+	@Benchmark
+	public String asyncRequestWrapper() {
+		return new SimpleAsyncJpaServlet.AsyncHttpServletRequest(request).getRequestURI();
+	}
+
+
+
+	@Benchmark
+	public EntityManager scopedEntityManagerLookupInNewContext() throws Exception {
+		final Provider<EntityManager> provider = servlet.entityManagerProvider;
+		return new ServletRequestContext(request, servlet.containerCallContextTracker)
+			.executeWithinSelf(provider::get);
+	}
+
+
+
+	@Benchmark
+	public EntityManager scopedEntityManagerLookupInExistingContext() throws Exception {
+		final Provider<EntityManager> provider = servlet.entityManagerProvider;
+		return existingCtx.executeWithinSelf(provider::get);
+	}
+
+
+
+	@Benchmark
+	public void removeEntityManagerFromRequestScope(Blackhole blackhole) throws Exception {
+		existingCtx.executeWithinSelf(() -> {
+			blackhole.consume(servlet.entityManagerProvider.get());
+			servlet.removeEntityManagerFromRequestScope();
+			blackhole.consume(servlet.entityManagerProvider.get());
+		});
+	}
+
+
+
+	@SuppressWarnings("serial")
+	static class BenchmarkServlet extends SimpleAsyncJpaServlet {
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) {}
+	}
+}
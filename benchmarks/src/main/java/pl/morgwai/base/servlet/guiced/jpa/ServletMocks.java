@@ -0,0 +1,111 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+
+/**
+ * Minimal {@link Proxy}-based fakes of servlet API objects for benchmarks that do not run in a
+ * container. Methods not handled explicitly return {@code null}, {@code 0} or {@code false}.
+ */
+class ServletMocks {
+
+
+
+	/**
+	 * Creates a fake {@code GET} request that supports attributes and whose
+	 * {@link HttpServletRequest#startAsync()} returns <code>asyncContext</code>.
+	 */
+	static HttpServletRequest newRequest(AsyncContext asyncContext) {
+		final Map<String, Object> attributes = new HashMap<>();
+		attributes.put(AsyncContext.ASYNC_REQUEST_URI, "/benchmark");
+		attributes.put(AsyncContext.ASYNC_CONTEXT_PATH, "");
+		attributes.put(AsyncContext.ASYNC_SERVLET_PATH, "/benchmark");
+		return (HttpServletRequest) Proxy.newProxyInstance(
+			HttpServletRequest.class.getClassLoader(),
+			new Class<?>[] {HttpServletRequest.class},
+			(proxy, method, args) -> {
+				switch (method.getName()) {
+					case "getMethod": return "GET";
+					case "getAttribute": return attributes.get((String) args[0]);
+					case "setAttribute":
+						attributes.put((String) args[0], args[1]);
+						return null;
+					case "removeAttribute":
+						attributes.remove((String) args[0]);
+						return null;
+					case "startAsync": return asyncContext;
+					case "isAsyncStarted": return asyncContext != null;
+					case "getDateHeader": return -1l;
+					case "hashCode": return System.identityHashCode(proxy);
+					case "equals": return proxy == args[0];
+					default: return defaultValue(method.getReturnType());
+				}
+			}
+		);
+	}
+
+
+
+	/** Creates a fake {@link AsyncContext} that runs <code>onComplete</code> on each completion. */
+	static AsyncContext newAsyncContext(Runnable onComplete) {
+		return (AsyncContext) Proxy.newProxyInstance(
+			AsyncContext.class.getClassLoader(),
+			new Class<?>[] {AsyncContext.class},
+			(proxy, method, args) -> {
+				if (method.getName().equals("complete")) onComplete.run();
+				return defaultValue(method.getReturnType());
+			}
+		);
+	}
+
+
+
+	/** Creates a fake response that is never committed and ignores everything written to it. */
+	static HttpServletResponse newResponse() {
+		return (HttpServletResponse) Proxy.newProxyInstance(
+			HttpServletResponse.class.getClassLoader(),
+			new Class<?>[] {HttpServletResponse.class},
+			(proxy, method, args) -> defaultValue(method.getReturnType())
+		);
+	}
+
+
+
+	/**
+	 * Creates a fake {@link EntityManager} without any underlying persistence unit. Useful for
+	 * measuring scoping overhead in isolation from JPA provider.
+	 */
+	static EntityManager newEntityManager() {
+		return (EntityManager) Proxy.newProxyInstance(
+			EntityManager.class.getClassLoader(),
+			new Class<?>[] {EntityManager.class},
+			(proxy, method, args) -> {
+				if (method.getName().equals("isOpen")) return true;
+				return defaultValue(method.getReturnType());
+			}
+		);
+	}
+
+
+
+	static Object defaultValue(Class<?> type) {
+		if ( ! type.isPrimitive() || type == void.class) return null;
+		if (type == boolean.class) return false;
+		if (type == long.class) return 0l;
+		if (type == int.class) return 0;
+		if (type == double.class) return 0.0;
+		if (type == float.class) return 0.0f;
+		if (type == short.class) return (short) 0;
+		if (type == byte.class) return (byte) 0;
+		return (char) 0;
+	}
+}
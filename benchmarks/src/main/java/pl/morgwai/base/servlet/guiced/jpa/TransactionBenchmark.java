@@ -0,0 +1,113 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.openjdk.jmh.annotations.*;
+
+
+
+/**
+ * Measures {@link JpaServlet#executeWithinTx(javax.inject.Provider, java.util.concurrent.Callable)}
+ * against an in-memory H2 DB with Hibernate. Each invocation corresponds to a single request: a
+ * new {@link EntityManager} is created, used for 1 transaction and closed, so the results include
+ * {@link EntityManager} creation and JDBC connection checkout from Hibernate's built-in pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionBenchmark {
+
+
+
+	public static final String PERSISTENCE_UNIT_NAME = "benchmarkDb";
+
+	EntityManagerFactory entityManagerFactory;
+	Long existingRecordId;
+
+
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		entityManagerFactory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT_NAME);
+		final var record = new BenchmarkRecord("existing");
+		inNewEntityManager((entityManager) -> {
+			entityManager.persist(record);
+			return null;
+		});
+		existingRecordId = record.getId();
+	}
+
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		entityManagerFactory.close();
+	}
+
+
+
+	/** Transaction that does nothing: measures begin + commit overhead. */
+	@Benchmark
+	public Object emptyTx() throws Exception {
+		return inNewEntityManager((entityManager) -> null);
+	}
+
+
+
+	@Benchmark
+	public BenchmarkRecord findTx() throws Exception {
+		return inNewEntityManager(
+				(entityManager) -> entityManager.find(BenchmarkRecord.class, existingRecordId));
+	}
+
+
+
+	/** Same as {@link #findTx()}, but using {@link JpaServlet#executeReadOnly}. */
+	@Benchmark
+	public BenchmarkRecord readOnlyFindTx() throws Exception {
+		final var entityManager = entityManagerFactory.createEntityManager();
+		try {
+			return JpaServlet.executeReadOnly(
+				() -> entityManager,
+				() -> entityManager.find(BenchmarkRecord.class, existingRecordId)
+			);
+		} finally {
+			entityManager.close();
+		}
+	}
+
+
+
+	@Benchmark
+	public BenchmarkRecord persistTx() throws Exception {
+		return inNewEntityManager((entityManager) -> {
+			final var record = new BenchmarkRecord("new");
+			entityManager.persist(record);
+			return record;
+		});
+	}
+
+
+
+	interface JpaOperation<T> {
+		T execute(EntityManager entityManager) throws Exception;
+	}
+
+	<T> T inNewEntityManager(JpaOperation<T> operation) throws Exception {
+		final var entityManager = entityManagerFactory.createEntityManager();
+		try {
+			return JpaServlet.executeWithinTx(
+					() -> entityManager, () -> operation.execute(entityManager));
+		} finally {
+			entityManager.close();
+		}
+	}
+}
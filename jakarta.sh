@@ -1,13 +1,14 @@
 #!/bin/bash
 # Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
-for file in pom.xml sample/pom.xml sample/src/main/resources/META-INF/persistence.xml; do
+for file in pom.xml sample/pom.xml sample/src/main/resources/META-INF/persistence.xml \
+		benchmarks/pom.xml benchmarks/src/main/resources/META-INF/persistence.xml; do
 	sed -E -e 's#(\t*).*<!--jakarta:(.*)-->#\1\2#' \
 		-e 's#(.*)javax(.*)<!--jakarta-->#\1jakarta\2#' \
 		<"${file}" >"${file}.jakarta" &&
 	mv "${file}.jakarta" "${file}" ;
 done
 
-for folder in src sample/src sample-multi-jpa/src; do
+for folder in src sample/src sample-multi-jpa/src benchmarks/src; do
 	find "${folder}" -name '*.java' | while read file; do
 		if [ ! -L "${file}" ]; then
 			sed -e 's#javax.servlet#jakarta.servlet#g' \
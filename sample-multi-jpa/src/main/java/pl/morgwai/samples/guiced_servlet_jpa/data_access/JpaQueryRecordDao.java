@@ -1,15 +1,23 @@
 // Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
 package pl.morgwai.samples.guiced_servlet_jpa.data_access;
 
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.List;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
 
 import com.google.inject.name.Named;
 
+import pl.morgwai.base.servlet.guiced.jpa.JpaNamedQueries;
+import pl.morgwai.base.servlet.guiced.jpa.JpaNamedQuery;
+import pl.morgwai.base.servlet.guiced.jpa.KeysetPagination;
+import pl.morgwai.base.servlet.guiced.jpa.KeysetPagination.Page;
+import pl.morgwai.base.servlet.guiced.jpa.QueryResultCache;
+import pl.morgwai.base.servlet.guiced.jpa.ResultStreamer;
+import pl.morgwai.base.servlet.guiced.jpa.ResultStreamer.RowWriter;
 import pl.morgwai.samples.guiced_servlet_jpa.domain.QueryRecord;
 
 import static pl.morgwai.base.servlet.guiced.jpa.JpaServletContextListener
@@ -27,23 +35,16 @@ public class JpaQueryRecordDao implements QueryRecordDao {
 
 	@Inject
 	public JpaQueryRecordDao(
-		@Named(MAIN_PERSISTENCE_UNIT_BINDING_NAME) EntityManagerFactory persistenceUnit,
 		@Named(MAIN_PERSISTENCE_UNIT_BINDING_NAME) Provider<EntityManager> entityManagerProvider
 	) {
 		this.entityManagerProvider = entityManagerProvider;
-
-		// create named queries
-		EntityManager initialEntityManager = persistenceUnit.createEntityManager();
-		persistenceUnit.addNamedQuery(
-				FIND_ALL_QUERY_NAME, initialEntityManager.createQuery(FIND_ALL_QUERY));
-		persistenceUnit.addNamedQuery(
-				UPDATE_QUERY_NAME, initialEntityManager.createQuery(UPDATE_QUERY));
-		initialEntityManager.close();
 	}
 
 
 
-	static final String FIND_ALL_QUERY_NAME = JpaQueryRecordDao.class.getName() + ".findAll";
+	static final String FIND_ALL_QUERY_NAME =
+			JpaNamedQueries.nameOf(JpaQueryRecordDao.class, "findAll");
+	@JpaNamedQuery("findAll")
 	static final String FIND_ALL_QUERY = "select r from "
 			+ QueryRecord.class.getSimpleName() + " r";
 
@@ -59,7 +60,61 @@ public class JpaQueryRecordDao implements QueryRecordDao {
 
 
 
-	static final String UPDATE_QUERY_NAME = JpaQueryRecordDao.class.getName() + ".update";
+	static final String FIND_PAGE_QUERY_NAME =
+			JpaNamedQueries.nameOf(JpaQueryRecordDao.class, "findPage");
+	@JpaNamedQuery("findPage")
+	static final String FIND_PAGE_QUERY = "select r from "
+			+ QueryRecord.class.getSimpleName() + " r"
+			+ " where r." + QueryRecord.ID + " > :" + KeysetPagination.AFTER_KEY_PARAM
+			+ " order by r." + QueryRecord.ID;
+
+	@Override
+	public Page<QueryRecord> findPage(String pageToken, int pageSize) throws DaoException {
+		try {
+			return KeysetPagination.fetchPage(
+				entityManagerProvider.get()
+					.createNamedQuery(FIND_PAGE_QUERY_NAME, QueryRecord.class),
+				QueryRecord::getId,
+				KeysetPagination.LONG_KEYS,
+				pageToken,
+				pageSize
+			);
+		} catch (IllegalArgumentException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DaoException(e);
+		}
+	}
+
+
+
+	/** JDBC fetch size and the number of entities after which the persistence ctx is cleared. */
+	static final int STREAMING_FETCH_SIZE = 100;
+
+	@Override
+	public long streamAll(PrintWriter writer, RowWriter<QueryRecord> rowWriter)
+			throws DaoException, IOException {
+		try {
+			EntityManager entityManager = entityManagerProvider.get();
+			return ResultStreamer.streamResults(
+				entityManager.createNamedQuery(FIND_ALL_QUERY_NAME, QueryRecord.class),
+				entityManager,
+				STREAMING_FETCH_SIZE,
+				writer,
+				rowWriter
+			);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DaoException(e);
+		}
+	}
+
+
+
+	static final String UPDATE_QUERY_NAME =
+			JpaNamedQueries.nameOf(JpaQueryRecordDao.class, "update");
+	@JpaNamedQuery("update")
 	static final String UPDATE_QUERY = "update " + QueryRecord.class.getSimpleName() + " r"
 			+ " set " + QueryRecord.QUERY + " = :" + QueryRecord.QUERY
 			+ ", " + QueryRecord.RESULT + " = :" + QueryRecord.RESULT
@@ -76,6 +131,7 @@ public class JpaQueryRecordDao implements QueryRecordDao {
 				.setParameter(QueryRecord.QUERY, record.getQuery())
 				.setParameter(QueryRecord.RESULT, record.getResult())
 				.executeUpdate();
+			QueryResultCache.recordWrite(QueryRecord.class);  // bulk updates are not reported
 			return updatedCount > 0;
 		} catch (Exception e) {
 			throw new DaoException(e);
@@ -2,18 +2,17 @@
 package pl.morgwai.samples.guiced_servlet_jpa.servlets;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.List;
 
 import javax.inject.Inject;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import pl.morgwai.base.servlet.guiced.jpa.HtmlTemplate;
 import pl.morgwai.base.servlet.guiced.jpa.JpaServletContextListener;
+import pl.morgwai.base.servlet.guiced.jpa.KeysetPagination.Page;
 import pl.morgwai.base.servlet.guiced.jpa.SimpleAsyncJpaServlet;
 import pl.morgwai.samples.guiced_servlet_jpa.data_access.ChatLogDao;
-import pl.morgwai.samples.guiced_servlet_jpa.data_access.DaoException;
 import pl.morgwai.samples.guiced_servlet_jpa.domain.ChatLogEntry;
 
 
@@ -40,6 +39,22 @@ public class ChatLogServlet extends SimpleAsyncJpaServlet {
 
 	@Inject ChatLogDao dao;
 
+	/** Request parameter with the token of the requested page (first page if absent). */
+	public static final String PAGE_PARAM = "page";
+
+	/** Servlet init parameter with the number of entries per page. */
+	public static final String PAGE_SIZE_PARAM = "pageSize";
+	public static final int DEFAULT_PAGE_SIZE = 100;
+	int pageSize;
+
+
+
+	@Override
+	public void init() throws ServletException {
+		final var pageSizeParam = getInitParameter(PAGE_SIZE_PARAM);
+		pageSize = pageSizeParam != null ? Integer.parseInt(pageSizeParam) : DEFAULT_PAGE_SIZE;
+	}
+
 	@Override
 	protected String getPersistenceUnitBindingName() {
 		return ServletContextListener.CHAT_LOG_NAME;
@@ -47,39 +62,64 @@ public class ChatLogServlet extends SimpleAsyncJpaServlet {
 
 
 
+	/**
+	 * Chat log is small enough to be buffered, so a slow client does not hold a JPA thread and its
+	 * JDBC connection.
+	 */
+	@Override
+	protected boolean shouldWriteResponseNonBlocking(HttpServletRequest request) { return true; }
+
+
+
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
+		// the chat log grows forever: fetch only 1 page, seeking by id instead of OFFSET scans
+		final var pageToken = request.getParameter(PAGE_PARAM);
+		final Page<ChatLogEntry> page;
 		try {
-			List<ChatLogEntry> log = dao.findAll();
-			streamResults(log, response);
-		} catch (DaoException e) {
+			page = executeReadOnly(() -> dao.findPage(pageToken, pageSize));
+		} catch (IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		} catch (Exception e) {
 			throw new ServletException(e);
 		}
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(CONTENT_TYPE);
+		final var out = response.getOutputStream();
+		PAGE_HEADER.write(out);
+		out.flush();  // force chunked encoding (no-op when buffered for a non-blocking write)
+		for (var logEntry: page.getItems()) {
+			ROW.write(out, logEntry.getId().toString(), logEntry.getUsername(),
+					logEntry.getMessage());
+		}
+		if (page.hasNextPage()) {
+			TABLE_FOOTER_WITH_NEXT_PAGE_LINK.write(out, page.getNextPageToken());
+		} else {
+			TABLE_FOOTER.write(out);
+		}
+		out.close();
 	}
 
 
 
-	static void streamResults(List<ChatLogEntry> log, HttpServletResponse response)
-			throws IOException {
-		response.setStatus(HttpServletResponse.SC_OK);
-		PrintWriter writer = response.getWriter();
-		writer.println("<!DOCTYPE html>");
-		writer.println("<html lang='en' ><head><meta charset='utf-8' />"
-				+ "<title>chat log</title></head><body><table border='1' >");
-		writer.println("<tr><th>id</th><th>" + ChatLogEntry.USERNAME + "</th><th>"
-				+ ChatLogEntry.MESSAGE + "</th></tr>");
-		writer.flush();  // force chunked encoding
-		for (ChatLogEntry logEntry: log) {
-			StringBuilder recordRowBuilder = new StringBuilder(500);
-			recordRowBuilder.append("<tr><td>").append(logEntry.getId()).append("</td><td>");
-			QueryRecordListServlet.appendFiltered(logEntry.getUsername(), recordRowBuilder);
-			recordRowBuilder.append("</td><td>");
-			QueryRecordListServlet.appendFiltered(logEntry.getMessage(), recordRowBuilder);
-			recordRowBuilder.append("</td></tr>");
-			writer.println(recordRowBuilder.toString());
-		}
-		writer.println("</table></body></html>");
-		writer.close();
-	}
+	/** Content type of pages rendered with {@link HtmlTemplate}s. */
+	static final String CONTENT_TYPE = "text/html;charset=UTF-8";
+
+	// constant markup is encoded only once: only ids and log entry values are encoded per row
+
+	static final HtmlTemplate PAGE_HEADER = new HtmlTemplate("<!DOCTYPE html>\n"
+			+ "<html lang='en' ><head><meta charset='utf-8' />"
+			+ "<title>chat log</title></head><body><table border='1' >\n"
+			+ "<tr><th>id</th><th>" + ChatLogEntry.USERNAME + "</th><th>"
+			+ ChatLogEntry.MESSAGE + "</th></tr>\n");
+
+	static final HtmlTemplate ROW =
+			new HtmlTemplate("<tr><td>{}</td><td>{}</td><td>{}</td></tr>\n");
+
+	static final HtmlTemplate TABLE_FOOTER = new HtmlTemplate("</table>\n</body></html>\n");
+
+	static final HtmlTemplate TABLE_FOOTER_WITH_NEXT_PAGE_LINK = new HtmlTemplate("</table>\n"
+			+ "<a href='" + URI + "?" + PAGE_PARAM + "={}' >next page</a>\n</body></html>\n");
 }
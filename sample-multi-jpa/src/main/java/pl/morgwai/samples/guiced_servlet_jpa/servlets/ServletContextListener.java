@@ -2,10 +2,8 @@
 package pl.morgwai.samples.guiced_servlet_jpa.servlets;
 
 import java.util.LinkedList;
+import java.util.List;
 
-import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebListener;
@@ -15,6 +13,7 @@ import com.google.inject.Scopes;
 import com.google.inject.name.Names;
 
 import pl.morgwai.base.servlet.guiced.jpa.JpaPingingServletContextListener;
+import pl.morgwai.base.servlet.guiced.jpa.PersistenceUnitConfig;
 import pl.morgwai.base.servlet.scopes.ContextTrackingExecutor;
 import pl.morgwai.samples.guiced_servlet_jpa.data_access.ChatLogDao;
 import pl.morgwai.samples.guiced_servlet_jpa.data_access.ExternalService;
@@ -58,35 +57,37 @@ public class ServletContextListener extends JpaPingingServletContextListener {
 
 
 
-	public static final String CHAT_LOG_NAME = "chatLogDb";
+	public static final String CHAT_LOG_NAME = "chatLogDb";  // same as in persistence.xml
 	public static final int CHAT_LOG_POOL_SIZE = 10;
-	EntityManagerFactory chatLogEntityManagerFactory;
-	ContextTrackingExecutor chatLogJpaExecutor;
+	public static final int CHAT_LOG_WRITE_BATCH_SIZE = 50;
+
+	@Override
+	protected List<PersistenceUnitConfig> getAdditionalPersistenceUnitConfigs() {
+		return List.of(new PersistenceUnitConfig(CHAT_LOG_NAME, CHAT_LOG_NAME,
+				CHAT_LOG_POOL_SIZE, CHAT_LOG_POOL_SIZE, CHAT_LOG_WRITE_BATCH_SIZE, 0));
+	}
 
 
 
 	@Override
-	protected LinkedList<Module> configureInjections() {
-		var modules = new LinkedList<Module>();
+	protected List<Class<?>> getNamedQueryClasses(String persistenceUnitName) {
+		return persistenceUnitName.equals(CHAT_LOG_NAME)
+				? List.of(JpaChatLogDao.class)
+				: List.of(JpaQueryRecordDao.class);
+	}
 
-		chatLogEntityManagerFactory = Persistence.createEntityManagerFactory(CHAT_LOG_NAME);
-		chatLogJpaExecutor = createJpaExecutor(CHAT_LOG_NAME, CHAT_LOG_POOL_SIZE);
-		log.info("entity manager factory " + CHAT_LOG_NAME
-				+ " and its JPA executor created successfully");
 
-		// chatLogDB module
-		modules.add((binder) -> {
-			binder.bind(EntityManager.class)
-					.annotatedWith(Names.named(CHAT_LOG_NAME))
-					.toProvider(() -> chatLogEntityManagerFactory.createEntityManager())
-					.in(servletModule.containerCallScope);
-			binder.bind(EntityManagerFactory.class)
-					.annotatedWith(Names.named(CHAT_LOG_NAME))
-					.toInstance(chatLogEntityManagerFactory);
-			binder.bind(ContextTrackingExecutor.class)
-					.annotatedWith(Names.named(CHAT_LOG_NAME))
-					.toInstance(chatLogJpaExecutor);
-		});
+
+	@Override
+	protected boolean shouldUseLazyEntityManagers() {
+		return true;  // requests that do not touch JPA will not create EntityManagers
+	}
+
+
+
+	@Override
+	protected LinkedList<Module> configureInjections() {
+		var modules = new LinkedList<Module>();
 
 		// external service module
 		externalServiceExecutor = servletModule.newContextTrackingExecutor(
@@ -125,7 +126,5 @@ public class ServletContextListener extends JpaPingingServletContextListener {
 	public void contextDestroyed(ServletContextEvent event) {
 		ChatEndpoint.shutdown();
 		super.contextDestroyed(event);
-		chatLogEntityManagerFactory.close();
-		log.info("entity manager factory " + CHAT_LOG_NAME + " shutdown completed");
 	}
 }
@@ -2,7 +2,9 @@
 package pl.morgwai.samples.guiced_servlet_jpa.data_access;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+import pl.morgwai.base.servlet.guiced.jpa.KeysetPagination.Page;
 import pl.morgwai.samples.guiced_servlet_jpa.domain.ChatLogEntry;
 
 
@@ -10,5 +12,20 @@ import pl.morgwai.samples.guiced_servlet_jpa.domain.ChatLogEntry;
 public interface ChatLogDao {
 
 	List<ChatLogEntry> findAll() throws DaoException;
+
+	/**
+	 * Returns the page of up to <code>pageSize</code> records (ordered by id) following
+	 * <code>pageToken</code> or the first page if <code>pageToken</code> is {@code null}.
+	 * @throws IllegalArgumentException if <code>pageToken</code> is malformed.
+	 */
+	Page<ChatLogEntry> findPage(String pageToken, int pageSize) throws DaoException;
+
 	void persist(ChatLogEntry logEntry) throws DaoException;
+
+	/**
+	 * Persists <code>logEntry</code> in a batch together with entries from other callers, outside
+	 * of the caller's transaction.
+	 * @return future completed after the batch is committed.
+	 */
+	CompletableFuture<ChatLogEntry> persistBatched(ChatLogEntry logEntry);
 }
@@ -2,12 +2,17 @@
 package pl.morgwai.samples.guiced_servlet_jpa.data_access;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
 
+import pl.morgwai.base.servlet.guiced.jpa.BatchingJpaWriter;
+import pl.morgwai.base.servlet.guiced.jpa.JpaNamedQueries;
+import pl.morgwai.base.servlet.guiced.jpa.JpaNamedQuery;
+import pl.morgwai.base.servlet.guiced.jpa.KeysetPagination;
+import pl.morgwai.base.servlet.guiced.jpa.KeysetPagination.Page;
 import pl.morgwai.samples.guiced_servlet_jpa.domain.ChatLogEntry;
 
 
@@ -17,26 +22,24 @@ public class JpaChatLogDao implements ChatLogDao {
 
 
 	Provider<EntityManager> entityManagerProvider;
+	BatchingJpaWriter batchingWriter;
 
 
 
 	@Inject
 	public JpaChatLogDao(
-		EntityManagerFactory persistenceUnit,
-		Provider<EntityManager> entityManagerProvider
+		Provider<EntityManager> entityManagerProvider,
+		BatchingJpaWriter batchingWriter
 	) {
 		this.entityManagerProvider = entityManagerProvider;
-
-		// create named queries
-		EntityManager initialEntityManager = persistenceUnit.createEntityManager();
-		persistenceUnit.addNamedQuery(
-				FIND_ALL_QUERY_NAME, initialEntityManager.createQuery(FIND_ALL_QUERY));
-		initialEntityManager.close();
+		this.batchingWriter = batchingWriter;
 	}
 
 
 
-	static final String FIND_ALL_QUERY_NAME = JpaChatLogDao.class.getName() + ".findAll";
+	static final String FIND_ALL_QUERY_NAME =
+			JpaNamedQueries.nameOf(JpaChatLogDao.class, "findAll");
+	@JpaNamedQuery("findAll")
 	static final String FIND_ALL_QUERY = "select r from "
 			+ ChatLogEntry.class.getSimpleName() + " r";
 
@@ -52,6 +55,34 @@ public class JpaChatLogDao implements ChatLogDao {
 
 
 
+	static final String FIND_PAGE_QUERY_NAME =
+			JpaNamedQueries.nameOf(JpaChatLogDao.class, "findPage");
+	@JpaNamedQuery("findPage")
+	static final String FIND_PAGE_QUERY = "select e from "
+			+ ChatLogEntry.class.getSimpleName() + " e"
+			+ " where e." + ChatLogEntry.ID + " > :" + KeysetPagination.AFTER_KEY_PARAM
+			+ " order by e." + ChatLogEntry.ID;
+
+	@Override
+	public Page<ChatLogEntry> findPage(String pageToken, int pageSize) throws DaoException {
+		try {
+			return KeysetPagination.fetchPage(
+				entityManagerProvider.get()
+					.createNamedQuery(FIND_PAGE_QUERY_NAME, ChatLogEntry.class),
+				ChatLogEntry::getId,
+				KeysetPagination.LONG_KEYS,
+				pageToken,
+				pageSize
+			);
+		} catch (IllegalArgumentException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DaoException(e);
+		}
+	}
+
+
+
 	@Override
 	public void persist(ChatLogEntry logEntry) throws DaoException {
 		try {
@@ -60,4 +91,11 @@ public class JpaChatLogDao implements ChatLogDao {
 			throw new DaoException(e);
 		}
 	}
+
+
+
+	@Override
+	public CompletableFuture<ChatLogEntry> persistBatched(ChatLogEntry logEntry) {
+		return batchingWriter.persist(logEntry);
+	}
 }
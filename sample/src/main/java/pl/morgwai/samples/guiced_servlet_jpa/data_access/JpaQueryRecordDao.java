@@ -1,13 +1,22 @@
 // Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
 package pl.morgwai.samples.guiced_servlet_jpa.data_access;
 
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.List;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
 
+import pl.morgwai.base.servlet.guiced.jpa.JpaCachePolicy;
+import pl.morgwai.base.servlet.guiced.jpa.JpaNamedQueries;
+import pl.morgwai.base.servlet.guiced.jpa.JpaNamedQuery;
+import pl.morgwai.base.servlet.guiced.jpa.KeysetPagination;
+import pl.morgwai.base.servlet.guiced.jpa.KeysetPagination.Page;
+import pl.morgwai.base.servlet.guiced.jpa.QueryResultCache;
+import pl.morgwai.base.servlet.guiced.jpa.ResultStreamer;
+import pl.morgwai.base.servlet.guiced.jpa.ResultStreamer.RowWriter;
 import pl.morgwai.samples.guiced_servlet_jpa.domain.QueryRecord;
 
 
@@ -17,36 +26,91 @@ public class JpaQueryRecordDao implements QueryRecordDao {
 
 
 	Provider<EntityManager> entityManagerProvider;
+	JpaCachePolicy cachePolicy;
 
 
 
 	@Inject
 	public JpaQueryRecordDao(
-		EntityManagerFactory persistenceUnit,
-		Provider<EntityManager> entityManagerProvider
+		Provider<EntityManager> entityManagerProvider,
+		JpaCachePolicy cachePolicy
 	) {
 		this.entityManagerProvider = entityManagerProvider;
-
-		// create named queries
-		EntityManager initialEntityManager = persistenceUnit.createEntityManager();
-		persistenceUnit.addNamedQuery(
-				FIND_ALL_QUERY_NAME, initialEntityManager.createQuery(FIND_ALL_QUERY));
-		persistenceUnit.addNamedQuery(
-				UPDATE_QUERY_NAME, initialEntityManager.createQuery(UPDATE_QUERY));
-		initialEntityManager.close();
+		this.cachePolicy = cachePolicy;
 	}
 
 
 
-	static final String FIND_ALL_QUERY_NAME = JpaQueryRecordDao.class.getName() + ".findAll";
+	static final String FIND_ALL_QUERY_NAME =
+			JpaNamedQueries.nameOf(JpaQueryRecordDao.class, "findAll");
+	@JpaNamedQuery("findAll")
 	static final String FIND_ALL_QUERY = "select r from "
 			+ QueryRecord.class.getSimpleName() + " r";
 
 	@Override
 	public List<QueryRecord> findAll() throws DaoException {
 		try {
-			return entityManagerProvider.get()
-					.createNamedQuery(FIND_ALL_QUERY_NAME, QueryRecord.class).getResultList();
+			return cachePolicy.createNamedQuery(
+					entityManagerProvider.get(), FIND_ALL_QUERY_NAME, QueryRecord.class)
+				.getResultList();
+		} catch (Exception e) {
+			throw new DaoException(e);
+		}
+	}
+
+
+
+	static final String FIND_PAGE_QUERY_NAME =
+			JpaNamedQueries.nameOf(JpaQueryRecordDao.class, "findPage");
+	@JpaNamedQuery("findPage")
+	static final String FIND_PAGE_QUERY = "select r from "
+			+ QueryRecord.class.getSimpleName() + " r"
+			+ " where r." + QueryRecord.ID + " > :" + KeysetPagination.AFTER_KEY_PARAM
+			+ " order by r." + QueryRecord.ID;
+
+	@Override
+	public Page<QueryRecord> findPage(String pageToken, int pageSize) throws DaoException {
+		try {
+			return KeysetPagination.fetchPage(
+				cachePolicy.createNamedQuery(
+					entityManagerProvider.get(), FIND_PAGE_QUERY_NAME, QueryRecord.class),
+				QueryRecord::getId,
+				KeysetPagination.LONG_KEYS,
+				pageToken,
+				pageSize
+			);
+		} catch (IllegalArgumentException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DaoException(e);
+		}
+	}
+
+
+
+	/** JDBC fetch size and the number of entities after which the persistence ctx is cleared. */
+	static final int STREAMING_FETCH_SIZE = 100;
+
+	/** Name of {@link JpaCachePolicy} hints of {@link #streamAll(PrintWriter, RowWriter)}. */
+	public static final String STREAM_ALL_CACHE_POLICY_NAME = FIND_ALL_QUERY_NAME + ".streaming";
+
+	@Override
+	public long streamAll(PrintWriter writer, RowWriter<QueryRecord> rowWriter)
+			throws DaoException, IOException {
+		try {
+			EntityManager entityManager = entityManagerProvider.get();
+			return ResultStreamer.streamResults(
+				cachePolicy.applyHints(
+					entityManager.createNamedQuery(FIND_ALL_QUERY_NAME, QueryRecord.class),
+					STREAM_ALL_CACHE_POLICY_NAME
+				),
+				entityManager,
+				STREAMING_FETCH_SIZE,
+				writer,
+				rowWriter
+			);
+		} catch (IOException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new DaoException(e);
 		}
@@ -54,7 +118,9 @@ public class JpaQueryRecordDao implements QueryRecordDao {
 
 
 
-	static final String UPDATE_QUERY_NAME = JpaQueryRecordDao.class.getName() + ".update";
+	static final String UPDATE_QUERY_NAME =
+			JpaNamedQueries.nameOf(JpaQueryRecordDao.class, "update");
+	@JpaNamedQuery("update")
 	static final String UPDATE_QUERY = "update " + QueryRecord.class.getSimpleName() + " r"
 			+ " set " + QueryRecord.QUERY + " = :" + QueryRecord.QUERY
 			+ ", " + QueryRecord.RESULT + " = :" + QueryRecord.RESULT
@@ -71,6 +137,7 @@ public class JpaQueryRecordDao implements QueryRecordDao {
 				.setParameter(QueryRecord.QUERY, record.getQuery())
 				.setParameter(QueryRecord.RESULT, record.getResult())
 				.executeUpdate();
+			QueryResultCache.recordWrite(QueryRecord.class);  // bulk updates are not reported
 			return updatedCount > 0;
 		} catch (Exception e) {
 			throw new DaoException(e);
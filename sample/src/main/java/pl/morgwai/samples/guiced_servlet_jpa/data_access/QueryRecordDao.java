@@ -1,8 +1,12 @@
 // Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
 package pl.morgwai.samples.guiced_servlet_jpa.data_access;
 
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.List;
 
+import pl.morgwai.base.servlet.guiced.jpa.KeysetPagination.Page;
+import pl.morgwai.base.servlet.guiced.jpa.ResultStreamer.RowWriter;
 import pl.morgwai.samples.guiced_servlet_jpa.domain.QueryRecord;
 
 
@@ -10,6 +14,21 @@ import pl.morgwai.samples.guiced_servlet_jpa.domain.QueryRecord;
 public interface QueryRecordDao {
 
 	List<QueryRecord> findAll() throws DaoException;
+
+	/**
+	 * Returns the page of up to <code>pageSize</code> records (ordered by id) following
+	 * <code>pageToken</code> or the first page if <code>pageToken</code> is {@code null}.
+	 * @throws IllegalArgumentException if <code>pageToken</code> is malformed.
+	 */
+	Page<QueryRecord> findPage(String pageToken, int pageSize) throws DaoException;
+
+	/**
+	 * Streams all records to <code>writer</code> in constant memory using <code>rowWriter</code>.
+	 * @return number of streamed records.
+	 */
+	long streamAll(PrintWriter writer, RowWriter<QueryRecord> rowWriter)
+			throws DaoException, IOException;
+
 	boolean update(QueryRecord record) throws DaoException;
 	void persist(QueryRecord record) throws DaoException;
 }
@@ -16,7 +16,7 @@ public class ChatLogEntry implements Serializable {
 
 
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE)  // IDENTITY would disable batch inserts
 	Long id;
 	public static final String ID = "id";
 	public Long getId() { return id; }
@@ -3,14 +3,20 @@ package pl.morgwai.samples.guiced_servlet_jpa.domain;
 
 import java.io.Serializable;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 
+import pl.morgwai.base.servlet.guiced.jpa.QueryResultCache;
+
 
 
 @Entity
+@Cacheable  // see ServletContextListener.getSharedCacheMode(...)
+@EntityListeners(QueryResultCache.EntityListener.class)  // writes invalidate cached results
 public class QueryRecord implements Serializable {
 
 
@@ -1,11 +1,7 @@
 // Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
 package pl.morgwai.samples.guiced_servlet_jpa.servlets;
 
-import java.util.concurrent.Callable;
-
 import javax.inject.Inject;
-import javax.inject.Provider;
-import javax.persistence.EntityManager;
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnOpen;
@@ -15,21 +11,19 @@ import javax.websocket.server.ServerEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import pl.morgwai.base.servlet.guiced.jpa.JpaServlet;
+import pl.morgwai.base.servlet.guiced.jpa.HtmlEscaper;
 import pl.morgwai.base.servlet.guiced.utils.PingingEndpointConfigurator;
-import pl.morgwai.base.servlet.scopes.ContextTrackingExecutor;
 import pl.morgwai.samples.guiced_servlet_jpa.data_access.ChatLogDao;
 import pl.morgwai.samples.guiced_servlet_jpa.domain.ChatLogEntry;
 
-import static pl.morgwai.samples.guiced_servlet_jpa.servlets.QueryRecordListServlet.appendFiltered;
-
 
 
 /**
- * A simple "Chat over a WebSocket" endpoint that dispatches processing of incoming messages to
- * {@link #jpaExecutor the app wide executor associated with the persistence unit}, on which it logs
- * messages to the DB using {@link EntityManager} from injected {@link #entityManagerProvider
- * Provider} (from the same request-scoped binding as servlets).
+ * A simple "Chat over a WebSocket" endpoint that logs incoming messages to the DB using
+ * {@link ChatLogDao#persistBatched(ChatLogEntry)}: messages from all connections are gathered by
+ * a {@link pl.morgwai.base.servlet.guiced.jpa.BatchingJpaWriter} and inserted in batches on
+ * the app wide executor associated with the persistence unit. Messages are broadcast after they
+ * are saved.
  */
 @ServerEndpoint(
 		configurator = PingingEndpointConfigurator.class,
@@ -45,12 +39,6 @@ public class ChatEndpoint {
 	@Inject
 	ChatLogDao dao;
 
-	@Inject
-	ContextTrackingExecutor jpaExecutor;
-
-	@Inject
-	Provider<EntityManager> entityManagerProvider;
-
 	String nickname;
 	Session connection;
 
@@ -75,25 +63,19 @@ public class ChatEndpoint {
 		var formattedMessageBuilder = new StringBuilder(nickname.length() + message.length() + 10)
 				.append(nickname)
 				.append(": ");
-		appendFiltered(message, formattedMessageBuilder);
-		jpaExecutor.execute(connection, () -> {
-			try {
-				executeWithinTx(
-						() -> { dao.persist(new ChatLogEntry(nickname, message)); return null; });
+		HtmlEscaper.append(message, formattedMessageBuilder);
+		dao.persistBatched(new ChatLogEntry(nickname, message)).whenComplete((logEntry, error) -> {
+			if (error == null) {
 				broadcast(formattedMessageBuilder.toString());
-			} catch (Exception e) {
-				log.warn("couldn't save message from " + connection.getId() + " into the DB", e);
-				synchronized (connection) {
-					connection.getAsyncRemote().sendText("### couldn't send message :(");
-				}
+				return;
+			}
+			log.warn("couldn't save message from " + connection.getId() + " into the DB", error);
+			synchronized (connection) {
+				connection.getAsyncRemote().sendText("### couldn't send message :(");
 			}
 		});
 	}
 
-	protected <T> T executeWithinTx(Callable<T> operation) throws Exception {
-		return JpaServlet.executeWithinTx(entityManagerProvider, operation);
-	}
-
 
 
 	@OnClose
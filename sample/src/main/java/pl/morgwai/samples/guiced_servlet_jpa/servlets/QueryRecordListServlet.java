@@ -3,16 +3,19 @@ package pl.morgwai.samples.guiced_servlet_jpa.servlets;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.List;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import pl.morgwai.base.servlet.guiced.jpa.HtmlTemplate;
 import pl.morgwai.base.servlet.guiced.jpa.JpaServletContextListener;
+import pl.morgwai.base.servlet.guiced.jpa.KeysetPagination;
+import pl.morgwai.base.servlet.guiced.jpa.KeysetPagination.Page;
+import pl.morgwai.base.servlet.guiced.jpa.ResultStreamer;
 import pl.morgwai.base.servlet.guiced.jpa.SimpleAsyncJpaServlet;
-import pl.morgwai.samples.guiced_servlet_jpa.data_access.DaoException;
 import pl.morgwai.samples.guiced_servlet_jpa.data_access.QueryRecordDao;
 import pl.morgwai.samples.guiced_servlet_jpa.domain.QueryRecord;
 
@@ -41,80 +44,203 @@ public class QueryRecordListServlet extends SimpleAsyncJpaServlet {
 	@Inject
 	QueryRecordDao dao;
 
+	/** Request parameter with the token of the requested page (first page if absent). */
+	public static final String PAGE_PARAM = "page";
 
+	/**
+	 * Request parameter that makes
+	 * {@link #doGet(HttpServletRequest, HttpServletResponse) doGet(...)} stream all records as CSV
+	 * instead of rendering a page.
+	 */
+	public static final String EXPORT_PARAM = "export";
 
+	/** Servlet init parameter with the number of records per page. */
+	public static final String PAGE_SIZE_PARAM = "pageSize";
+	public static final int DEFAULT_PAGE_SIZE = 50;
+	int pageSize;
+
+
+
+	@Override
+	public void init() throws ServletException {
+		final var pageSizeParam = getInitParameter(PAGE_SIZE_PARAM);
+		pageSize = pageSizeParam != null ? Integer.parseInt(pageSizeParam) : DEFAULT_PAGE_SIZE;
+	}
+
+
+
+	/** Key of record pages in {@link #queryResultCache}. */
+	static final String PAGE_KEY = QueryRecordListServlet.class.getName() + ".page";
+
+
+
+	/**
+	 * Serves cache hits on the container thread without dispatching to the JPA executor. Cache
+	 * misses (for example right after an update invalidated the page while it's being hammered)
+	 * are coalesced, so that only 1 request actually loads the page from the DB.
+	 */
+	@Override
+	protected boolean serviceFromCache(HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		if (
+			queryResultCache == null
+			|| ! request.getMethod().equals("GET")
+			|| request.getParameter(EXPORT_PARAM) != null
+		) {
+			return false;
+		}
+		final var pageToken = request.getParameter(PAGE_PARAM);
+		if ( ! isValidPageToken(pageToken)) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return true;
+		}
+		final Page<QueryRecord> page = queryResultCache.get(PAGE_KEY, pageToken, pageSize);
+		if (page != null) {
+			writePage(page, response);
+			return true;
+		}
+		return serviceCoalesced(
+			request,
+			response,
+			() -> queryResultCache.getOrLoad(
+				Set.of(QueryRecord.class),
+				() -> dao.findPage(pageToken, pageSize),
+				PAGE_KEY, pageToken, pageSize
+			),
+			QueryRecordListServlet::writePage,
+			PAGE_KEY, pageToken, pageSize
+		);
+	}
+
+
+
+	/**
+	 * Fetches the requested page directly from the DB if {@link #queryResultCache} is disabled.
+	 * If {@link #EXPORT_PARAM} is present, streams all records as CSV instead.
+	 */
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
+		if (request.getParameter(EXPORT_PARAM) != null) {
+			exportCsv(response);
+			return;
+		}
+		final var pageToken = request.getParameter(PAGE_PARAM);
+		final Page<QueryRecord> page;
 		try {
-			List<QueryRecord> records = dao.findAll();
-			streamResults(records, response);
-		} catch (DaoException e) {
+			page = executeReadOnly(() -> dao.findPage(pageToken, pageSize));
+		} catch (IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		} catch (Exception e) {
 			throw new ServletException(e);
 		}
+		writePage(page, response);
 	}
 
 
 
-	static void streamResults(List<QueryRecord> records, HttpServletResponse response)
-			throws IOException {
+	/** Content type of the CSV export. */
+	static final String CSV_CONTENT_TYPE = "text/csv;charset=UTF-8";
+
+
+
+	/**
+	 * Streams all records using {@link QueryRecordDao#streamAll(PrintWriter,
+	 * ResultStreamer.RowWriter)}, so that the memory usage does not depend on the table size.
+	 */
+	void exportCsv(HttpServletResponse response) throws ServletException, IOException {
 		response.setStatus(HttpServletResponse.SC_OK);
-		PrintWriter writer = response.getWriter();
-		writer.println("<!DOCTYPE html>");
-		writer.println("<html lang='en' ><head><meta charset='utf-8' />"
-				+ "<title>query record app</title></head><body><table border='1' >");
-		writer.println("<tr><th>id</th><th>" + QueryRecord.QUERY + "</th><th>" + QueryRecord.RESULT
-				+ "</th><th>actions</th></tr>");
+		response.setContentType(CSV_CONTENT_TYPE);
+		final var writer = response.getWriter();
+		writer.print(QueryRecord.ID + ',' + QueryRecord.QUERY + ',' + QueryRecord.RESULT + "\r\n");
 		writer.flush();  // force chunked encoding
-		for (QueryRecord record: records) {
-			StringBuilder recordRowBuilder = new StringBuilder(500);
-			recordRowBuilder.append("<tr><form action='").append(SaveQueryServlet.URI)
-				.append("' method='POST' ><td><input type='hidden' name='").append(QueryRecord.ID)
-				.append("' value='").append(record.getId()).append("' />").append(record.getId())
-				.append("</td><td><input type='text' name='").append(QueryRecord.QUERY)
-				.append("' value='");
-			appendFiltered(record.getQuery(), recordRowBuilder);
-			recordRowBuilder.append("'/></td><td>");
-			appendFiltered(record.getResult(), recordRowBuilder);
-			recordRowBuilder.append("</td><td><input type='submit' value='save' />"
-					+ "</td></form></tr>");
-			writer.println(recordRowBuilder.toString());
+		try {
+			executeReadOnly(() -> dao.streamAll(writer, QueryRecordListServlet::writeCsvRow));
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ServletException(e);
 		}
-		writer.println("<tr><form action='" + SaveQueryServlet.URI + "' method='POST' >"
-			+ "<td>new</td><td><input type='text' name='" + QueryRecord.QUERY
-			+ "' /></td><td>-</td><td><input type='submit' value='save' /></td></form></tr>");
-		writer.println("</table></body></html>");
 		writer.close();
 	}
 
 
 
-	// Adapted from
-	// github.com/apache/tomcat/blob/trunk/webapps/examples/WEB-INF/classes/util/HTMLFilter.java
-	public static void appendFiltered(String message, StringBuilder target) {
-		if (message == null) return;
-		char[] content = new char[message.length()];
-		message.getChars(0, message.length(), content, 0);
-		for (char c : content) {
-			switch (c) {
-				case '<':
-					target.append("&lt;");
-					break;
-				case '>':
-					target.append("&gt;");
-					break;
-				case '&':
-					target.append("&amp;");
-					break;
-				case '"':
-					target.append("&quot;");
-					break;
-				case '\'':
-					target.append("&apos;");
-					break;
-				default:
-					target.append(c);
-			}
+	static void writeCsvRow(QueryRecord record, PrintWriter writer) {
+		writer.print(record.getId());
+		writer.print(',');
+		writer.print(quoteCsv(record.getQuery()));
+		writer.print(',');
+		writer.print(quoteCsv(record.getResult()));
+		writer.print("\r\n");
+	}
+
+
+
+	static String quoteCsv(String value) {
+		if (value == null) return "";
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+
+
+	static boolean isValidPageToken(String pageToken) {
+		if (pageToken == null) return true;
+		try {
+			KeysetPagination.LONG_KEYS.decode(pageToken);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+
+
+	/** Content type of pages rendered with {@link HtmlTemplate}s. */
+	static final String CONTENT_TYPE = "text/html;charset=UTF-8";
+
+	// constant markup is encoded only once: only ids and record values are encoded per row
+
+	static final HtmlTemplate PAGE_HEADER = new HtmlTemplate("<!DOCTYPE html>\n"
+			+ "<html lang='en' ><head><meta charset='utf-8' />"
+			+ "<title>query record app</title></head><body><table border='1' >\n"
+			+ "<tr><th>id</th><th>" + QueryRecord.QUERY + "</th><th>" + QueryRecord.RESULT
+			+ "</th><th>actions</th></tr>\n");
+
+	static final HtmlTemplate ROW = new HtmlTemplate("<tr><form action='" + SaveQueryServlet.URI
+			+ "' method='POST' ><td><input type='hidden' name='" + QueryRecord.ID
+			+ "' value='{}' />{}</td><td><input type='text' name='" + QueryRecord.QUERY
+			+ "' value='{}'/></td><td>{}</td><td><input type='submit' value='save' /></td>"
+			+ "</form></tr>\n");
+
+	static final HtmlTemplate TABLE_FOOTER = new HtmlTemplate("<tr><form action='"
+			+ SaveQueryServlet.URI + "' method='POST' ><td>new</td><td><input type='text' name='"
+			+ QueryRecord.QUERY + "' /></td><td>-</td><td><input type='submit' value='save' />"
+			+ "</td></form></tr>\n</table>\n");
+
+	static final HtmlTemplate NEXT_PAGE_LINK =
+			new HtmlTemplate("<a href='" + URI + "?" + PAGE_PARAM + "={}' >next page</a>\n");
+
+	static final HtmlTemplate PAGE_FOOTER = new HtmlTemplate("<br/><a href='" + URI + "?"
+			+ EXPORT_PARAM + "=csv' >export all records (CSV)</a>\n</body></html>\n");
+
+
+
+	static void writePage(Page<QueryRecord> page, HttpServletResponse response)
+			throws IOException {
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(CONTENT_TYPE);
+		final var out = response.getOutputStream();
+		PAGE_HEADER.write(out);
+		out.flush();  // force chunked encoding
+		for (var record: page.getItems()) {
+			final var id = record.getId().toString();
+			ROW.write(out, id, id, record.getQuery(), record.getResult());
 		}
+		TABLE_FOOTER.write(out);
+		if (page.hasNextPage()) NEXT_PAGE_LINK.write(out, page.getNextPageToken());
+		PAGE_FOOTER.write(out);
+		out.close();
 	}
 }
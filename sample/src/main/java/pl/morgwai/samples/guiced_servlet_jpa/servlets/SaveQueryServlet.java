@@ -1,6 +1,10 @@
 // Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
 package pl.morgwai.samples.guiced_servlet_jpa.servlets;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.servlet.AsyncContext;
@@ -21,7 +25,8 @@ import pl.morgwai.samples.guiced_servlet_jpa.domain.QueryRecord;
 /**
  * A servlet that communicates with multiple slow resources that provide synchronous API only (DB
  * via JPA and {@link ExternalService}). Dispatches slow operations to injected app wide
- * {@link ContextTrackingExecutor} instances dedicated to each resource.
+ * {@link ContextTrackingExecutor} instances dedicated to each resource, chaining them using
+ * {@link JpaServlet#supplyInTx(java.util.concurrent.Callable)}.
  * This avoids suspending threads from the server's main pool, while also passes context to threads
  * performing the slow operations and thus preserves request/session scoped objects
  * ({@link javax.persistence.EntityManager} in this case).
@@ -60,80 +65,66 @@ public class SaveQueryServlet extends JpaServlet {
 		// starting on server's main threadPool
 		AsyncContext asyncCtx = request.startAsync();
 		asyncCtx.setTimeout(ASYNC_CTX_TIMEOUT);
-
-		// switch to the threadPool of app wide executor associated with persistence unit's
-		// JDBC connection pool to store the query.
-		jpaExecutor.execute(response, () -> {
-			QueryRecord record;
-			String idString = request.getParameter(QueryRecord.ID);
-			try {
-				if (idString == null) {
-					record = new QueryRecord(request.getParameter(QueryRecord.QUERY));
-					executeWithinTx(() -> {dao.persist(record); return null;});
-				} else {
-					record = new QueryRecord(
-							Long.valueOf(idString), request.getParameter(QueryRecord.QUERY));
-					boolean updated = executeWithinTx(() -> dao.update(record));
-					if ( ! updated) {
-						// record was deleted in the mean time or its id was invalid
-						response.setHeader("Location", "/" + QueryRecordListServlet.URI);
-						response.setStatus(HttpServletResponse.SC_SEE_OTHER);
-						asyncCtx.complete();
-						return;
-					}
-				}
-			} catch (Exception e) {
-				logAndSendError(response, e);
-				asyncCtx.complete();
-				return;
-			} finally {
-				entityManagerProvider.get().close();
+		String idString = request.getParameter(QueryRecord.ID);
+		String query = request.getParameter(QueryRecord.QUERY);
+
+		// store the query on the threadPool of app wide executor associated with persistence
+		// unit's JDBC connection pool. The EntityManager (and its JDBC connection) is released at
+		// the end of this stage, so that the connection can be used by other requests during the
+		// long lasting call to externalService below.
+		supplyInTx(() -> {
+			if (idString == null) {
+				QueryRecord record = new QueryRecord(query);
+				dao.persist(record);
+				return record;
+			} else {
+				QueryRecord record = new QueryRecord(Long.valueOf(idString), query);
+				// null if the record was deleted in the mean time or its id was invalid
+				return dao.update(record) ? record : null;
 			}
-
-			// remove from this request's scope the associated (closed above) EntityManager
-			// before performing long lasting call to externalService, so that the JDBC connection
-			// can be used for other requests during this time
-			removeEntityManagerFromRequestScope();
+		}).thenCompose((record) -> {
+			if (record == null) return CompletableFuture.completedFuture(null);
 
 			// switch to the threadPool associated with externalService to perform a long lasting
 			// call to it
-			externalServiceExecutor.execute(response, () -> {
-				String link;
-				try {
-					link = externalService.getLink(record.getQuery());
-				} catch (Exception e) {
-					logAndSendError(response, e);
-					asyncCtx.complete();
-					return;
-				}
-
+			return CompletableFuture.supplyAsync(
+				() -> externalService.getLink(record.getQuery()),
+				externalServiceExecutor
+			).thenCompose((link) -> {
 				// switch again to the JPA threadPool to update the record with the result.
 				// a new EntityManager (and an underlying JDBC connection) will be assigned
-				jpaExecutor.execute(response, () -> {
-					record.setResult(link);
-					try {
-						executeWithinTx(() -> dao.update(record));
-						// SC_SEE_OTHER is sent instead of dispatching request to make browser's
-						// 'reload' button always safe to use on record list page
-						response.setHeader("Location", "/" + QueryRecordListServlet.URI);
-						response.setStatus(HttpServletResponse.SC_SEE_OTHER);
-					} catch (Exception e) {
-						logAndSendError(response, e);
-					} finally {
-						entityManagerProvider.get().close();
-						asyncCtx.complete();
-					}
-				});
+				record.setResult(link);
+				return supplyInTx(() -> dao.update(record));
 			});
+		}).whenComplete((ignored, error) -> {
+			if (error != null) {
+				logAndSendError(response, error);
+			} else {
+				// SC_SEE_OTHER is sent instead of dispatching request to make browser's
+				// 'reload' button always safe to use on record list page
+				response.setHeader("Location", "/" + QueryRecordListServlet.URI);
+				response.setStatus(HttpServletResponse.SC_SEE_OTHER);
+			}
+			asyncCtx.complete();
 		});
 	}
 
 
 
-	static void logAndSendError(HttpServletResponse response, Exception e) {
-		log.error("", e);
+	static void logAndSendError(HttpServletResponse response, Throwable error) {
+		if (error instanceof CompletionException && error.getCause() != null) {
+			error = error.getCause();
+		}
+		if (error instanceof RejectedExecutionException) {
+			// one of the executors is overloaded or shutting down
+			try {
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			} catch (Exception ignored) {}
+			return;
+		}
+		log.error("", error);
 		try {
-			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.toString());
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, error.toString());
 		} catch (Exception ignored) {}
 	}
 
@@ -2,7 +2,12 @@
 package pl.morgwai.samples.guiced_servlet_jpa.servlets;
 
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.CacheStoreMode;
+import javax.persistence.SharedCacheMode;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebListener;
@@ -11,7 +16,13 @@ import com.google.inject.Module;
 import com.google.inject.Scopes;
 import com.google.inject.name.Names;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pl.morgwai.base.servlet.guiced.jpa.JCacheSecondLevelCache;
+import pl.morgwai.base.servlet.guiced.jpa.JpaCachePolicy;
 import pl.morgwai.base.servlet.guiced.jpa.JpaPingingServletContextListener;
+import pl.morgwai.base.servlet.guiced.jpa.JpaWarmUp;
 import pl.morgwai.base.servlet.scopes.ContextTrackingExecutor;
 import pl.morgwai.samples.guiced_servlet_jpa.data_access.ChatLogDao;
 import pl.morgwai.samples.guiced_servlet_jpa.data_access.ExternalService;
@@ -19,6 +30,7 @@ import pl.morgwai.samples.guiced_servlet_jpa.data_access.ExternalServiceFake;
 import pl.morgwai.samples.guiced_servlet_jpa.data_access.JpaChatLogDao;
 import pl.morgwai.samples.guiced_servlet_jpa.data_access.JpaQueryRecordDao;
 import pl.morgwai.samples.guiced_servlet_jpa.data_access.QueryRecordDao;
+import pl.morgwai.samples.guiced_servlet_jpa.domain.QueryRecord;
 
 
 
@@ -48,6 +60,70 @@ public class ServletContextListener extends JpaPingingServletContextListener {
 
 
 
+	@Override
+	protected int getMainJpaWriteBatchSize() {
+		return 50;  // chat messages are inserted in batches by BatchingJpaWriter
+	}
+
+
+
+	@Override
+	protected List<Class<?>> getNamedQueryClasses(String persistenceUnitName) {
+		return List.of(JpaQueryRecordDao.class, JpaChatLogDao.class);
+	}
+
+
+
+	@Override
+	protected boolean shouldWarmUpPersistenceUnits() {
+		return true;  // pre-create connections and compile the most frequent query
+	}
+
+	@Override
+	protected List<JpaWarmUp.Query> getWarmUpQueries(String persistenceUnitName) {
+		return List.of((entityManager) -> entityManager
+			.createQuery("select r from " + QueryRecord.class.getSimpleName() + " r")
+			.setMaxResults(1)
+			.getResultList());
+	}
+
+
+
+	@Override
+	protected int getMainQueryResultCacheSize() {
+		return 100;  // QueryRecordListServlet serves repeated GETs from the cache
+	}
+
+
+
+	@Override
+	protected Map<String, Object> getPersistenceUnitProperties(String persistenceUnitName) {
+		// bounded Ehcache regions with statistics: see src/main/resources/ehcache.xml
+		return JCacheSecondLevelCache.getHibernateProperties(persistenceUnitName, "ehcache.xml");
+	}
+
+	@Override
+	protected SharedCacheMode getSharedCacheMode(String persistenceUnitName) {
+		// only @Cacheable entities (QueryRecord) are stored in the second-level cache
+		return SharedCacheMode.ENABLE_SELECTIVE;
+	}
+
+	@Override
+	protected void configureCachePolicy(String persistenceUnitName, JpaCachePolicy cachePolicy) {
+		// CSV export scans all records: don't let it push hot entries out of the bounded cache
+		cachePolicy.setQueryCacheModes(JpaQueryRecordDao.STREAM_ALL_CACHE_POLICY_NAME,
+				CacheRetrieveMode.USE, CacheStoreMode.BYPASS);
+	}
+
+
+
+	@Override
+	protected boolean shouldUseLazyEntityManagers() {
+		return true;  // requests that do not touch JPA will not create EntityManagers
+	}
+
+
+
 	@Override
 	protected LinkedList<Module> configureInjections() {
 		var modules = new LinkedList<Module>();
@@ -88,6 +164,13 @@ public class ServletContextListener extends JpaPingingServletContextListener {
 	@Override
 	public void contextDestroyed(ServletContextEvent event) {
 		ChatEndpoint.shutdown();
+		if (mainCachePolicy != null) {
+			log.info("second-level cache statistics: " + mainCachePolicy.getCacheStatistics());
+		}
 		super.contextDestroyed(event);
 	}
+
+
+
+	static final Logger log = LoggerFactory.getLogger(ServletContextListener.class.getName());
 }
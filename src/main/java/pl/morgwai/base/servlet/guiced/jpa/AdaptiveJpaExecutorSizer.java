@@ -0,0 +1,281 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+
+/**
+ * Periodically grows or shrinks the thread pool of a JPA executor between configured bounds based
+ * on measured task queue wait, task run time and JDBC connection acquisition latency.
+ * <p>
+ * Measurements are reported by {@link JpaServlet}s and {@link SimpleAsyncJpaServlet}s associated
+ * with the executor's persistence unit: each task dispatched to the executor is enclosed with
+ * {@link #startTask(long)} and {@link #finishTask(long)} and JDBC connection acquisitions
+ * performed by the task's thread in between are attributed to that task. Acquisitions made
+ * outside of such tasks are ignored, so that all the averages below come from the same tasks.
+ * Every {@link #start(ScheduledExecutorService, long) interval} the sizer compares averages from
+ * the last window:</p>
+ * <ul>
+ *   <li>if tasks spend on average more than {@link #CONNECTION_WAIT_SHRINK_RATIO} of their own run
+ *       time awaiting a JDBC connection, then the pool is bigger than the connection pool can
+ *       serve and is shrunk by 1 thread,</li>
+ *   <li>otherwise if all the threads are busy and either tasks are awaiting in the queue or they
+ *       were awaiting on average longer than {@link #QUEUE_WAIT_GROWTH_RATIO} of their run time,
+ *       the pool is grown by {@link #GROWTH_RATIO} of its size (at least 1 thread),</li>
+ *   <li>otherwise if less than a half of the threads were busy, the pool is shrunk by 1
+ *       thread.</li>
+ * </ul>
+ * <p>
+ * The numbers used for the last decision are exported via getters and JMX (see
+ * {@link AdaptiveJpaExecutorSizerMBean}).</p>
+ * @see JpaServletContextListener#getMainJpaThreadPoolMaxSize()
+ */
+public class AdaptiveJpaExecutorSizer implements AdaptiveJpaExecutorSizerMBean {
+
+
+
+	/**
+	 * If tasks spend more than this fraction of their run time awaiting a JDBC connection, the
+	 * pool is shrunk.
+	 */
+	public static final double CONNECTION_WAIT_SHRINK_RATIO = 0.2;
+
+	/**
+	 * If all the threads are busy and tasks spend in the queue on average more than this fraction
+	 * of their run time, the pool is grown.
+	 */
+	public static final double QUEUE_WAIT_GROWTH_RATIO = 0.1;
+
+	/** Fraction of the current pool size by which the pool is grown when tasks are queueing. */
+	public static final double GROWTH_RATIO = 0.1;
+
+
+
+	final String name;
+	final ThreadPoolExecutor executor;
+	final int minPoolSize;
+	final int maxPoolSize;
+
+	final LongAdder queueWaitNanos = new LongAdder();
+	final LongAdder runNanos = new LongAdder();
+	final LongAdder completedTasks = new LongAdder();
+	final LongAdder connectionAcquisitionNanos = new LongAdder();
+	final DoubleAdder connectionWaitRatios = new DoubleAdder();
+
+	/**
+	 * Queue wait and connection acquisition time of the task currently run by a given thread.
+	 * Negative queue wait means that the thread is not running a task of this sizer's executor.
+	 */
+	final ThreadLocal<long[]> currentTask = ThreadLocal.withInitial(() -> new long[] {-1l, 0l});
+	static final int QUEUE_WAIT = 0;
+	static final int CONNECTION_ACQUISITION = 1;
+
+	volatile long lastAvgQueueWaitMicros;
+	volatile long lastAvgRunMicros;
+	volatile long lastAvgConnectionAcquisitionMicros;
+	volatile double lastAvgConnectionWaitRatio;
+	volatile double lastThroughput;
+	volatile int lastActiveCount;
+	volatile long lastAdjustmentNanos = System.nanoTime();
+
+	ScheduledFuture<?> adjustments;
+	ObjectName objectName;
+
+
+
+	/**
+	 * Creates a new sizer for {@code executor}. The executor's pool size is immediately set to
+	 * {@code minPoolSize}.
+	 * @param name used in logs and JMX {@link ObjectName}.
+	 */
+	public AdaptiveJpaExecutorSizer(
+			String name, ThreadPoolExecutor executor, int minPoolSize, int maxPoolSize) {
+		if (minPoolSize < 1 || maxPoolSize < minPoolSize) {
+			throw new IllegalArgumentException(
+					"pool size bounds must satisfy 1 <= minPoolSize <= maxPoolSize");
+		}
+		this.name = name;
+		this.executor = executor;
+		this.minPoolSize = minPoolSize;
+		this.maxPoolSize = maxPoolSize;
+		setPoolSize(minPoolSize);
+	}
+
+
+
+	/**
+	 * Must be called by an executor's thread when it starts running a task.
+	 * @param queueWaitNanos for how long the task was awaiting in the executor's queue.
+	 */
+	public void startTask(long queueWaitNanos) {
+		final var task = currentTask.get();
+		task[QUEUE_WAIT] = queueWaitNanos;
+		task[CONNECTION_ACQUISITION] = 0l;
+	}
+
+	/**
+	 * Records for how long the current thread was awaiting a JDBC connection (usually measured as
+	 * duration of {@link javax.persistence.EntityTransaction#begin()}). The time is attributed to
+	 * the task started with {@link #startTask(long)} on this thread. If the thread is not running
+	 * such a task, the time is ignored.
+	 */
+	public void recordConnectionAcquisition(long nanos) {
+		final var task = currentTask.get();
+		if (task[QUEUE_WAIT] >= 0l) task[CONNECTION_ACQUISITION] += nanos;
+	}
+
+	/**
+	 * Must be called by an executor's thread when it finishes running the task started with
+	 * {@link #startTask(long)}. Records the task's queue wait, run time and connection acquisition
+	 * time together.
+	 * @param taskRunNanos for how long the task was running on the thread.
+	 */
+	public void finishTask(long taskRunNanos) {
+		final var task = currentTask.get();
+		if (task[QUEUE_WAIT] < 0l) return;
+		final var acquisition = task[CONNECTION_ACQUISITION];
+		queueWaitNanos.add(task[QUEUE_WAIT]);
+		runNanos.add(taskRunNanos);
+		connectionAcquisitionNanos.add(acquisition);
+		if (taskRunNanos > 0l) connectionWaitRatios.add(((double) acquisition) / taskRunNanos);
+		completedTasks.increment();
+		task[QUEUE_WAIT] = -1l;
+	}
+
+
+
+	/**
+	 * Starts periodic adjustments on {@code scheduler} and registers this sizer in the platform
+	 * {@link javax.management.MBeanServer}.
+	 */
+	public synchronized void start(ScheduledExecutorService scheduler, long intervalMillis) {
+		adjustments = scheduler.scheduleWithFixedDelay(
+				this::adjustPoolSize, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		try {
+			objectName = new ObjectName(JMX_DOMAIN + ":type=" + getClass().getSimpleName()
+					+ ",name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		} catch (JMException e) {
+			log.warn("could not register " + name + " sizer in JMX", e);
+			objectName = null;
+		}
+	}
+
+	/** Domain of JMX {@link ObjectName}s of beans exported by this lib. */
+	public static final String JMX_DOMAIN = "pl.morgwai.base.servlet.guiced.jpa";
+
+
+
+	/** Stops adjustments and unregisters this sizer from JMX. */
+	public synchronized void stop() {
+		if (adjustments != null) adjustments.cancel(false);
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException ignored) {}
+			objectName = null;
+		}
+	}
+
+
+
+	void adjustPoolSize() {
+		try {
+			final var now = System.nanoTime();
+			final var windowNanos = Math.max(1l, now - lastAdjustmentNanos);
+			lastAdjustmentNanos = now;
+			final var tasks = completedTasks.sumThenReset();
+			final var queueWait = queueWaitNanos.sumThenReset();
+			final var run = runNanos.sumThenReset();
+			final var acquisition = connectionAcquisitionNanos.sumThenReset();
+			final var connectionWaitRatio = connectionWaitRatios.sumThenReset();
+
+			lastAvgQueueWaitMicros = tasks > 0 ? queueWait / tasks / 1000l : 0l;
+			lastAvgRunMicros = tasks > 0 ? run / tasks / 1000l : 0l;
+			lastAvgConnectionAcquisitionMicros = tasks > 0 ? acquisition / tasks / 1000l : 0l;
+			lastAvgConnectionWaitRatio = tasks > 0 ? connectionWaitRatio / tasks : 0.0;
+			lastThroughput = tasks * 1_000_000_000.0 / windowNanos;
+			lastActiveCount = executor.getActiveCount();
+
+			final var poolSize = executor.getMaximumPoolSize();
+			final var queued = executor.getQueue().size();
+			int newPoolSize = poolSize;
+			if (lastAvgConnectionWaitRatio > CONNECTION_WAIT_SHRINK_RATIO) {
+				newPoolSize = poolSize - 1;
+			} else if (
+				lastActiveCount >= poolSize
+				&& (queued > 0 || queueWait > QUEUE_WAIT_GROWTH_RATIO * run)
+			) {
+				newPoolSize = poolSize + Math.max(1, (int) (poolSize * GROWTH_RATIO));
+			} else if (lastActiveCount < poolSize / 2) {
+				newPoolSize = poolSize - 1;
+			}
+			newPoolSize = Math.max(minPoolSize, Math.min(maxPoolSize, newPoolSize));
+			if (newPoolSize != poolSize) {
+				setPoolSize(newPoolSize);
+				if (log.isDebugEnabled()) {
+					log.debug(name + " pool size " + poolSize + " -> " + newPoolSize
+							+ " (queueWait=" + lastAvgQueueWaitMicros + "us, run="
+							+ lastAvgRunMicros + "us, connectionAcquisition="
+							+ lastAvgConnectionAcquisitionMicros + "us, connectionWaitRatio="
+							+ lastAvgConnectionWaitRatio + ", active="
+							+ lastActiveCount + ", queued=" + queued + ")");
+				}
+			}
+		} catch (Throwable e) {
+			// an exception would cancel further adjustments
+			log.error("failed to adjust pool size of " + name, e);
+		}
+	}
+
+
+
+	void setPoolSize(int newPoolSize) {
+		if (newPoolSize > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(newPoolSize);
+			executor.setCorePoolSize(newPoolSize);
+		} else {
+			executor.setCorePoolSize(newPoolSize);
+			executor.setMaximumPoolSize(newPoolSize);
+		}
+	}
+
+
+
+	@Override public String getName() { return name; }
+	@Override public int getMinPoolSize() { return minPoolSize; }
+	@Override public int getMaxPoolSize() { return maxPoolSize; }
+	@Override public int getPoolSize() { return executor.getMaximumPoolSize(); }
+	@Override public int getQueueSize() { return executor.getQueue().size(); }
+	@Override public int getLastActiveCount() { return lastActiveCount; }
+	@Override public long getLastAvgQueueWaitMicros() { return lastAvgQueueWaitMicros; }
+	@Override public long getLastAvgRunMicros() { return lastAvgRunMicros; }
+	@Override public double getLastThroughput() { return lastThroughput; }
+
+	@Override
+	public double getLastAvgConnectionWaitRatio() {
+		return lastAvgConnectionWaitRatio;
+	}
+
+	@Override
+	public long getLastAvgConnectionAcquisitionMicros() {
+		return lastAvgConnectionAcquisitionMicros;
+	}
+
+
+
+	static final Logger log = LoggerFactory.getLogger(AdaptiveJpaExecutorSizer.class.getName());
+}
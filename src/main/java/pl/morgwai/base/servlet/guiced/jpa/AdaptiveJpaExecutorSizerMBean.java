@@ -0,0 +1,38 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+
+
+/**
+ * JMX view of an {@link AdaptiveJpaExecutorSizer}: current pool size, its bounds and the numbers
+ * used for the last sizing decision.
+ */
+public interface AdaptiveJpaExecutorSizerMBean {
+
+	String getName();
+	int getMinPoolSize();
+	int getMaxPoolSize();
+	int getPoolSize();
+	int getQueueSize();
+
+	/** Number of busy threads at the time of the last sizing decision. */
+	int getLastActiveCount();
+
+	/** Average time tasks were awaiting in the queue during the last window. */
+	long getLastAvgQueueWaitMicros();
+
+	/** Average task run time during the last window. */
+	long getLastAvgRunMicros();
+
+	/** Average JDBC connection acquisition time per task during the last window. */
+	long getLastAvgConnectionAcquisitionMicros();
+
+	/**
+	 * Average fraction of their own run time that tasks spent awaiting a JDBC connection during
+	 * the last window.
+	 */
+	double getLastAvgConnectionWaitRatio();
+
+	/** Completed tasks per second during the last window. */
+	double getLastThroughput();
+}
@@ -0,0 +1,195 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+
+/**
+ * Write-behind inserter that gathers entities passed to {@link #persist(Object)} by many
+ * concurrent callers and inserts them in batches: each batch is persisted in a single transaction
+ * on a fresh {@link EntityManager} on the executor associated with the persistence unit. A batch is
+ * dispatched as soon as it reaches {@code maxBatchSize} entities or {@code maxDelayMillis} after
+ * its first entity was added, whichever comes first. This replaces a separate transaction and
+ * commit per entity with 1 per batch.
+ * <p>
+ * If the underlying session is a Hibernate one, its JDBC batch size is set to the size of the
+ * batch (Hibernate is accessed reflectively, so this class does not depend on it). Note however
+ * that Hibernate silently disables JDBC insert batching for entities with
+ * {@link javax.persistence.GenerationType#IDENTITY IDENTITY} generated ids: such entities are
+ * still written in 1 transaction per batch, but with 1 JDBC round-trip per entity.
+ * {@link javax.persistence.GenerationType#SEQUENCE SEQUENCE} ids with an allocation size greater
+ * than 1 allow for full batching.</p>
+ * <p>
+ * If a batch transaction fails, each of its entities is retried in a separate transaction, so
+ * that 1 invalid entity does not fail the others. As the state of entities after a rollback is
+ * undefined in JPA, retries use {@link EntityManager#merge(Object)}: futures of retried entities
+ * are completed with the merged copy instead of the original instance.</p>
+ * <p>
+ * Batches are {@link GroupCommitCoordinator groups} of persist operations, so batching, scheduling
+ * and the fallback are shared with {@link GroupCommitCoordinator}.</p>
+ * <p>
+ * Instances are thread-safe.</p>
+ * @see JpaServletContextListener#createBatchingJpaWriter(String, EntityManagerFactory, Executor,
+ *     int)
+ */
+public class BatchingJpaWriter implements AutoCloseable {
+
+
+
+	final GroupCommitCoordinator coordinator;
+
+	public String getName() { return coordinator.getName(); }
+	public int getMaxBatchSize() { return coordinator.getMaxGroupSize(); }
+	public long getMaxDelayMillis() { return coordinator.getWindowMillis(); }
+
+
+
+	/**
+	 * @param jpaExecutor executor associated with the persistence unit of
+	 *     <code>entityManagerFactory</code>, on which batches are written.
+	 * @param scheduler used to dispatch batches that did not reach <code>maxBatchSize</code> after
+	 *     <code>maxDelayMillis</code>.
+	 */
+	public BatchingJpaWriter(
+		String name,
+		EntityManagerFactory entityManagerFactory,
+		Executor jpaExecutor,
+		ScheduledExecutorService scheduler,
+		int maxBatchSize,
+		long maxDelayMillis
+	) {
+		if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be at least 1");
+		if (maxDelayMillis < 0l) throw new IllegalArgumentException("maxDelayMillis must be >= 0");
+		coordinator = new GroupCommitCoordinator(
+				name, entityManagerFactory, jpaExecutor, scheduler, maxBatchSize, maxDelayMillis) {
+
+			@Override
+			void prepareEntityManager(EntityManager entityManager, int batchSize) {
+				setJdbcBatchSize(entityManager, batchSize);
+			}
+		};
+	}
+
+
+
+	/**
+	 * Adds <code>entity</code> to the current batch.
+	 * @return future completed with the persisted entity after the transaction of its batch is
+	 *     committed or completed exceptionally if persisting fails.
+	 * @throws IllegalStateException if this writer has been {@link #close() closed}.
+	 * @throws RejectedExecutionException if the delayed dispatch of a new batch could not be
+	 *     scheduled (for example because the scheduler has been shut down). <code>entity</code>
+	 *     is not added to any batch in such case.
+	 */
+	public <T> CompletableFuture<T> persist(T entity) {
+		return coordinator.executeWithinGroupTx(new PersistOperation<>(entity));
+	}
+
+
+
+	/** Dispatches the current batch immediately regardless of its size. */
+	public void flush() {
+		coordinator.flush();
+	}
+
+
+
+	/**
+	 * {@link #flush() Flushes} the current batch and makes subsequent calls to
+	 * {@link #persist(Object)} throw an {@link IllegalStateException}. Does not wait for dispatched
+	 * batches to be written: this should be ensured by shutting down the executor afterwards.
+	 */
+	@Override
+	public void close() {
+		coordinator.close();
+	}
+
+
+
+	/**
+	 * Persists its entity on the 1st execution. As the state of the entity after a rollback is
+	 * undefined, replays merge it instead.
+	 */
+	static class PersistOperation<T> implements GroupCommitCoordinator.Operation<T> {
+
+		final T entity;
+		boolean executed = false;
+
+		PersistOperation(T entity) { this.entity = entity; }
+
+		@Override
+		public T execute(EntityManager entityManager) {
+			if (executed) return entityManager.merge(entity);
+			executed = true;
+			entityManager.persist(entity);
+			return entity;
+		}
+	}
+
+
+
+	/** Number of successfully committed batches. */
+	public long getBatchCount() { return coordinator.getGroupCount(); }
+
+	/** Number of successfully persisted entities (including those retried one by one). */
+	public long getPersistedCount() { return coordinator.getCompletedOperationCount(); }
+
+	/** Number of batch transactions that failed. Batches of more than 1 entity are retried. */
+	public long getFailedBatchCount() { return coordinator.getFailedGroupCount(); }
+
+	/** Number of entities whose futures were completed exceptionally. */
+	public long getFailedCount() { return coordinator.getFailedOperationCount(); }
+
+	/** Number of entities in the current not yet dispatched batch. */
+	public int getPendingCount() { return coordinator.getPendingCount(); }
+
+
+
+	/**
+	 * Sets JDBC batch size of <code>entityManager</code>'s session if it's a Hibernate one,
+	 * does nothing otherwise.
+	 */
+	static void setJdbcBatchSize(EntityManager entityManager, int batchSize) {
+		final Object session;
+		try {
+			session = entityManager.getDelegate();
+		} catch (RuntimeException e) {
+			return;
+		}
+		final var setter = JDBC_BATCH_SIZE_SETTERS.get(session.getClass());
+		if (setter == null) return;
+		try {
+			setter.invoke(session, batchSize);
+		} catch (ReflectiveOperationException e) {
+			log.debug("could not set JDBC batch size", e);
+		}
+	}
+
+	/** {@code null} values indicate that a given class is not a Hibernate session. */
+	static final ClassValue<Method> JDBC_BATCH_SIZE_SETTERS = new ClassValue<>() {
+
+		@Override
+		protected Method computeValue(Class<?> sessionClass) {
+			try {
+				return sessionClass.getMethod("setJdbcBatchSize", Integer.class);
+			} catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+	};
+
+
+
+	static final Logger log = LoggerFactory.getLogger(BatchingJpaWriter.class.getName());
+}
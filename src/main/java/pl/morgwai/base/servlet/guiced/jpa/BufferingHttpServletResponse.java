@@ -0,0 +1,168 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+
+/**
+ * Response wrapper that buffers the whole body in memory, so that it can be sent to the client
+ * later using non-blocking IO by {@link #writeNonBlocking(AsyncContext)}. Status and headers are
+ * passed to the wrapped response directly.
+ * <p>
+ * This allows a thread that renders a response (for example a JPA executor thread holding a JDBC
+ * connection) to be released as soon as rendering is finished, instead of being blocked for as
+ * long as a slow client takes to read the response. The cost is that the whole response is kept
+ * in memory until it's sent, so this should not be used for very large responses.</p>
+ * <p>
+ * {@link #flushBuffer()} and flushing of the writer or output stream obtained from this wrapper
+ * do <b>not</b> commit the response.</p>
+ * @see SimpleAsyncJpaServlet#shouldWriteResponseNonBlocking(javax.servlet.http.HttpServletRequest)
+ */
+public class BufferingHttpServletResponse extends HttpServletResponseWrapper {
+
+
+
+	/** Size of chunks passed to {@link ServletOutputStream#write(byte[], int, int)}. */
+	public static final int WRITE_CHUNK_SIZE = 8192;
+
+	final Buffer buffer = new Buffer();
+	PrintWriter writer;
+	ServletOutputStream outputStream;
+
+
+
+	public BufferingHttpServletResponse(HttpServletResponse response) { super(response); }
+
+
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (outputStream != null) throw new IllegalStateException("getOutputStream() already called");
+		if (writer == null) {
+			writer = new PrintWriter(new OutputStreamWriter(
+					buffer, Charset.forName(getResponse().getCharacterEncoding())));
+		}
+		return writer;
+	}
+
+
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (writer != null) throw new IllegalStateException("getWriter() already called");
+		if (outputStream == null) {
+			outputStream = new ServletOutputStream() {
+
+				@Override public void write(int b) { buffer.write(b); }
+				@Override public void write(byte[] b, int off, int len) { buffer.write(b, off, len); }
+				@Override public boolean isReady() { return true; }
+
+				@Override
+				public void setWriteListener(WriteListener writeListener) {
+					throw new IllegalStateException("response is being buffered");
+				}
+			};
+		}
+		return outputStream;
+	}
+
+
+
+	/** Flushes the writer into the buffer. Does <b>not</b> commit the response. */
+	@Override
+	public void flushBuffer() {
+		if (writer != null) writer.flush();
+	}
+
+	@Override
+	public void resetBuffer() {
+		getResponse().resetBuffer();
+		if (writer != null) writer.flush();
+		buffer.reset();
+	}
+
+	@Override
+	public void reset() {
+		getResponse().reset();
+		if (writer != null) writer.flush();
+		buffer.reset();
+	}
+
+	/** Returns the number of bytes buffered so far. */
+	public int getBufferedSize() {
+		if (writer != null) writer.flush();
+		return buffer.size();
+	}
+
+
+
+	/**
+	 * Writes the buffered body to the wrapped response using a {@link WriteListener} and
+	 * completes <code>asyncCtx</code> when all the data are written or an error occurs.
+	 * {@code Content-Length} is set to the size of the buffered body if the response does not
+	 * contain it yet. If the response has already been committed (for example by
+	 * {@link #sendError(int)}), just completes <code>asyncCtx</code>.
+	 * <p>
+	 * Returns immediately: writing is performed by container threads whenever the client is
+	 * ready to receive more data.</p>
+	 */
+	public void writeNonBlocking(AsyncContext asyncCtx) throws IOException {
+		if (writer != null) writer.flush();
+		final var response = (HttpServletResponse) getResponse();
+		if (response.isCommitted()) {
+			asyncCtx.complete();
+			return;
+		}
+		if ( ! response.containsHeader("Content-Length")) response.setContentLength(buffer.size());
+		final var output = response.getOutputStream();
+		output.setWriteListener(new WriteListener() {
+
+			int position = 0;
+
+			@Override
+			public void onWritePossible() throws IOException {
+				while (output.isReady()) {
+					if (position >= buffer.size()) {
+						asyncCtx.complete();
+						return;
+					}
+					final var length = Math.min(WRITE_CHUNK_SIZE, buffer.size() - position);
+					output.write(buffer.array(), position, length);
+					position += length;
+				}
+			}
+
+			@Override
+			public void onError(Throwable error) {
+				log.debug("non-blocking write failed, probably just a broken connection", error);
+				asyncCtx.complete();
+			}
+		});
+	}
+
+
+
+	static class Buffer extends ByteArrayOutputStream {
+
+		/** Returns the internal array without copying. Valid up to {@link #size()}. */
+		byte[] array() { return buf; }
+	}
+
+
+
+	static final Logger log = LoggerFactory.getLogger(BufferingHttpServletResponse.class.getName());
+}
@@ -0,0 +1,172 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.persistence.*;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.metamodel.Metamodel;
+
+
+
+/**
+ * {@link EntityManagerFactory} of a persistence unit that is being bootstrapped in the background.
+ * All methods (except {@link #isBootstrapped()}, {@link #isOpen()} and {@link #close()}) block
+ * until the bootstrap is finished and then delegate to the actual {@link EntityManagerFactory}. If
+ * the bootstrap failed, they throw a {@link PersistenceException} with the failure as the cause.
+ * <p>
+ * This way components that store {@link EntityManagerFactory} references (request-scoped
+ * {@link EntityManager} providers, {@link BatchingJpaWriter}s etc) can be created before the
+ * persistence unit is ready and only the first actual use has to wait.</p>
+ * <p>
+ * Instances are thread-safe.</p>
+ * @see JpaServletContextListener#shouldBootstrapPersistenceUnitsInBackground()
+ */
+public class DeferredEntityManagerFactory implements EntityManagerFactory {
+
+
+
+	final String persistenceUnitName;
+	public String getPersistenceUnitName() { return persistenceUnitName; }
+
+	final CompletableFuture<EntityManagerFactory> bootstrap;
+	volatile boolean closed = false;
+
+
+
+	/**
+	 * @param bootstrap future completed with the actual {@link EntityManagerFactory} of
+	 *     <code>persistenceUnitName</code> once it's created.
+	 */
+	public DeferredEntityManagerFactory(
+		String persistenceUnitName,
+		CompletableFuture<EntityManagerFactory> bootstrap
+	) {
+		this.persistenceUnitName = persistenceUnitName;
+		this.bootstrap = bootstrap;
+	}
+
+
+
+	/**
+	 * Whether the bootstrap is finished (either successfully or not), so that calls to other
+	 * methods will not block.
+	 */
+	public boolean isBootstrapped() { return bootstrap.isDone(); }
+
+	/** Whether the bootstrap finished successfully. Does not block. */
+	public boolean isReady() {
+		return bootstrap.isDone() && ! bootstrap.isCompletedExceptionally();
+	}
+
+	/**
+	 * Whether the bootstrap failed. Does not block. A factory whose bootstrap failed never becomes
+	 * ready: the webapp needs to be redeployed.
+	 */
+	public boolean isBootstrapFailed() { return bootstrap.isCompletedExceptionally(); }
+
+	/**
+	 * Returns the actual {@link EntityManagerFactory} awaiting for the bootstrap to finish if
+	 * needed.
+	 * @throws PersistenceException if the bootstrap failed.
+	 */
+	public EntityManagerFactory getEntityManagerFactory() {
+		try {
+			return bootstrap.join();
+		} catch (CompletionException e) {
+			throw new PersistenceException(
+					"bootstrap of persistence unit " + persistenceUnitName + " failed",
+					e.getCause());
+		}
+	}
+
+
+
+	/**
+	 * Returns {@code false} if {@link #close()} was called or the bootstrap failed. Does not block.
+	 */
+	@Override
+	public boolean isOpen() {
+		if (closed || bootstrap.isCompletedExceptionally()) return false;
+		if ( ! bootstrap.isDone()) return true;
+		return bootstrap.join().isOpen();
+	}
+
+	/**
+	 * Closes the actual {@link EntityManagerFactory}. If the bootstrap is still in progress, does
+	 * not block: the actual {@link EntityManagerFactory} will be closed right after it's created.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		bootstrap.thenAccept(EntityManagerFactory::close);
+	}
+
+
+
+	@Override
+	public EntityManager createEntityManager() {
+		return getEntityManagerFactory().createEntityManager();
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public EntityManager createEntityManager(Map properties) {
+		return getEntityManagerFactory().createEntityManager(properties);
+	}
+
+	@Override
+	public EntityManager createEntityManager(SynchronizationType synchronizationType) {
+		return getEntityManagerFactory().createEntityManager(synchronizationType);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public EntityManager createEntityManager(
+			SynchronizationType synchronizationType, Map properties) {
+		return getEntityManagerFactory().createEntityManager(synchronizationType, properties);
+	}
+
+	@Override
+	public CriteriaBuilder getCriteriaBuilder() {
+		return getEntityManagerFactory().getCriteriaBuilder();
+	}
+
+	@Override
+	public Metamodel getMetamodel() {
+		return getEntityManagerFactory().getMetamodel();
+	}
+
+	@Override
+	public Map<String, Object> getProperties() {
+		return getEntityManagerFactory().getProperties();
+	}
+
+	@Override
+	public Cache getCache() {
+		return getEntityManagerFactory().getCache();
+	}
+
+	@Override
+	public PersistenceUnitUtil getPersistenceUnitUtil() {
+		return getEntityManagerFactory().getPersistenceUnitUtil();
+	}
+
+	@Override
+	public void addNamedQuery(String name, Query query) {
+		getEntityManagerFactory().addNamedQuery(name, query);
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> cls) {
+		if (cls.isInstance(this)) return cls.cast(this);
+		return getEntityManagerFactory().unwrap(cls);
+	}
+
+	@Override
+	public <T> void addNamedEntityGraph(String graphName, EntityGraph<T> entityGraph) {
+		getEntityManagerFactory().addNamedEntityGraph(graphName, entityGraph);
+	}
+}
@@ -0,0 +1,318 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+
+/**
+ * Merges small independent transactions submitted concurrently to
+ * {@link #executeWithinGroupTx(Operation)} into a single physical transaction, so that they share
+ * 1 commit (and thus 1 log flush of the DB) instead of paying for 1 each. A group is dispatched to
+ * the executor associated with the persistence unit as soon as it reaches {@code maxGroupSize}
+ * operations or {@code windowMillis} after its first operation was submitted, whichever comes
+ * first. All operations of a group are executed on the same {@link EntityManager} within the same
+ * transaction and their futures are completed only after the commit.
+ * <p>
+ * If the group transaction fails (either because 1 of the operations threw or because of the
+ * commit), it's rolled back and each operation is replayed alone in a separate transaction on a
+ * fresh {@link EntityManager}, so that the outcome of each operation is the same as if it was
+ * never grouped.</p>
+ * <p>
+ * Operations are compatible for grouping if they:</p>
+ * <ul>
+ *   <li>use exclusively the {@link EntityManager} passed to them (request-scoped ones from
+ *       {@link JpaServlet#entityManagerProvider} are <b>not</b> part of the group
+ *       transaction),</li>
+ *   <li>do not depend on each other's effects and do not modify the same rows (otherwise they
+ *       would see each other's uncommitted changes or their effects would be merged),</li>
+ *   <li>do not {@link EntityManager#clear() clear} or {@link EntityManager#close() close} the
+ *       {@link EntityManager} nor control its transaction,</li>
+ *   <li>can be safely re-executed from scratch (as they may be replayed after a rollback).</li>
+ * </ul>
+ * <p>
+ * Grouping trades a small latency increase (at most {@code windowMillis}) for fewer commits, so
+ * it pays off only under write-heavy load.</p>
+ * <p>
+ * Instances are thread-safe.</p>
+ * @see JpaServletContextListener#createGroupCommitCoordinator(String, EntityManagerFactory,
+ *     Executor, int)
+ * @see JpaServlet#executeWithinGroupTx(Operation)
+ */
+public class GroupCommitCoordinator implements AutoCloseable {
+
+
+
+	/** Unit of work that may be grouped with others within a single transaction. */
+	@FunctionalInterface
+	public interface Operation<T> {
+		T execute(EntityManager entityManager) throws Exception;
+	}
+
+
+
+	final String name;
+	public String getName() { return name; }
+
+	final EntityManagerFactory entityManagerFactory;
+	final Executor jpaExecutor;
+	final ScheduledExecutorService scheduler;
+
+	final int maxGroupSize;
+	public int getMaxGroupSize() { return maxGroupSize; }
+
+	final long windowMillis;
+	public long getWindowMillis() { return windowMillis; }
+
+	final Object lock = new Object();
+	List<PendingOperation<?>> pending;  // guarded by lock
+	ScheduledFuture<?> scheduledDispatch;  // guarded by lock
+	boolean closed = false;  // guarded by lock
+
+	final LongAdder groupCount = new LongAdder();
+	final LongAdder groupedOperationCount = new LongAdder();
+	final LongAdder failedGroupCount = new LongAdder();
+	final LongAdder replayedOperationCount = new LongAdder();
+	final LongAdder completedOperationCount = new LongAdder();
+	final LongAdder failedOperationCount = new LongAdder();
+
+
+
+	/**
+	 * @param jpaExecutor executor associated with the persistence unit of
+	 *     <code>entityManagerFactory</code>, on which group transactions are executed.
+	 * @param scheduler used to dispatch groups that did not reach <code>maxGroupSize</code> after
+	 *     <code>windowMillis</code>.
+	 */
+	public GroupCommitCoordinator(
+		String name,
+		EntityManagerFactory entityManagerFactory,
+		Executor jpaExecutor,
+		ScheduledExecutorService scheduler,
+		int maxGroupSize,
+		long windowMillis
+	) {
+		if (maxGroupSize < 1) throw new IllegalArgumentException("maxGroupSize must be at least 1");
+		if (windowMillis < 0l) throw new IllegalArgumentException("windowMillis must be >= 0");
+		this.name = name;
+		this.entityManagerFactory = entityManagerFactory;
+		this.jpaExecutor = jpaExecutor;
+		this.scheduler = scheduler;
+		this.maxGroupSize = maxGroupSize;
+		this.windowMillis = windowMillis;
+		pending = new ArrayList<>(maxGroupSize);
+	}
+
+
+
+	/**
+	 * Adds <code>operation</code> to the current group.
+	 * @return future completed with the result of <code>operation</code> after the transaction it
+	 *     was executed in is committed or completed exceptionally if <code>operation</code> fails
+	 *     when executed alone.
+	 * @throws IllegalStateException if this coordinator has been {@link #close() closed}.
+	 * @throws RejectedExecutionException if the delayed dispatch of a new group could not be
+	 *     scheduled (for example because the scheduler has been shut down).
+	 *     <code>operation</code> is not added to any group in such case.
+	 */
+	public <T> CompletableFuture<T> executeWithinGroupTx(Operation<T> operation) {
+		final var pendingOperation = new PendingOperation<>(operation);
+		List<PendingOperation<?>> group = null;
+		synchronized (lock) {
+			if (closed) throw new IllegalStateException(name + " is closed");
+			if (pending.isEmpty() && maxGroupSize > 1) {
+				// schedule before adding, so that a rejection leaves no orphaned operation behind
+				scheduledDispatch = scheduler.schedule(
+						this::flush, windowMillis, TimeUnit.MILLISECONDS);
+			}
+			pending.add(pendingOperation);
+			if (pending.size() >= maxGroupSize) group = takePending();
+		}
+		if (group != null) dispatch(group);
+		return pendingOperation.future;
+	}
+
+
+
+	/** Dispatches the current group immediately regardless of its size. */
+	public void flush() {
+		final List<PendingOperation<?>> group;
+		synchronized (lock) {
+			if (pending.isEmpty()) return;
+			group = takePending();
+		}
+		dispatch(group);
+	}
+
+
+
+	/**
+	 * {@link #flush() Dispatches} the current group and makes subsequent calls to
+	 * {@link #executeWithinGroupTx(Operation)} throw an {@link IllegalStateException}. Does not
+	 * wait for dispatched groups to be executed: this should be ensured by shutting down the
+	 * executor afterwards.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+		}
+		flush();
+	}
+
+
+
+	List<PendingOperation<?>> takePending() {  // must be called with lock held
+		final var group = pending;
+		pending = new ArrayList<>(maxGroupSize);
+		if (scheduledDispatch != null) {
+			scheduledDispatch.cancel(false);
+			scheduledDispatch = null;
+		}
+		return group;
+	}
+
+
+
+	void dispatch(List<PendingOperation<?>> group) {
+		try {
+			jpaExecutor.execute(() -> execute(group));
+		} catch (RejectedExecutionException e) {
+			for (var pendingOperation: group) fail(pendingOperation, e);
+		}
+	}
+
+
+
+	void execute(List<PendingOperation<?>> group) {
+		try {
+			executeWithinTx(group);
+			groupCount.increment();
+			groupedOperationCount.add(group.size());
+			for (var pendingOperation: group) complete(pendingOperation);
+			return;
+		} catch (Throwable e) {
+			failedGroupCount.increment();
+			if (group.size() == 1 || e instanceof Error) {
+				for (var pendingOperation: group) fail(pendingOperation, e);
+				if (e instanceof Error) throw (Error) e;
+				return;
+			}
+			log.debug(name + ": group of " + group.size() + " failed, replaying one by one", e);
+		}
+		replayedOperationCount.add(group.size());
+		for (var pendingOperation: group) {
+			try {
+				executeWithinTx(List.of(pendingOperation));
+				complete(pendingOperation);
+			} catch (Throwable e) {
+				fail(pendingOperation, e);
+				if (e instanceof Error) throw (Error) e;
+			}
+		}
+	}
+
+
+
+	void executeWithinTx(List<PendingOperation<?>> group) throws Exception {
+		final var entityManager = entityManagerFactory.createEntityManager();
+		try {
+			prepareEntityManager(entityManager, group.size());
+			JpaServlet.executeWithinTx(
+				() -> entityManager,
+				() -> {
+					for (var pendingOperation: group) pendingOperation.execute(entityManager);
+					return null;
+				}
+			);
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	/**
+	 * Called before a transaction of <code>groupSize</code> operations is started on
+	 * <code>entityManager</code>. Does nothing by default.
+	 */
+	void prepareEntityManager(EntityManager entityManager, int groupSize) {}
+
+
+
+	void complete(PendingOperation<?> pendingOperation) {
+		completedOperationCount.increment();
+		pendingOperation.complete();
+	}
+
+	void fail(PendingOperation<?> pendingOperation, Throwable error) {
+		failedOperationCount.increment();
+		pendingOperation.future.completeExceptionally(error);
+	}
+
+
+
+	static class PendingOperation<T> {
+
+		final Operation<T> operation;
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		T result;
+
+		PendingOperation(Operation<T> operation) { this.operation = operation; }
+
+		void execute(EntityManager entityManager) throws Exception {
+			result = operation.execute(entityManager);
+		}
+
+		void complete() { future.complete(result); }
+	}
+
+
+
+	/**
+	 * Number of successfully committed group transactions, including ones of a single operation
+	 * (but not replays).
+	 */
+	public long getGroupCount() { return groupCount.sum(); }
+
+	/** Number of operations committed as a part of their group transaction (not replayed). */
+	public long getGroupedOperationCount() { return groupedOperationCount.sum(); }
+
+	/**
+	 * Number of group transactions that failed. Operations of failed groups of more than 1
+	 * operation are replayed one by one.
+	 */
+	public long getFailedGroupCount() { return failedGroupCount.sum(); }
+
+	/** Number of operations replayed alone after their group failed. */
+	public long getReplayedOperationCount() { return replayedOperationCount.sum(); }
+
+	/** Number of operations whose futures were completed normally. */
+	public long getCompletedOperationCount() { return completedOperationCount.sum(); }
+
+	/** Number of operations whose futures were completed exceptionally. */
+	public long getFailedOperationCount() { return failedOperationCount.sum(); }
+
+	/** Number of operations in the current not yet dispatched group. */
+	public int getPendingCount() {
+		synchronized (lock) {
+			return pending.size();
+		}
+	}
+
+
+
+	static final Logger log = LoggerFactory.getLogger(GroupCommitCoordinator.class.getName());
+}
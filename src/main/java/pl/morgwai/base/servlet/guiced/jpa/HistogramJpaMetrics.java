@@ -0,0 +1,171 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static pl.morgwai.base.servlet.guiced.jpa.AdaptiveJpaExecutorSizer.JMX_DOMAIN;
+
+
+
+/**
+ * Default {@link JpaMetrics} implementation that stores timings in {@link LatencyHistogram}s.
+ * Requires no dependencies apart from the JDK.
+ * <p>
+ * Histograms are exported in 2 ways:</p>
+ * <ul>
+ *   <li>via the platform {@link javax.management.MBeanServer}: each histogram is registered as a
+ *       {@link LatencyHistogramMBean} with an {@link ObjectName} like
+ *       {@code pl.morgwai.base.servlet.guiced.jpa:type=JpaMetrics,unit="myUnit",
+ *       servlet="MyServlet",name=commit},</li>
+ *   <li>via {@link #getHistograms()} and {@link #toString()} for apps that prefer to export them
+ *       on their own.</li>
+ * </ul>
+ */
+public class HistogramJpaMetrics implements JpaMetrics {
+
+
+
+	/** Names of metrics recorded for each servlet. */
+	public static final String QUEUE_WAIT = "queueWait", TX = "tx", COMMIT = "commit",
+			ENTITY_MANAGER_LIFETIME = "entityManagerLifetime";
+
+	final boolean registerInJmx;
+	final ConcurrentMap<String, Recorder> recorders = new ConcurrentHashMap<>();
+
+
+
+	/**
+	 * @param registerInJmx whether histograms should be registered in the platform
+	 *     {@link javax.management.MBeanServer}.
+	 */
+	public HistogramJpaMetrics(boolean registerInJmx) {
+		this.registerInJmx = registerInJmx;
+	}
+
+	/** Calls {@link #HistogramJpaMetrics(boolean) this(true)}. */
+	public HistogramJpaMetrics() { this(true); }
+
+
+
+	@Override
+	public JpaMetricsRecorder getRecorder(String persistenceUnitName, String servletName) {
+		return recorders.computeIfAbsent(
+			persistenceUnitName + '/' + servletName,
+			(key) -> new Recorder(persistenceUnitName, servletName)
+		);
+	}
+
+
+
+	/**
+	 * Returns all histograms keyed by {@code persistenceUnitName/servletName/metricName}, where
+	 * {@code metricName} is one of {@link #QUEUE_WAIT}, {@link #TX}, {@link #COMMIT} and
+	 * {@link #ENTITY_MANAGER_LIFETIME}.
+	 */
+	public Map<String, LatencyHistogram> getHistograms() {
+		final var result = new TreeMap<String, LatencyHistogram>();
+		for (var entry: recorders.entrySet()) {
+			final var prefix = entry.getKey() + '/';
+			final var recorder = entry.getValue();
+			result.put(prefix + QUEUE_WAIT, recorder.queueWait);
+			result.put(prefix + TX, recorder.tx);
+			result.put(prefix + COMMIT, recorder.commit);
+			result.put(prefix + ENTITY_MANAGER_LIFETIME, recorder.entityManagerLifetime);
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+
+
+	/** Unregisters all histograms from JMX. */
+	@Override
+	public void close() {
+		for (var recorder: recorders.values()) recorder.unregister();
+	}
+
+
+
+	/** Returns a multi-line report of all histograms. */
+	@Override
+	public String toString() {
+		final var report = new StringBuilder();
+		for (var entry: getHistograms().entrySet()) {
+			report.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+		return report.toString();
+	}
+
+
+
+	class Recorder implements JpaMetricsRecorder {
+
+		final LatencyHistogram queueWait = new LatencyHistogram();
+		final LatencyHistogram tx = new LatencyHistogram();
+		final LatencyHistogram commit = new LatencyHistogram();
+		final LatencyHistogram entityManagerLifetime = new LatencyHistogram();
+		final ObjectName[] objectNames = new ObjectName[4];
+
+		@Override public void recordQueueWait(long nanos) { queueWait.record(nanos); }
+		@Override public void recordTx(long nanos) { tx.record(nanos); }
+		@Override public void recordCommit(long nanos) { commit.record(nanos); }
+
+		@Override
+		public void recordEntityManagerLifetime(long nanos) {
+			entityManagerLifetime.record(nanos);
+		}
+
+		Recorder(String persistenceUnitName, String servletName) {
+			if ( ! registerInJmx) return;
+			register(0, persistenceUnitName, servletName, QUEUE_WAIT, queueWait);
+			register(1, persistenceUnitName, servletName, TX, tx);
+			register(2, persistenceUnitName, servletName, COMMIT, commit);
+			register(3, persistenceUnitName, servletName, ENTITY_MANAGER_LIFETIME,
+					entityManagerLifetime);
+		}
+
+		void register(
+			int index,
+			String persistenceUnitName,
+			String servletName,
+			String metricName,
+			LatencyHistogram histogram
+		) {
+			try {
+				final var objectName = new ObjectName(JMX_DOMAIN + ":type=JpaMetrics"
+						+ ",unit=" + ObjectName.quote(persistenceUnitName)
+						+ ",servlet=" + ObjectName.quote(servletName)
+						+ ",name=" + metricName);
+				ManagementFactory.getPlatformMBeanServer().registerMBean(histogram, objectName);
+				objectNames[index] = objectName;
+			} catch (JMException e) {
+				log.warn("could not register " + metricName + " histogram of " + servletName
+						+ " in JMX", e);
+			}
+		}
+
+		void unregister() {
+			for (int i = 0; i < objectNames.length; i++) {
+				if (objectNames[i] == null) continue;
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectNames[i]);
+				} catch (JMException ignored) {}
+				objectNames[i] = null;
+			}
+		}
+	}
+
+
+
+	static final Logger log = LoggerFactory.getLogger(HistogramJpaMetrics.class.getName());
+}
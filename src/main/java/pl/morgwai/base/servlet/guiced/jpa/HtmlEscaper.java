@@ -0,0 +1,170 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+
+
+/**
+ * Escapes HTML special characters ({@code < > & " '}) of dynamic values written to responses
+ * without allocating per value: values are scanned for characters to escape and runs of characters
+ * that don't need escaping are written in bulk directly to the target. The
+ * {@link #write(String, OutputStream) byte variant} encodes values to UTF-8 itself using a
+ * thread-local buffer, so that values can be written directly to a
+ * {@link javax.servlet.ServletOutputStream} without going through a {@link Writer} and its
+ * encoder.
+ * <p>
+ * Escaped values are safe to be placed in element content and in quoted (both single and double)
+ * attribute values.</p>
+ */
+public class HtmlEscaper {
+
+
+
+	/** Size of thread-local buffers used by {@link #write(String, OutputStream)}. */
+	public static final int BUFFER_SIZE = 4096;
+
+	static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+	/** Max number of bytes written to a buffer for a single char. */
+	static final int MAX_BYTES_PER_CHAR = 6;  // "&quot;"
+
+
+
+	/**
+	 * Writes <code>value</code> to <code>out</code> with HTML special characters escaped. Does
+	 * nothing if <code>value</code> is {@code null}.
+	 */
+	public static void write(String value, Writer out) throws IOException {
+		if (value == null) return;
+		final int length = value.length();
+		int runStart = 0;
+		for (int i = 0; i < length; i++) {
+			final var replacement = replacementOf(value.charAt(i));
+			if (replacement == null) continue;
+			if (i > runStart) out.write(value, runStart, i - runStart);
+			out.write(replacement);
+			runStart = i + 1;
+		}
+		if (runStart < length) out.write(value, runStart, length - runStart);
+	}
+
+	/**
+	 * Same as {@link #write(String, Writer)}. {@link PrintWriter}s never throw
+	 * {@link IOException}s, so neither does this method.
+	 */
+	public static void write(String value, PrintWriter out) {
+		try {
+			write(value, (Writer) out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);  // never happens
+		}
+	}
+
+	/**
+	 * Appends <code>value</code> to <code>target</code> with HTML special characters escaped. Does
+	 * nothing if <code>value</code> is {@code null}.
+	 */
+	public static void append(String value, StringBuilder target) {
+		if (value == null) return;
+		final int length = value.length();
+		int runStart = 0;
+		for (int i = 0; i < length; i++) {
+			final var replacement = replacementOf(value.charAt(i));
+			if (replacement == null) continue;
+			if (i > runStart) target.append(value, runStart, i);
+			target.append(replacement);
+			runStart = i + 1;
+		}
+		if (runStart < length) target.append(value, runStart, length);
+	}
+
+	/**
+	 * Writes <code>value</code> encoded in UTF-8 to <code>out</code> with HTML special characters
+	 * escaped. Does nothing if <code>value</code> is {@code null}. Unpaired surrogates are written
+	 * as {@code '?'}.
+	 * <p>
+	 * Encoded bytes are accumulated in a thread-local buffer of {@link #BUFFER_SIZE} bytes, which
+	 * is written to <code>out</code> each time it fills up and at the end, so
+	 * <code>out</code> should be buffered itself (as {@link javax.servlet.ServletOutputStream}s
+	 * are).</p>
+	 */
+	public static void write(String value, OutputStream out) throws IOException {
+		if (value == null) return;
+		final var buffer = buffers.get();
+		final int flushThreshold = buffer.length - MAX_BYTES_PER_CHAR;
+		final int length = value.length();
+		int position = 0;
+		for (int i = 0; i < length; i++) {
+			if (position > flushThreshold) {
+				out.write(buffer, 0, position);
+				position = 0;
+			}
+			final char c = value.charAt(i);
+			if (c < 0x80) {
+				final var replacement = byteReplacementOf(c);
+				if (replacement == null) {
+					buffer[position++] = (byte) c;
+				} else {
+					System.arraycopy(replacement, 0, buffer, position, replacement.length);
+					position += replacement.length;
+				}
+			} else if (c < 0x800) {
+				buffer[position++] = (byte) (0xc0 | (c >> 6));
+				buffer[position++] = (byte) (0x80 | (c & 0x3f));
+			} else if ( ! Character.isSurrogate(c)) {
+				buffer[position++] = (byte) (0xe0 | (c >> 12));
+				buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buffer[position++] = (byte) (0x80 | (c & 0x3f));
+			} else if (
+				Character.isHighSurrogate(c)
+				&& i + 1 < length
+				&& Character.isLowSurrogate(value.charAt(i + 1))
+			) {
+				final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else {
+				buffer[position++] = '?';
+			}
+		}
+		if (position > 0) out.write(buffer, 0, position);
+	}
+
+
+
+	static String replacementOf(char c) {
+		switch (c) {
+			case '<': return "&lt;";
+			case '>': return "&gt;";
+			case '&': return "&amp;";
+			case '"': return "&quot;";
+			case '\'': return "&#39;";
+			default: return null;
+		}
+	}
+
+	static final byte[] LT = "&lt;".getBytes(StandardCharsets.UTF_8);
+	static final byte[] GT = "&gt;".getBytes(StandardCharsets.UTF_8);
+	static final byte[] AMP = "&amp;".getBytes(StandardCharsets.UTF_8);
+	static final byte[] QUOT = "&quot;".getBytes(StandardCharsets.UTF_8);
+	static final byte[] APOS = "&#39;".getBytes(StandardCharsets.UTF_8);
+
+	static byte[] byteReplacementOf(char c) {
+		switch (c) {
+			case '<': return LT;
+			case '>': return GT;
+			case '&': return AMP;
+			case '"': return QUOT;
+			case '\'': return APOS;
+			default: return null;
+		}
+	}
+}
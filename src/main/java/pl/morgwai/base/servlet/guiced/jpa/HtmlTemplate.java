@@ -0,0 +1,142 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+
+
+/**
+ * HTML fragment with {@value #SLOT} slots for dynamic values, compiled once (usually into a
+ * {@code static final} field or at servlet init) into UTF-8 encoded static parts. Rendering
+ * writes the pre-encoded static parts as they are and only the dynamic values are escaped and
+ * encoded (using {@link HtmlEscaper#write(String, OutputStream)}), so that constant markup is
+ * neither rebuilt as {@code String}s nor re-encoded on every request.
+ * <p>
+ * Templates should be written to {@link javax.servlet.ServletOutputStream}s (or other buffered
+ * streams) of responses with {@code charset=UTF-8} content type.</p>
+ * <p>
+ * Instances are immutable and thread-safe.</p>
+ */
+public class HtmlTemplate {
+
+
+
+	/** Placeholder of a dynamic value in a template. */
+	public static final String SLOT = "{}";
+
+
+
+	final byte[][] fragments;  // static parts: 1 more than slots
+	public int getSlotCount() { return fragments.length - 1; }
+
+
+
+	/**
+	 * Compiles <code>template</code>.
+	 * @param template HTML with {@value #SLOT} placeholders for dynamic values.
+	 */
+	public HtmlTemplate(String template) {
+		final var parts = new ArrayList<byte[]>();
+		int partStart = 0;
+		int slotIndex;
+		while ((slotIndex = template.indexOf(SLOT, partStart)) >= 0) {
+			parts.add(template.substring(partStart, slotIndex).getBytes(StandardCharsets.UTF_8));
+			partStart = slotIndex + SLOT.length();
+		}
+		parts.add(template.substring(partStart).getBytes(StandardCharsets.UTF_8));
+		fragments = parts.toArray(new byte[0][]);
+	}
+
+
+
+	/**
+	 * Writes this template to <code>out</code> with slots filled with escaped
+	 * <code>values</code>. {@code null} values are written as empty strings.
+	 * @throws IllegalArgumentException if the number of values does not match
+	 *     {@link #getSlotCount()}.
+	 */
+	public void write(OutputStream out, String... values) throws IOException {
+		checkSlotCount(values.length);
+		for (int i = 0; i < values.length; i++) {
+			writeFragment(out, i);
+			HtmlEscaper.write(values[i], out);
+		}
+		writeFragment(out, values.length);
+	}
+
+	// fixed-arity variants avoid allocating varargs arrays per row
+
+	/** Writes this template without slots to <code>out</code>. */
+	public void write(OutputStream out) throws IOException {
+		checkSlotCount(0);
+		writeFragment(out, 0);
+	}
+
+	/** Same as {@link #write(OutputStream, String...)} for a template with 1 slot. */
+	public void write(OutputStream out, String value) throws IOException {
+		checkSlotCount(1);
+		writeFragment(out, 0);
+		HtmlEscaper.write(value, out);
+		writeFragment(out, 1);
+	}
+
+	/** Same as {@link #write(OutputStream, String...)} for a template with 2 slots. */
+	public void write(OutputStream out, String value1, String value2) throws IOException {
+		checkSlotCount(2);
+		writeFragment(out, 0);
+		HtmlEscaper.write(value1, out);
+		writeFragment(out, 1);
+		HtmlEscaper.write(value2, out);
+		writeFragment(out, 2);
+	}
+
+	/** Same as {@link #write(OutputStream, String...)} for a template with 3 slots. */
+	public void write(OutputStream out, String value1, String value2, String value3)
+			throws IOException {
+		checkSlotCount(3);
+		writeFragment(out, 0);
+		HtmlEscaper.write(value1, out);
+		writeFragment(out, 1);
+		HtmlEscaper.write(value2, out);
+		writeFragment(out, 2);
+		HtmlEscaper.write(value3, out);
+		writeFragment(out, 3);
+	}
+
+	/** Same as {@link #write(OutputStream, String...)} for a template with 4 slots. */
+	public void write(
+		OutputStream out,
+		String value1,
+		String value2,
+		String value3,
+		String value4
+	) throws IOException {
+		checkSlotCount(4);
+		writeFragment(out, 0);
+		HtmlEscaper.write(value1, out);
+		writeFragment(out, 1);
+		HtmlEscaper.write(value2, out);
+		writeFragment(out, 2);
+		HtmlEscaper.write(value3, out);
+		writeFragment(out, 3);
+		HtmlEscaper.write(value4, out);
+		writeFragment(out, 4);
+	}
+
+
+
+	void writeFragment(OutputStream out, int index) throws IOException {
+		final var fragment = fragments[index];
+		if (fragment.length > 0) out.write(fragment);
+	}
+
+	void checkSlotCount(int valueCount) {
+		if (valueCount != fragments.length - 1) {
+			throw new IllegalArgumentException("template has " + (fragments.length - 1)
+					+ " slots, but " + valueCount + " values were given");
+		}
+	}
+}
@@ -0,0 +1,166 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+
+/**
+ * Helpers for a bounded, in-process second-level cache of Hibernate backed by a JCache (JSR-107)
+ * implementation (for example Ehcache 3 or Caffeine) using {@code hibernate-jcache} region
+ * factory. The library itself does not depend on any of these: apps add them to their
+ * dependencies and return {@link #getHibernateProperties(String, String)} from
+ * {@link JpaServletContextListener#getPersistenceUnitProperties(String)}.
+ * <p>
+ * JPA does not define any cache configuration nor statistics, so size bounds and expiration are
+ * configured in the JCache implementation's config file, which should define a default template
+ * applied to all caches created by Hibernate (for example {@code <jsr107:defaults
+ * default-template="..." enable-statistics="true">} in Ehcache's XML) and should enable
+ * statistics. {@link #getStatistics(String)} reads them using the standard JCache
+ * {@code CacheStatisticsMXBean}s, so they reflect the actual hits, misses and evictions performed
+ * by the cache.</p>
+ */
+public class JCacheSecondLevelCache {
+
+
+
+	public static final String USE_SECOND_LEVEL_CACHE_PROPERTY =
+			"hibernate.cache.use_second_level_cache";
+	public static final String REGION_FACTORY_PROPERTY = "hibernate.cache.region.factory_class";
+	public static final String REGION_PREFIX_PROPERTY = "hibernate.cache.region_prefix";
+	public static final String JCACHE_CONFIG_URI_PROPERTY = "hibernate.javax.cache.uri";
+	public static final String MISSING_CACHE_STRATEGY_PROPERTY =
+			"hibernate.javax.cache.missing_cache_strategy";
+
+	/** Short name of {@code hibernate-jcache} region factory. */
+	public static final String JCACHE_REGION_FACTORY = "jcache";
+
+	/** JMX domain and type of the standard JCache statistics MBeans. */
+	public static final String STATISTICS_OBJECT_NAME_PATTERN =
+			"javax.cache:type=CacheStatistics,*";
+
+
+
+	static final String[] STATISTICS_ATTRIBUTES =
+			{"CacheHits", "CacheMisses", "CachePuts", "CacheEvictions"};
+
+
+
+	/**
+	 * Returns Hibernate properties enabling the second-level cache of
+	 * <code>persistenceUnitName</code> using {@code hibernate-jcache} with JCache config from
+	 * <code>jcacheConfigUri</code> (a classpath resource or an URI). Names of all cache regions
+	 * are prefixed with <code>persistenceUnitName</code>, so that statistics of each unit may be
+	 * obtained separately with {@link #getStatistics(String)}. Caches missing in the config are
+	 * created by Hibernate, so the config should define a bounded default template.
+	 */
+	public static Map<String, Object> getHibernateProperties(
+			String persistenceUnitName, String jcacheConfigUri) {
+		return Map.of(
+			USE_SECOND_LEVEL_CACHE_PROPERTY, "true",
+			REGION_FACTORY_PROPERTY, JCACHE_REGION_FACTORY,
+			REGION_PREFIX_PROPERTY, persistenceUnitName,
+			JCACHE_CONFIG_URI_PROPERTY, jcacheConfigUri,
+			MISSING_CACHE_STRATEGY_PROPERTY, "create"
+		);
+	}
+
+
+
+	/** Cumulative statistics of all cache regions of a persistence unit. */
+	public static class Statistics {
+
+		final long hitCount;
+		public long getHitCount() { return hitCount; }
+
+		final long missCount;
+		public long getMissCount() { return missCount; }
+
+		final long putCount;
+		public long getPutCount() { return putCount; }
+
+		/** Number of entries evicted by the cache because of its size bounds or expiration. */
+		final long evictionCount;
+		public long getEvictionCount() { return evictionCount; }
+
+		final int regionCount;
+		/**
+		 * Number of regions with statistics enabled. {@code 0} indicates that the cache is not
+		 * configured or has statistics disabled.
+		 */
+		public int getRegionCount() { return regionCount; }
+
+		public Statistics(
+				long hitCount, long missCount, long putCount, long evictionCount, int regionCount) {
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.putCount = putCount;
+			this.evictionCount = evictionCount;
+			this.regionCount = regionCount;
+		}
+
+		@Override
+		public String toString() {
+			return "hits: " + hitCount + ", misses: " + missCount + ", puts: " + putCount
+					+ ", evictions: " + evictionCount + ", regions: " + regionCount;
+		}
+	}
+
+
+
+	/**
+	 * Returns the sum of statistics of all cache regions of <code>persistenceUnitName</code>
+	 * (configured with {@link #getHibernateProperties(String, String)}) as reported by the JCache
+	 * implementation via JMX.
+	 */
+	public static Statistics getStatistics(String persistenceUnitName) {
+		return getStatistics(ManagementFactory.getPlatformMBeanServer(), persistenceUnitName);
+	}
+
+	static Statistics getStatistics(MBeanServer mbeanServer, String persistenceUnitName) {
+		final var regionPrefix = persistenceUnitName + '.';
+		long hits = 0l, misses = 0l, puts = 0l, evictions = 0l;
+		int regions = 0;
+		try {
+			final var pattern = new ObjectName(STATISTICS_OBJECT_NAME_PATTERN);
+			for (var name: mbeanServer.queryNames(pattern, null)) {
+				var cacheName = name.getKeyProperty("Cache");
+				if (cacheName == null) continue;
+				if (cacheName.startsWith("\"")) cacheName = ObjectName.unquote(cacheName);
+				if ( ! cacheName.startsWith(regionPrefix)) continue;
+				try {
+					final var attributes = mbeanServer.getAttributes(name, STATISTICS_ATTRIBUTES);
+					if (attributes.size() != STATISTICS_ATTRIBUTES.length) continue;
+					for (var attribute: attributes.asList()) {
+						final long value = ((Number) attribute.getValue()).longValue();
+						switch (attribute.getName()) {
+							case "CacheHits": hits += value; break;
+							case "CacheMisses": misses += value; break;
+							case "CachePuts": puts += value; break;
+							case "CacheEvictions": evictions += value; break;
+						}
+					}
+					regions++;
+				} catch (JMException e) {
+					log.debug("could not read statistics of " + name, e);  // closed in between
+				}
+			}
+		} catch (MalformedObjectNameException e) {
+			throw new AssertionError(e);  // the pattern is constant
+		}
+		return new Statistics(hits, misses, puts, evictions, regions);
+	}
+
+
+
+	static final Logger log = LoggerFactory.getLogger(JCacheSecondLevelCache.class.getName());
+}
@@ -0,0 +1,163 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.CacheStoreMode;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+
+
+/**
+ * Shared (second-level) cache policy of a persistence unit: {@link CacheRetrieveMode} and
+ * {@link CacheStoreMode} per entity class and per named query, plus arbitrary (for example
+ * provider-specific) hints per named query. DAOs apply the policy by loading entities with
+ * {@link #find(EntityManager, Class, Object)} and creating queries with
+ * {@link #createNamedQuery(EntityManager, String, Class)}.
+ * <p>
+ * The policy only adjusts how individual lookups and queries use the cache: which entities are
+ * cached at all is determined by the
+ * {@link JpaServletContextListener#getSharedCacheMode(String) shared cache mode} of the unit
+ * (and {@link javax.persistence.Cacheable @Cacheable} annotations), while the cache itself (its
+ * region factory, size bounds and expiration) is configured using provider-specific
+ * {@link JpaServletContextListener#getPersistenceUnitProperties(String) properties}, for example
+ * the ones returned by {@link JCacheSecondLevelCache#getHibernateProperties(String, String)}.
+ * Without such configuration most providers do not cache anything.</p>
+ * <p>
+ * Instances are thread-safe, but should be configured before the app starts serving requests.
+ * </p>
+ * @see JpaServletContextListener#configureCachePolicy(String, JpaCachePolicy)
+ */
+public class JpaCachePolicy {
+
+
+
+	/** Standard JPA hint for {@link CacheRetrieveMode}. */
+	public static final String RETRIEVE_MODE_HINT = "javax.persistence.cache.retrieveMode";
+
+	/** Standard JPA hint for {@link CacheStoreMode}. */
+	public static final String STORE_MODE_HINT = "javax.persistence.cache.storeMode";
+
+
+
+	final EntityManagerFactory entityManagerFactory;
+	final String persistenceUnitName;
+	public String getPersistenceUnitName() { return persistenceUnitName; }
+
+	final Map<Class<?>, Map<String, Object>> entityHints = new ConcurrentHashMap<>();
+	final Map<String, Map<String, Object>> queryHints = new ConcurrentHashMap<>();
+
+	final LongAdder evictRequestCount = new LongAdder();
+
+
+
+	public JpaCachePolicy(EntityManagerFactory entityManagerFactory, String persistenceUnitName) {
+		this.entityManagerFactory = entityManagerFactory;
+		this.persistenceUnitName = persistenceUnitName;
+	}
+
+
+
+	/** Sets cache modes used by {@link #find(EntityManager, Class, Object)} for entityClass. */
+	public void setEntityCacheModes(
+		Class<?> entityClass,
+		CacheRetrieveMode retrieveMode,
+		CacheStoreMode storeMode
+	) {
+		entityHints.put(entityClass, Map.of(
+				RETRIEVE_MODE_HINT, retrieveMode, STORE_MODE_HINT, storeMode));
+	}
+
+	/** Sets cache modes of the named query <code>queryName</code>. */
+	public void setQueryCacheModes(
+		String queryName,
+		CacheRetrieveMode retrieveMode,
+		CacheStoreMode storeMode
+	) {
+		setQueryHint(queryName, RETRIEVE_MODE_HINT, retrieveMode);
+		setQueryHint(queryName, STORE_MODE_HINT, storeMode);
+	}
+
+	/**
+	 * Sets a hint of the named query <code>queryName</code>, for example
+	 * {@code "org.hibernate.cacheable"} to cache its results in Hibernate's query cache.
+	 */
+	public void setQueryHint(String queryName, String hintName, Object value) {
+		queryHints.compute(queryName, (name, hints) -> {
+			final var updatedHints = new HashMap<String, Object>();
+			if (hints != null) updatedHints.putAll(hints);
+			updatedHints.put(hintName, value);
+			return Map.copyOf(updatedHints);
+		});
+	}
+
+
+
+	/**
+	 * Calls {@link EntityManager#find(Class, Object, Map)} with the cache modes of
+	 * <code>entityClass</code> if set, otherwise {@link EntityManager#find(Class, Object)}.
+	 */
+	public <T> T find(EntityManager entityManager, Class<T> entityClass, Object primaryKey) {
+		final var hints = entityHints.get(entityClass);
+		return hints != null
+				? entityManager.find(entityClass, primaryKey, hints)
+				: entityManager.find(entityClass, primaryKey);
+	}
+
+	/** Creates the named query <code>queryName</code> with its hints applied. */
+	public <T> TypedQuery<T> createNamedQuery(
+			EntityManager entityManager, String queryName, Class<T> resultClass) {
+		return applyHints(entityManager.createNamedQuery(queryName, resultClass), queryName);
+	}
+
+	/** Creates the named query <code>queryName</code> with its hints applied. */
+	public Query createNamedQuery(EntityManager entityManager, String queryName) {
+		return applyHints(entityManager.createNamedQuery(queryName), queryName);
+	}
+
+	/** Applies hints of the named query <code>queryName</code> to <code>query</code>. */
+	public <Q extends Query> Q applyHints(Q query, String queryName) {
+		final var hints = queryHints.get(queryName);
+		if (hints != null) {
+			for (var hint: hints.entrySet()) query.setHint(hint.getKey(), hint.getValue());
+		}
+		return query;
+	}
+
+
+
+	/** Evicts all cached instances of <code>entityClass</code> from the shared cache. */
+	public void evict(Class<?> entityClass) {
+		entityManagerFactory.getCache().evict(entityClass);
+		evictRequestCount.increment();
+	}
+
+	/** Evicts everything from the shared cache. */
+	public void evictAll() {
+		entityManagerFactory.getCache().evictAll();
+		evictRequestCount.increment();
+	}
+
+	/**
+	 * Number of {@link #evict(Class)} and {@link #evictAll()} calls made on this policy. Does not
+	 * include evictions performed by the cache itself: see {@link #getCacheStatistics()}.
+	 */
+	public long getEvictRequestCount() { return evictRequestCount.sum(); }
+
+	/**
+	 * Returns statistics (hits, misses, puts and evictions because of size bounds or expiration)
+	 * reported by the cache of the unit if it's configured with
+	 * {@link JCacheSecondLevelCache#getHibernateProperties(String, String)}.
+	 * @see JCacheSecondLevelCache#getStatistics(String)
+	 */
+	public JCacheSecondLevelCache.Statistics getCacheStatistics() {
+		return JCacheSecondLevelCache.getStatistics(persistenceUnitName);
+	}
+}
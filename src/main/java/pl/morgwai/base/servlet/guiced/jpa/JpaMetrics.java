@@ -0,0 +1,23 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+
+
+/**
+ * Instrumentation SPI for collecting per-request JPA timings. An instance is created by
+ * {@link JpaServletContextListener#createJpaMetrics()} and is used by {@link JpaServlet}s to obtain
+ * their {@link JpaMetricsRecorder}s.
+ * @see HistogramJpaMetrics
+ */
+public interface JpaMetrics {
+
+	/**
+	 * Returns a recorder for the given servlet using the given persistence unit. Called once per
+	 * servlet during its initialization, so implementations may allocate all the structures they
+	 * need here.
+	 */
+	JpaMetricsRecorder getRecorder(String persistenceUnitName, String servletName);
+
+	/** Releases resources (such as JMX registrations). Called on app shutdown. */
+	default void close() {}
+}
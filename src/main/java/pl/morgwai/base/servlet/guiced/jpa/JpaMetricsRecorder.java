@@ -0,0 +1,39 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+
+
+/**
+ * Receives per-request timings of JPA processing of a single servlet using a single persistence
+ * unit. Obtained by {@link JpaServlet}s from {@link JpaMetrics#getRecorder(String, String)} during
+ * their initialization.
+ * <p>
+ * Methods of this interface are called on the request processing hot path concurrently by
+ * multiple threads, so implementations must be thread-safe and should neither block nor allocate.
+ * All durations are in nanoseconds. Default implementations do nothing.</p>
+ */
+public interface JpaMetricsRecorder {
+
+	/** Time a request was awaiting in {@link JpaServlet#jpaExecutor}'s queue. */
+	default void recordQueueWait(long nanos) {}
+
+	/**
+	 * Duration of a whole transaction executed by
+	 * {@link JpaServlet#executeWithinTx(java.util.concurrent.Callable)}, from its start until it was
+	 * committed or rolled back.
+	 */
+	default void recordTx(long nanos) {}
+
+	/** Duration of {@link javax.persistence.EntityTransaction#commit()}. */
+	default void recordCommit(long nanos) {}
+
+	/**
+	 * Lifetime of a request-scoped {@link javax.persistence.EntityManager}: time from the start of
+	 * request processing on {@link JpaServlet#jpaExecutor} until the {@code EntityManager} was
+	 * closed.
+	 */
+	default void recordEntityManagerLifetime(long nanos) {}
+
+	/** Recorder that discards all timings. */
+	JpaMetricsRecorder NOOP = new JpaMetricsRecorder() {};
+}
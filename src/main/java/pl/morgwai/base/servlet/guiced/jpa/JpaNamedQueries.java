@@ -0,0 +1,106 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+
+
+
+/**
+ * Registers {@link JpaNamedQuery}-annotated constants as named queries of a persistence unit.
+ * All queries are compiled in 1 pass using a single {@link javax.persistence.EntityManager}, so
+ * that query parsing happens once at bootstrap and never on the request path, and errors in any
+ * of them fail the bootstrap instead of the first request that uses the broken query.
+ * @see JpaServletContextListener#getNamedQueryClasses(String)
+ */
+public class JpaNamedQueries {
+
+
+
+	/** Returns the full name of query <code>name</code> declared in <code>declaringClass</code>. */
+	public static String nameOf(Class<?> declaringClass, String name) {
+		return declaringClass.getName() + '.' + name;
+	}
+
+
+
+	/**
+	 * Compiles all {@link JpaNamedQuery}-annotated constants declared in
+	 * <code>declaringClasses</code> and adds them to <code>entityManagerFactory</code> as named
+	 * queries.
+	 * @return full names of the registered queries.
+	 * @throws IllegalStateException if any of the annotated fields is not a
+	 *     {@code static final String}, any of the names is duplicated or any of the queries fails
+	 *     to compile. Causes of all the failures are attached as
+	 *     {@link Throwable#getSuppressed() suppressed} exceptions and no query is registered.
+	 */
+	public static List<String> register(
+		EntityManagerFactory entityManagerFactory,
+		Collection<Class<?>> declaringClasses
+	) {
+		final var names = new ArrayList<String>();
+		final var queries = new ArrayList<Query>();
+		final var failures = new ArrayList<Exception>();
+		final var uniqueNames = new HashSet<String>();
+		final var entityManager = entityManagerFactory.createEntityManager();
+		try {
+			for (var declaringClass: declaringClasses) {
+				for (var field: declaringClass.getDeclaredFields()) {
+					final var annotation = field.getAnnotation(JpaNamedQuery.class);
+					if (annotation == null) continue;
+					final var name = nameOf(declaringClass, annotation.value());
+					try {
+						if ( ! uniqueNames.add(name)) {
+							throw new IllegalArgumentException("duplicate named query " + name);
+						}
+						final var jpql = getConstantValue(field);
+						queries.add(entityManager.createQuery(jpql));
+						names.add(name);
+					} catch (RuntimeException e) {
+						failures.add(new IllegalArgumentException(
+								"invalid named query " + name + ": " + e.getMessage(), e));
+					}
+				}
+			}
+			if ( ! failures.isEmpty()) {
+				final var failure = new IllegalStateException(failures.size()
+						+ " named queries failed to compile, first: "
+						+ failures.get(0).getMessage());
+				for (var cause: failures) failure.addSuppressed(cause);
+				throw failure;
+			}
+			for (int i = 0; i < names.size(); i++) {
+				entityManagerFactory.addNamedQuery(names.get(i), queries.get(i));
+			}
+			return names;
+		} finally {
+			entityManager.close();
+		}
+	}
+
+
+
+	static String getConstantValue(Field field) {
+		final var modifiers = field.getModifiers();
+		if (
+			! Modifier.isStatic(modifiers)
+			|| ! Modifier.isFinal(modifiers)
+			|| field.getType() != String.class
+		) {
+			throw new IllegalArgumentException(field + " is not a static final String");
+		}
+		field.trySetAccessible();
+		try {
+			return (String) field.get(null);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException(field + " is not accessible", e);
+		}
+	}
+}
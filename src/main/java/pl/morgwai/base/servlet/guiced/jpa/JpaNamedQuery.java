@@ -0,0 +1,36 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+
+/**
+ * Marks a {@code static final String} constant containing a JPQL query to be registered as a
+ * named query at the bootstrap of a persistence unit by {@link JpaNamedQueries}. The full name of
+ * the query is the name of the declaring class followed by a dot and {@link #value()} and should
+ * be obtained with {@link JpaNamedQueries#nameOf(Class, String)}, for example:
+ * <pre>
+ * public class JpaQueryRecordDao implements QueryRecordDao {
+ *
+ *     static final String FIND_ALL_QUERY_NAME =
+ *             JpaNamedQueries.nameOf(JpaQueryRecordDao.class, "findAll");
+ *     &commat;JpaNamedQuery("findAll")
+ *     static final String FIND_ALL_QUERY = "select r from QueryRecord r";
+ *
+ *     // DAO methods using entityManager.createNamedQuery(FIND_ALL_QUERY_NAME) here...
+ * }</pre>
+ * @see JpaServletContextListener#getNamedQueryClasses(String)
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface JpaNamedQuery {
+
+	/** Name of the query relative to the declaring class. */
+	String value();
+}
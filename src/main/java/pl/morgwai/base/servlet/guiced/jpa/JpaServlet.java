@@ -2,23 +2,31 @@
 package pl.morgwai.base.servlet.guiced.jpa;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Provider;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.RollbackException;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpSession;
 
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.google.inject.name.Names;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import pl.morgwai.base.guice.scopes.ContextTracker;
 import pl.morgwai.base.servlet.scopes.ContextTrackingExecutor;
 import pl.morgwai.base.servlet.scopes.ContainerCallContext;
+import pl.morgwai.base.servlet.scopes.ServletRequestContext;
 
 import static pl.morgwai.base.servlet.guiced.jpa.JpaServletContextListener.*;
 
@@ -28,7 +36,10 @@ import static pl.morgwai.base.servlet.guiced.jpa.JpaServletContextListener.*;
  * Base class for servlets that perform other types of time consuming operations apart from JPA.
  * Requests injection of a {@link Provider}&lt;{@link EntityManager}&gt;, its associated
  * {@link #jpaExecutor} and provides some related helper methods:
- * {@link #executeWithinTx(Callable)}, {@link #removeEntityManagerFromRequestScope()}.
+ * {@link #executeWithinTx(Callable)}, {@link #executeWithinTxWithRetries(Callable)},
+ * {@link #executeReadOnly(Callable)}, {@link #supplyInTx(Callable)},
+ * {@link #executeWithinGroupTx(GroupCommitCoordinator.Operation)},
+ * {@link #removeEntityManagerFromRequestScope()}.
  *
  * @see SimpleAsyncJpaServlet
  */
@@ -54,6 +65,57 @@ public abstract class JpaServlet extends HttpServlet {
 	 */
 	protected ContextTrackingExecutor jpaExecutor;
 
+	/**
+	 * Sizer of {@link #jpaExecutor} if it is adaptively sized (see
+	 * {@link JpaServletContextListener#getMainJpaThreadPoolMaxSize()}), {@code null} otherwise.
+	 * Subclasses that dispatch tasks to {@link #jpaExecutor} manually may use it to report queue
+	 * wait and run time of their tasks.
+	 */
+	protected AdaptiveJpaExecutorSizer jpaExecutorSizer;
+
+	/**
+	 * Group commit coordinator of {@link #entityManagerProvider}'s persistence unit if group commit
+	 * is enabled (see {@link JpaServletContextListener#getMainJpaGroupCommitSize()}), {@code null}
+	 * otherwise.
+	 */
+	protected GroupCommitCoordinator groupCommitCoordinator;
+
+	/**
+	 * Read replica router of {@link #entityManagerProvider}'s persistence unit if it has read
+	 * replicas (see {@link JpaServletContextListener#getMainReadReplicaPersistenceUnitNames()}),
+	 * {@code null} otherwise.
+	 */
+	protected ReadReplicaRouter readReplicaRouter;
+
+	/**
+	 * Query result cache of {@link #entityManagerProvider}'s persistence unit if it's enabled (see
+	 * {@link JpaServletContextListener#getMainQueryResultCacheSize()}), {@code null} otherwise.
+	 */
+	protected QueryResultCache queryResultCache;
+
+	/**
+	 * Shared cache policy of {@link #entityManagerProvider}'s persistence unit (see
+	 * {@link JpaServletContextListener#configureCachePolicy(String, JpaCachePolicy)}) if bound,
+	 * {@code null} otherwise.
+	 */
+	protected JpaCachePolicy cachePolicy;
+
+	/**
+	 * Coalescer of concurrent identical reads of {@link #entityManagerProvider}'s persistence unit
+	 * if bound, {@code null} otherwise.
+	 * @see SimpleAsyncJpaServlet#serviceCoalesced(javax.servlet.http.HttpServletRequest,
+	 *     javax.servlet.http.HttpServletResponse, Callable, SimpleAsyncJpaServlet.ResponseWriter,
+	 *     String, Object...)
+	 */
+	protected SingleFlight singleFlight;
+
+	/**
+	 * Receives timings of this servlet's JPA processing. If the app does not collect JPA metrics
+	 * (see {@link JpaServletContextListener#createJpaMetrics()}), this is
+	 * {@link JpaMetricsRecorder#NOOP}.
+	 */
+	protected JpaMetricsRecorder jpaMetricsRecorder = JpaMetricsRecorder.NOOP;
+
 	/**
 	 * Returns injection binding name for {@link #entityManagerProvider} and {@link #jpaExecutor}
 	 * in apps that use multiple persistence units.
@@ -73,31 +135,127 @@ public abstract class JpaServlet extends HttpServlet {
 
 
 	/**
-	 * Requests instances of {@link #entityManagerProvider} and {@link #jpaExecutor} from Guice.
+	 * Requests instances of {@link #entityManagerProvider}, {@link #jpaExecutor},
+	 * {@link #jpaExecutorSizer}, {@link #groupCommitCoordinator}, {@link #readReplicaRouter},
+	 * {@link #queryResultCache}, {@link #cachePolicy}, {@link #singleFlight} (if bound) and
+	 * {@link #jpaMetricsRecorder} (if {@link JpaMetrics} is bound) from Guice.
 	 */
 	@Override
 	public void init(ServletConfig config) throws ServletException {
 		Injector injector = getInjector();
+		final Key<AdaptiveJpaExecutorSizer> sizerKey;
+		final Key<GroupCommitCoordinator> groupCommitKey;
+		final Key<ReadReplicaRouter> replicaRouterKey;
+		final Key<QueryResultCache> queryResultCacheKey;
+		final Key<JpaCachePolicy> cachePolicyKey;
+		final Key<SingleFlight> singleFlightKey;
+		final EntityManagerFactory entityManagerFactory;
 		if (singlePersistenceUnitApp) {
 			entityManagerProvider = injector.getProvider(EntityManager.class);
 			jpaExecutor = injector.getInstance(ContextTrackingExecutor.class);
+			entityManagerFactory = injector.getInstance(EntityManagerFactory.class);
+			sizerKey = Key.get(AdaptiveJpaExecutorSizer.class);
+			groupCommitKey = Key.get(GroupCommitCoordinator.class);
+			replicaRouterKey = Key.get(ReadReplicaRouter.class);
+			queryResultCacheKey = Key.get(QueryResultCache.class);
+			cachePolicyKey = Key.get(JpaCachePolicy.class);
+			singleFlightKey = Key.get(SingleFlight.class);
 		} else {
 			final var bindingName =  Names.named(getPersistenceUnitBindingName());
 			entityManagerProvider = injector.getProvider(Key.get(EntityManager.class, bindingName));
 			jpaExecutor = injector.getInstance(Key.get(ContextTrackingExecutor.class, bindingName));
+			entityManagerFactory =
+					injector.getInstance(Key.get(EntityManagerFactory.class, bindingName));
+			sizerKey = Key.get(AdaptiveJpaExecutorSizer.class, bindingName);
+			groupCommitKey = Key.get(GroupCommitCoordinator.class, bindingName);
+			replicaRouterKey = Key.get(ReadReplicaRouter.class, bindingName);
+			queryResultCacheKey = Key.get(QueryResultCache.class, bindingName);
+			cachePolicyKey = Key.get(JpaCachePolicy.class, bindingName);
+			singleFlightKey = Key.get(SingleFlight.class, bindingName);
+		}
+		if (entityManagerFactory instanceof DeferredEntityManagerFactory) {
+			deferredEntityManagerFactory = (DeferredEntityManagerFactory) entityManagerFactory;
+		}
+		if (injector.getExistingBinding(sizerKey) != null) {
+			jpaExecutorSizer = injector.getInstance(sizerKey);
+		}
+		if (injector.getExistingBinding(groupCommitKey) != null) {
+			groupCommitCoordinator = injector.getInstance(groupCommitKey);
+		}
+		if (injector.getExistingBinding(replicaRouterKey) != null) {
+			readReplicaRouter = injector.getInstance(replicaRouterKey);
+		}
+		if (injector.getExistingBinding(queryResultCacheKey) != null) {
+			queryResultCache = injector.getInstance(queryResultCacheKey);
+		}
+		if (injector.getExistingBinding(cachePolicyKey) != null) {
+			cachePolicy = injector.getInstance(cachePolicyKey);
+		}
+		if (injector.getExistingBinding(singleFlightKey) != null) {
+			singleFlight = injector.getInstance(singleFlightKey);
+		}
+		if (injector.getExistingBinding(Key.get(JpaMetrics.class)) != null) {
+			final var persistenceUnitName =
+					singlePersistenceUnitApp
+							|| getPersistenceUnitBindingName().equals(MAIN_PERSISTENCE_UNIT_BINDING_NAME)
+					? mainPersistenceUnitName
+					: getPersistenceUnitBindingName();
+			jpaMetricsRecorder = injector.getInstance(JpaMetrics.class)
+					.getRecorder(persistenceUnitName, config.getServletName());
 		}
 		super.init(config);
 	}
 
 
 
+	/**
+	 * Whether {@link #entityManagerProvider}'s persistence unit is ready, so that obtaining
+	 * {@link EntityManager}s will not block nor fail. Always {@code true} unless the persistence
+	 * unit is
+	 * {@link JpaServletContextListener#shouldBootstrapPersistenceUnitsInBackground() bootstrapped
+	 * in the background}. If the bootstrap failed, {@code false} forever (see
+	 * {@link #isPersistenceUnitFailed()}).
+	 */
+	protected boolean isPersistenceUnitReady() {
+		return deferredEntityManagerFactory == null || deferredEntityManagerFactory.isReady();
+	}
+
+	/**
+	 * Whether the background bootstrap of {@link #entityManagerProvider}'s persistence unit
+	 * failed. Such unit never becomes ready and every attempt to use it throws a
+	 * {@link javax.persistence.PersistenceException}: the webapp needs to be redeployed.
+	 */
+	protected boolean isPersistenceUnitFailed() {
+		return deferredEntityManagerFactory != null
+				&& deferredEntityManagerFactory.isBootstrapFailed();
+	}
+
+	DeferredEntityManagerFactory deferredEntityManagerFactory;
+
+
+
 	/**
 	 * Executes <code>operation</code> within the DB transaction obtained from
 	 * {@link #entityManagerProvider}. If {@code operation} completes normally, commits the
 	 * transaction. Otherwise the transaction is rolled back.
+	 * <p>
+	 * If the persistence unit has read replicas and this call started the transaction, the commit
+	 * is recorded in the current {@link HttpSession} (if any) for read-your-writes stickiness (see
+	 * {@link ReadReplicaRouter}). If the transaction was already active, this is done by the call
+	 * that started it.</p>
+	 * <p>
+	 * Entries of {@link QueryResultCache}s depending on entity types written within the
+	 * transaction are invalidated again after the commit or rollback (see
+	 * {@link #executeWithinTx(Provider, Callable)}).</p>
 	 */
 	protected <T> T executeWithinTx(Callable<T> operation) throws Exception {
-		return executeWithinTx(entityManagerProvider, operation);
+		final var router = readReplicaRouter;
+		final var startsTx =
+				router != null && ! entityManagerProvider.get().getTransaction().isActive();
+		final var result = executeWithinTx(
+				entityManagerProvider, operation, jpaExecutorSizer, jpaMetricsRecorder);
+		if (startsTx) router.recordWrite(getCurrentSession());
+		return result;
 	}
 
 
@@ -106,25 +264,505 @@ public abstract class JpaServlet extends HttpServlet {
 	 * Executes <code>operation</code> within the DB transaction obtained from
 	 * <code>entityManagerProvider</code>. If {@code operation} completes normally, commits the
 	 * transaction. Otherwise the transaction is rolled back.
+	 * <p>
+	 * If any {@link QueryResultCache} is open, entity types written within the transaction (as
+	 * reported to {@link QueryResultCache#recordWrite(Class)}) are invalidated again in all open
+	 * caches after the commit, so that results loaded by concurrent requests between the flush
+	 * and the commit are not retained. The same is done after a rollback, so that results loaded
+	 * after a flush of the rolled back changes (by the transaction itself or by concurrent
+	 * requests in case of a low isolation level) are not retained either. If the transaction was
+	 * already active, this is done by the call that started it.</p>
 	 */
 	public static <T> T executeWithinTx(
 			Provider<EntityManager> entityManagerProvider, Callable<T> operation)
 			throws Exception {
+		return executeWithinTx(entityManagerProvider, operation, null, JpaMetricsRecorder.NOOP);
+	}
+
+	/**
+	 * Executes <code>operation</code> within the DB transaction obtained from
+	 * <code>entityManagerProvider</code> reporting the duration of the transaction start (which
+	 * usually includes JDBC connection acquisition) to <code>sizer</code> if it's not
+	 * {@code null} and the durations of the whole transaction and its commit to
+	 * <code>metricsRecorder</code>.
+	 */
+	static <T> T executeWithinTx(
+		Provider<EntityManager> entityManagerProvider,
+		Callable<T> operation,
+		AdaptiveJpaExecutorSizer sizer,
+		JpaMetricsRecorder metricsRecorder
+	) throws Exception {
+		final var txStartNanos = System.nanoTime();
 		EntityTransaction tx = entityManagerProvider.get().getTransaction();
-		if ( ! tx.isActive()) tx.begin();
+		var recordingWrites = false;
+		if ( ! tx.isActive()) {
+			tx.begin();
+			if (sizer != null) sizer.recordConnectionAcquisition(System.nanoTime() - txStartNanos);
+			recordingWrites = QueryResultCache.startRecordingWrites();
+		}
 		try {
 			T result = operation.call();
 			if (tx.getRollbackOnly()) throw new RollbackException("tx marked rollbackOnly");
+			final var commitStartNanos = System.nanoTime();
 			tx.commit();
+			metricsRecorder.recordCommit(System.nanoTime() - commitStartNanos);
 			return result;
 		} catch (Throwable e) {
 			if (tx.isActive()) tx.rollback();
 			throw e;
+		} finally {
+			if (recordingWrites) {
+				// after commit or rollback: see the javadoc of the public variant
+				QueryResultCache.invalidateWrites(QueryResultCache.stopRecordingWrites());
+			}
+			metricsRecorder.recordTx(System.nanoTime() - txStartNanos);
+		}
+	}
+
+
+
+	/**
+	 * Executes <code>operation</code> within a DB transaction similarly to
+	 * {@link #executeWithinTx(Callable)}, retrying it according to <code>retryPolicy</code> if it
+	 * fails with a transient error (deadlock, serialization failure, optimistic lock conflict
+	 * etc).
+	 * <p>
+	 * Must be called on a {@link #jpaExecutor} thread within the context of a request (for example
+	 * from {@code doXXX} method of a {@link SimpleAsyncJpaServlet}). The 1st attempt is executed
+	 * synchronously. After a transient failure, the {@link EntityManager} of the failed attempt is
+	 * closed and {@link #removeEntityManagerFromRequestScope() removed from the request scope}, so
+	 * that the next attempt gets a fresh one. The backoff is scheduled without blocking the
+	 * current thread and subsequent attempts are dispatched to {@link #jpaExecutor} within the
+	 * context of the original request.</p>
+	 * <p>
+	 * <b>NOTE:</b> if the returned future is not completed by the time this method returns, then
+	 * the remaining processing of the request must be performed in its callbacks. In such case,
+	 * {@link SimpleAsyncJpaServlet}s should override
+	 * {@code SimpleAsyncJpaServlet.shouldCallAsyncContextComplete(request)} to return
+	 * {@code false}, and the callbacks should close the {@link EntityManager} obtained
+	 * from {@link #entityManagerProvider} and complete the {@link javax.servlet.AsyncContext}.</p>
+	 * @return future completed with the result of the first successful attempt or with the failure
+	 *     of the last attempt.
+	 */
+	protected <T> CompletableFuture<T> executeWithinTxWithRetries(
+			Callable<T> operation, TxRetryPolicy retryPolicy) {
+		final var result = new CompletableFuture<T>();
+		final var requestCtx = containerCallContextTracker.getCurrentContext();
+		attemptTx(operation, retryPolicy, 1, requestCtx, result);
+		return result;
+	}
+
+	/**
+	 * Calls {@link #executeWithinTxWithRetries(Callable, TxRetryPolicy)} with
+	 * {@link #getTxRetryPolicy()}.
+	 */
+	protected <T> CompletableFuture<T> executeWithinTxWithRetries(Callable<T> operation) {
+		return executeWithinTxWithRetries(operation, getTxRetryPolicy());
+	}
+
+	/**
+	 * Returns policy used by {@link #executeWithinTxWithRetries(Callable)}. By default
+	 * {@link TxRetryPolicy#DEFAULT}.
+	 */
+	protected TxRetryPolicy getTxRetryPolicy() { return TxRetryPolicy.DEFAULT; }
+
+
+
+	<T> void attemptTx(
+		Callable<T> operation,
+		TxRetryPolicy retryPolicy,
+		int attempt,
+		ContainerCallContext requestCtx,
+		CompletableFuture<T> result
+	) {
+		try {
+			result.complete(executeWithinTx(operation));
+		} catch (Throwable failure) {
+			if ( ! retryPolicy.shouldRetry(failure, attempt) || jpaExecutor.isShutdown()) {
+				result.completeExceptionally(failure);
+				return;
+			}
+			try {
+				entityManagerProvider.get().close();
+			} catch (RuntimeException e) {
+				failure.addSuppressed(e);
+			}
+			removeEntityManagerFromRequestScope();
+			final var backoffMillis = retryPolicy.getBackoffMillis(attempt);
+			if (log.isDebugEnabled()) {
+				log.debug("transient failure of tx attempt " + attempt + " in " + getServletName()
+						+ ", retrying in " + backoffMillis + "ms: " + failure);
+			}
+			final Runnable nextAttempt = () -> requestCtx.executeWithinSelf(
+					() -> attemptTx(operation, retryPolicy, attempt + 1, requestCtx, result));
+			try {
+				getJpaScheduler().schedule(
+					() -> {
+						try {
+							jpaExecutor.execute(nextAttempt);
+						} catch (RejectedExecutionException e) {
+							failure.addSuppressed(e);
+							result.completeExceptionally(failure);
+						}
+					},
+					backoffMillis,
+					TimeUnit.MILLISECONDS
+				);
+			} catch (RejectedExecutionException e) {
+				failure.addSuppressed(e);
+				result.completeExceptionally(failure);
+			}
+		}
+	}
+
+	/**
+	 * Asynchronously executes <code>operation</code> within a DB transaction on
+	 * {@link #jpaExecutor}. The returned stage allows to pipeline request processing across
+	 * executors without nesting {@code execute(...)} calls:
+	 * <pre>
+	 * supplyInTx(() -&gt; dao.find(id))
+	 *     .thenApplyAsync((record) -&gt; externalService.process(record), externalServiceExecutor)
+	 *     .thenCompose((result) -&gt; supplyInTx(() -&gt; dao.update(result)))
+	 *     .whenComplete((updated, error) -&gt; {
+	 *         // send response here...
+	 *         asyncCtx.complete();
+	 *     });</pre>
+	 * <p>
+	 * {@code operation} is executed within the context of the request from which this method was
+	 * called, so request-scoped objects are preserved. After {@code operation} completes and
+	 * before the returned stage is completed, the {@link EntityManager} obtained from
+	 * {@link #entityManagerProvider} is closed and
+	 * {@link #removeEntityManagerFromRequestScope() removed from the request scope}: this way the
+	 * JDBC connection is held only for the duration of the stage and subsequent stages get a fresh
+	 * {@link EntityManager}. As a consequence, entities returned by {@code operation} are
+	 * detached.</p>
+	 * <p>
+	 * Dependent stages executed synchronously by the completing thread run within the request
+	 * context as well. If {@link #jpaExecutor} rejects the task, the returned stage completes
+	 * exceptionally with {@link RejectedExecutionException}.</p>
+	 * <p>
+	 * <b>NOTE:</b> calling servlets must start {@link javax.servlet.AsyncContext} and complete it
+	 * at the end of the pipeline. {@link SimpleAsyncJpaServlet}s should override
+	 * {@code shouldCallAsyncContextComplete(request)} to return {@code false} for such
+	 * requests.</p>
+	 */
+	protected <T> CompletableFuture<T> supplyInTx(Callable<T> operation) {
+		return supplyWithEntityManager(
+				jpaExecutor, jpaExecutorSizer, () -> executeWithinTx(operation));
+	}
+
+	/**
+	 * Same as {@link #supplyInTx(Callable)}, but executes <code>operation</code> using
+	 * {@link #executeReadOnly(Callable)}. If the operation is routed to a read replica, it's
+	 * dispatched to the replica's executor instead of {@link #jpaExecutor}.
+	 */
+	protected <T> CompletableFuture<T> supplyReadOnly(Callable<T> operation) {
+		return supplyReadOnly(operation, null);
+	}
+
+	/**
+	 * Same as {@link #supplyReadOnly(Callable)}, but first runs <code>beforeStart</code> (if not
+	 * {@code null}) on the executor thread before an {@link EntityManager} is obtained: if it
+	 * throws, <code>operation</code> is not executed and the returned stage completes
+	 * exceptionally.
+	 */
+	<T> CompletableFuture<T> supplyReadOnly(Callable<T> operation, Runnable beforeStart) {
+		final var router = readReplicaRouter;
+		if ( ! shouldRouteToReplica(router)) {
+			return supplyWithEntityManager(
+				jpaExecutor,
+				jpaExecutorSizer,
+				() -> {
+					if (beforeStart != null) beforeStart.run();
+					return executeReadOnly(
+						entityManagerProvider,
+						operation,
+						shouldMarkReadOnlyConnections(),
+						shouldExecuteReadOnlyWithoutTx(),
+						jpaExecutorSizer,
+						jpaMetricsRecorder
+					);
+				}
+			);
 		}
+		final var replica = router.acquireReplica();
+		return supplyWithEntityManager(
+			replica.getJpaExecutor(),
+			null,
+			() -> {
+				if (beforeStart != null) beforeStart.run();
+				return executeReadOnlyOnReplica(replica, operation);
+			}
+		).whenComplete((result, error) -> router.releaseReplica(replica));
+	}
+
+	/**
+	 * Asynchronously executes <code>operation</code> within a transaction shared with other
+	 * concurrent operations using {@link #groupCommitCoordinator}. See
+	 * {@link GroupCommitCoordinator} for requirements that grouped operations must satisfy: most
+	 * importantly they must use exclusively the {@link EntityManager} passed to them.
+	 * <p>
+	 * If group commit is not enabled for {@link #entityManagerProvider}'s persistence unit,
+	 * <code>operation</code> is executed alone using {@link #supplyInTx(Callable)} with the
+	 * {@link EntityManager} obtained from {@link #entityManagerProvider}.</p>
+	 * <p>
+	 * If the persistence unit has read replicas, the commit is recorded in the current
+	 * {@link HttpSession} (if any) before the returned stage completes, the same way as by
+	 * {@link #executeWithinTx(Callable)}.</p>
+	 * <p>
+	 * <b>NOTE:</b> unlike with {@link #supplyInTx(Callable)}, dependent stages executed
+	 * synchronously by the completing thread do <b>not</b> run within the request context.</p>
+	 */
+	protected <T> CompletableFuture<T> executeWithinGroupTx(
+			GroupCommitCoordinator.Operation<T> operation) {
+		final var coordinator = groupCommitCoordinator;
+		if (coordinator == null) {
+			return supplyInTx(() -> operation.execute(entityManagerProvider.get()));
+		}
+		final var router = readReplicaRouter;
+		if (router == null) return coordinator.executeWithinGroupTx(operation);
+		final var session = getCurrentSession();
+		return coordinator.executeWithinGroupTx(operation).whenComplete((result, error) -> {
+			if (error == null) router.recordWrite(session);
+		});
 	}
 
 
 
+	<T> CompletableFuture<T> supplyWithEntityManager(
+		ContextTrackingExecutor executor,
+		AdaptiveJpaExecutorSizer sizer,
+		Callable<T> jpaTask
+	) {
+		final var result = new CompletableFuture<T>();
+		final var requestCtx = containerCallContextTracker.getCurrentContext();
+		final var metricsRecorder = jpaMetricsRecorder;
+		final var dispatchNanos = System.nanoTime();
+		try {
+			executor.execute(() -> requestCtx.executeWithinSelf(() -> {
+				final var startNanos = System.nanoTime();
+				if (sizer != null) sizer.startTask(startNanos - dispatchNanos);
+				metricsRecorder.recordQueueWait(startNanos - dispatchNanos);
+				T value = null;
+				Throwable failure = null;
+				try {
+					value = jpaTask.call();
+				} catch (Throwable e) {
+					failure = e;
+				}
+				try {
+					closeEntityManager(metricsRecorder, startNanos);
+					removeEntityManagerFromRequestScope();
+				} catch (RuntimeException e) {
+					if (failure == null) {
+						failure = e;
+					} else {
+						failure.addSuppressed(e);
+					}
+				}
+				if (sizer != null) sizer.finishTask(System.nanoTime() - startNanos);
+				if (failure == null) {
+					result.complete(value);
+				} else {
+					result.completeExceptionally(failure);
+					if (failure instanceof Error) throw (Error) failure;
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+
+
+	/**
+	 * Closes the {@link EntityManager} obtained from {@link #entityManagerProvider} if it's open,
+	 * reporting its lifetime to <code>metricsRecorder</code>. A {@link LazyEntityManager} that was
+	 * never used is not created just to be closed.
+	 */
+	void closeEntityManager(JpaMetricsRecorder metricsRecorder, long startNanos) {
+		final var entityManager = entityManagerProvider.get();
+		if (entityManager instanceof LazyEntityManager) {
+			final var lazyEntityManager = (LazyEntityManager) entityManager;
+			if ( ! lazyEntityManager.isCreated()) {
+				if (lazyEntityManager.isOpen()) lazyEntityManager.close();
+				return;
+			}
+			startNanos = lazyEntityManager.getCreationNanos();
+		}
+		if ( ! entityManager.isOpen()) return;
+		entityManager.close();
+		metricsRecorder.recordEntityManagerLifetime(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Executes read-only <code>operation</code> using {@link #entityManagerProvider}. Compared to
+	 * {@link #executeWithinTx(Callable)}, the {@link EntityManager} is switched to read-only mode
+	 * for the duration of the call, so no dirty checking and no flush takes place and (if
+	 * Hibernate is the JPA provider) loaded entities are read-only and have no snapshots.
+	 * Modifications made to the loaded entities will <b>not</b> be stored in the DB.
+	 * <p>
+	 * If {@link #shouldMarkReadOnlyConnections()} returns {@code true} and a new transaction is
+	 * started, the JDBC connection is also marked read-only for the duration of the transaction.
+	 * If {@link #shouldExecuteReadOnlyWithoutTx()} returns {@code true}, {@code operation} is
+	 * executed without starting a transaction.</p>
+	 * <p>
+	 * All the changes made to the {@link EntityManager} and the connection are reverted at the
+	 * end.</p>
+	 * <p>
+	 * If the persistence unit has read replicas and {@link #readReplicaRouter} decides so,
+	 * {@code operation} is executed on the current thread using a connection of the replica with
+	 * the least outstanding operations: {@link EntityManager}s obtained from
+	 * {@link #entityManagerProvider} during the call are routed to it.</p>
+	 */
+	protected <T> T executeReadOnly(Callable<T> operation) throws Exception {
+		final var router = readReplicaRouter;
+		if (shouldRouteToReplica(router)) {
+			final var replica = router.acquireReplica();
+			try {
+				return executeReadOnlyOnReplica(replica, operation);
+			} finally {
+				router.releaseReplica(replica);
+			}
+		}
+		return executeReadOnly(
+			entityManagerProvider,
+			operation,
+			shouldMarkReadOnlyConnections(),
+			shouldExecuteReadOnlyWithoutTx(),
+			jpaExecutorSizer,
+			jpaMetricsRecorder
+		);
+	}
+
+	/**
+	 * Whether {@link #executeReadOnly(Callable)} should mark JDBC connections read-only. By default
+	 * {@code false}.
+	 * <p>
+	 * The connection is marked before the transaction is started and its read-write mode is
+	 * restored from within the transaction right before the commit, while the connection is
+	 * still held by the {@link EntityManager}. Therefore this may be overridden to return
+	 * {@code true} only if the JDBC driver allows to call
+	 * {@link java.sql.Connection#setReadOnly(boolean)} within a transaction (for example MySQL
+	 * Connector/J does, while PostgreSQL JDBC does not) and the DB benefits from read-only
+	 * transactions (or the driver routes them to replicas). Failed restores are logged as errors,
+	 * as they leave read-only connections in the pool.</p>
+	 */
+	protected boolean shouldMarkReadOnlyConnections() { return false; }
+
+	/**
+	 * Whether a read-only operation should be routed to a replica: <code>router</code> is not
+	 * {@code null}, it decides so for the current session and {@link #entityManagerProvider}
+	 * provides {@link ReplicaRoutingEntityManager}s (otherwise the operation is executed on the
+	 * primary unit). Must be checked before a replica is acquired.
+	 */
+	boolean shouldRouteToReplica(ReadReplicaRouter router) {
+		if (router == null || ! router.shouldRouteToReplica(getCurrentSession())) return false;
+		if (entityManagerProvider.get() instanceof ReplicaRoutingEntityManager) return true;
+		log.debug("EntityManagers of " + getServletName() + " are not ReplicaRoutingEntityManagers"
+				+ ": executing read-only operation on the primary unit");
+		return false;
+	}
+
+	/**
+	 * Executes <code>operation</code> on <code>replica</code>. {@link #entityManagerProvider}
+	 * must provide {@link ReplicaRoutingEntityManager}s (see
+	 * {@link #shouldRouteToReplica(ReadReplicaRouter)}).
+	 */
+	<T> T executeReadOnlyOnReplica(ReadReplicaRouter.Replica replica, Callable<T> operation)
+			throws Exception {
+		return readReplicaRouter.executeOnReplica(
+			(ReplicaRoutingEntityManager) entityManagerProvider.get(),
+			replica,
+			() -> executeReadOnly(
+				entityManagerProvider,
+				operation,
+				shouldMarkReadOnlyConnections(),
+				shouldExecuteReadOnlyWithoutTx(),
+				null,
+				jpaMetricsRecorder
+			)
+		);
+	}
+
+	/**
+	 * Returns {@link HttpSession} of the current request if it exists, {@code null} otherwise.
+	 */
+	HttpSession getCurrentSession() {
+		final var requestCtx = containerCallContextTracker.getCurrentContext();
+		if ( ! (requestCtx instanceof ServletRequestContext)) return null;
+		try {
+			return ((ServletRequestContext) requestCtx).getRequest().getSession(false);
+		} catch (IllegalStateException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Whether {@link #executeReadOnly(Callable)} should execute operations without a transaction.
+	 * By default {@code false}.
+	 * <p>
+	 * JPA allows queries and {@link EntityManager#find(Class, Object)} outside of transactions for
+	 * resource-local {@link EntityManager}s, in which case the JDBC connection is in auto-commit
+	 * mode and the begin/commit round-trips are avoided. Subsequent queries of the same operation
+	 * may however see different snapshots of the DB.</p>
+	 */
+	protected boolean shouldExecuteReadOnlyWithoutTx() { return false; }
+
+
+
+	/**
+	 * Executes read-only <code>operation</code> within the DB transaction obtained from
+	 * <code>entityManagerProvider</code> with its {@link EntityManager} switched to read-only
+	 * mode. The JDBC connection is not marked read-only.
+	 * @see #executeReadOnly(Callable)
+	 */
+	public static <T> T executeReadOnly(
+			Provider<EntityManager> entityManagerProvider, Callable<T> operation)
+			throws Exception {
+		return executeReadOnly(
+				entityManagerProvider, operation, false, false, null, JpaMetricsRecorder.NOOP);
+	}
+
+	/**
+	 * Executes <code>operation</code> in read-only mode.
+	 * @param markConnection whether to mark the JDBC connection read-only if a new transaction is
+	 *     started: the flag is restored from within the transaction before its commit (see
+	 *     {@link #shouldMarkReadOnlyConnections()}).
+	 */
+	static <T> T executeReadOnly(
+		Provider<EntityManager> entityManagerProvider,
+		Callable<T> operation,
+		boolean markConnection,
+		boolean withoutTx,
+		AdaptiveJpaExecutorSizer sizer,
+		JpaMetricsRecorder metricsRecorder
+	) throws Exception {
+		final var entityManager = entityManagerProvider.get();
+		final var readOnlySession = ReadOnlySession.enter(
+			entityManager,
+			markConnection && ! withoutTx && ! entityManager.getTransaction().isActive()
+		);
+		try {
+			if (withoutTx) return operation.call();
+			return executeWithinTx(
+				entityManagerProvider,
+				() -> {
+					try {
+						return operation.call();
+					} finally {
+						readOnlySession.restoreConnection();  // before the connection is released
+					}
+				},
+				sizer,
+				metricsRecorder
+			);
+		} finally {
+			readOnlySession.exit();
+		}
+	}
+
 	/**
 	 * Removes the stored {@link EntityManager} from the scope of the current request.
 	 * <p>
@@ -154,4 +792,8 @@ public abstract class JpaServlet extends HttpServlet {
 	}
 
 	@Inject protected ContextTracker<ContainerCallContext> containerCallContextTracker;
+
+
+
+	static final Logger log = LoggerFactory.getLogger(JpaServlet.class.getName());
 }
@@ -1,13 +1,33 @@
 // Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
 package pl.morgwai.base.servlet.guiced.jpa;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import javax.persistence.SharedCacheMode;
 import javax.servlet.ServletContextEvent;
 
+import com.google.inject.Binder;
 import com.google.inject.Injector;
 import com.google.inject.Module;
 import com.google.inject.name.Names;
@@ -36,13 +56,10 @@ import pl.morgwai.base.servlet.scopes.GuiceServletContextListener;
  * All JPA operations on the main persistence unit should be dispatched to {@link #mainJpaExecutor}
  * to avoid blocking server threads when waiting for an available JDBC connection.</p>
  * <p>
- * Components that need to create named queries as a part of their initialization can request
- * injection of {@link EntityManagerFactory} (with @{@link com.google.inject.name.Named} if app uses
- * multiple persistence units) and create 1 initial {@link EntityManager} instance to create
- * {@link javax.persistence.Query} instances.<br/>
- * <b>NOTE:</b> this initial {@link EntityManagerFactory} and {@link EntityManager} instances
- * <b>MUST NOT</b> be retained beyond named queries initialization.
- * Subsequent JPA operations during normal application request processing should happen via properly
+ * Named queries should be declared as {@link JpaNamedQuery}-annotated constants in classes
+ * returned by {@link #getNamedQueryClasses(String)}, so that they are compiled and registered at
+ * the bootstrap of their persistence unit.<br/>
+ * JPA operations during normal application request processing should happen via properly
  * scoped {@link EntityManager} instances obtained from the injected
  * {@link com.google.inject.Provider Provider}&lt;{@link EntityManager}&gt;.</p>
  */
@@ -85,19 +102,27 @@ public abstract class JpaServletContextListener extends GuiceServletContextListe
 	 * Setting the value too low will result in underutilization of the connection pool, while
 	 * setting it too big will have no other impact than the cost of creating the threads, which is
 	 * usually negligible on 64bit machines.</p>
+	 * <p>
+	 * If {@link #shouldUseVirtualJpaThreads()} is overridden to return {@code true}, then the value
+	 * should be the same as the size of the associated JDBC connection pool.</p>
 	 */
 	protected abstract int getMainJpaThreadPoolSize();
 
 	/**
 	 * Creates an executor to be associated with a persistence unit. Used to create
 	 * {@link #mainJpaExecutor}. Subclasses may override this method to customize executor creation.
-	 * By default returns
+	 * By default, if {@link #shouldUseVirtualJpaThreads()} returns {@code true}, returns
+	 * {@link #createVirtualJpaExecutor(String, int) createVirtualJpaExecutor(persistenceUnitName,
+	 * poolSize)}, otherwise returns
 	 * <pre>
 	 * servletModule.newContextTrackingExecutor(
 	 *         persistenceUnitName + JPA_EXECUTOR_NAME_SUFFIX, poolSize);</pre>
 	 */
 	protected ContextTrackingExecutor createJpaExecutor(
 			String persistenceUnitName, int poolSize) {
+		if (shouldUseVirtualJpaThreads()) {
+			return createVirtualJpaExecutor(persistenceUnitName, poolSize);
+		}
 		return servletModule.newContextTrackingExecutor(
 				persistenceUnitName + JPA_EXECUTOR_NAME_SUFFIX, poolSize);
 	}
@@ -110,6 +135,908 @@ public abstract class JpaServletContextListener extends GuiceServletContextListe
 
 
 
+	/**
+	 * Indicates whether JPA executors created by {@link #createJpaExecutor(String, int)} should run
+	 * tasks on virtual threads. By default {@code false}.
+	 * <p>
+	 * If {@code true}, each task runs on its own new virtual thread and {@code poolSize} param of
+	 * {@link #createJpaExecutor(String, int)} (and thus {@link #getMainJpaThreadPoolSize()}) is
+	 * interpreted as the maximum number of concurrently executing JPA tasks and should be the same
+	 * as the size of the associated JDBC connection pool: as virtual threads blocked on JDBC calls
+	 * do not occupy platform threads, there's no need to tune the number of threads separately
+	 * from the number of connections. Adaptive sizing (see
+	 * {@link #getMainJpaThreadPoolMaxSize()}) is not applied to such executors.</p>
+	 * <p>
+	 * Virtual threads are available since Java 21 (and since 19 as a preview feature if enabled).
+	 * If the current JVM does not support them, an info is logged and a regular fixed pool of
+	 * {@code poolSize} platform threads is used instead.</p>
+	 * @see #createVirtualJpaExecutor(String, int)
+	 */
+	protected boolean shouldUseVirtualJpaThreads() { return false; }
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread, bounding the number of
+	 * concurrently executing tasks to {@code maxConcurrentTasks} with a fair {@link Semaphore}.
+	 * Used by {@link #createJpaExecutor(String, int)} if {@link #shouldUseVirtualJpaThreads()}
+	 * returns {@code true}.
+	 * <p>
+	 * The returned executor is a regular {@link ContextTrackingExecutor}, so container-call and
+	 * session contexts are transferred to tasks the same way as in case of platform threads. It
+	 * has no queue: each dispatched task immediately gets its own virtual thread, which acquires a
+	 * permit of the semaphore before running the task and releases it afterwards. Therefore
+	 * thousands of requests dispatched by {@link SimpleAsyncJpaServlet}s can be awaiting for a
+	 * connection parked on the semaphore without occupying any platform thread, while at most
+	 * {@code maxConcurrentTasks} of them execute at a time in the order of their dispatch.</p>
+	 * <p>
+	 * As the executor's pool size is unbounded and its worker count includes the tasks awaiting
+	 * for a permit, it must not be resized (for example by {@link AdaptiveJpaExecutorSizer}).</p>
+	 */
+	protected ContextTrackingExecutor createVirtualJpaExecutor(
+			String persistenceUnitName, int maxConcurrentTasks) {
+		final var executorName = persistenceUnitName + JPA_EXECUTOR_NAME_SUFFIX;
+		final var virtualThreadFactory = newVirtualThreadFactory(executorName + "-virtual-");
+		if (virtualThreadFactory == null) {
+			log.info("virtual threads not supported by the current JVM, " + executorName
+					+ " will use a fixed pool of platform threads");
+			return servletModule.newContextTrackingExecutor(executorName, maxConcurrentTasks);
+		}
+		final var permits = new Semaphore(maxConcurrentTasks, true);
+		return servletModule.newContextTrackingExecutor(
+			executorName,
+			0,
+			Integer.MAX_VALUE,
+			0l,  // each worker exits right after its task
+			TimeUnit.SECONDS,
+			new SynchronousQueue<>(),
+			(worker) -> virtualThreadFactory.newThread(() -> {
+				// uninterruptibly, so that the worker always runs and the pool's accounting holds
+				permits.acquireUninterruptibly();
+				try {
+					worker.run();
+				} finally {
+					permits.release();
+				}
+			}),
+			new ThreadPoolExecutor.AbortPolicy()
+		);
+	}
+
+	/**
+	 * Returns a factory of virtual threads named with {@code namePrefix} followed by a sequence
+	 * number, or {@code null} if the current JVM does not support virtual threads. As this lib is
+	 * compiled for Java 11, the factory is obtained reflectively.
+	 */
+	static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+		try {
+			final var builderClass = Class.forName("java.lang.Thread$Builder");
+			var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, namePrefix, 0l);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			// Java < 19 or preview features not enabled on Java 19-20
+			return null;
+		}
+	}
+
+
+
+	/**
+	 * Returns the upper bound for the thread pool size of {@link #mainJpaExecutor}. By default
+	 * returns {@link #getMainJpaThreadPoolSize()}, which disables adaptive sizing.
+	 * <p>
+	 * If overridden to return a value greater than {@link #getMainJpaThreadPoolSize()}, then an
+	 * {@link AdaptiveJpaExecutorSizer} is created using
+	 * {@link #createJpaExecutorSizer(String, ContextTrackingExecutor, int, int)} and
+	 * {@link #getMainJpaThreadPoolSize()} becomes the lower bound: the pool will be periodically
+	 * grown or shrunk between these bounds according to measured queue wait, task run time and
+	 * JDBC connection acquisition latency, so that load-testing does not need to be redone each
+	 * time the traffic mix changes.</p>
+	 * <p>
+	 * The sizer is bound for injection similarly to {@link #mainJpaExecutor} and is used by
+	 * {@link JpaServlet}s to report measurements.</p>
+	 */
+	protected int getMainJpaThreadPoolMaxSize() { return getMainJpaThreadPoolSize(); }
+
+	/**
+	 * Returns the interval between subsequent thread pool size adjustments performed by
+	 * {@link AdaptiveJpaExecutorSizer}s. By default 5000ms.
+	 */
+	protected long getJpaThreadPoolSizingIntervalMillis() { return 5000l; }
+
+	/**
+	 * Creates and starts an {@link AdaptiveJpaExecutorSizer} for {@code executor}. Used for
+	 * {@link #mainJpaExecutor} if {@link #getMainJpaThreadPoolMaxSize()} is greater than
+	 * {@link #getMainJpaThreadPoolSize()}. Apps that use multiple persistence units may use this
+	 * method for their other executors as well. Sizers created this way are stopped in
+	 * {@link #contextDestroyed(ServletContextEvent)}.
+	 */
+	protected AdaptiveJpaExecutorSizer createJpaExecutorSizer(
+			String persistenceUnitName,
+			ContextTrackingExecutor executor,
+			int minPoolSize,
+			int maxPoolSize
+	) {
+		final var sizer = new AdaptiveJpaExecutorSizer(
+				persistenceUnitName + JPA_EXECUTOR_NAME_SUFFIX, executor, minPoolSize, maxPoolSize);
+		sizer.start(getJpaScheduler(), getJpaThreadPoolSizingIntervalMillis());
+		jpaExecutorSizers.add(sizer);
+		return sizer;
+	}
+
+	final List<AdaptiveJpaExecutorSizer> jpaExecutorSizers = new LinkedList<>();
+
+	/**
+	 * Sizer of {@link #mainJpaExecutor} if {@link #getMainJpaThreadPoolMaxSize()} is greater than
+	 * {@link #getMainJpaThreadPoolSize()} and {@link #shouldUseVirtualJpaThreads()} returns
+	 * {@code false}, {@code null} otherwise.
+	 */
+	protected AdaptiveJpaExecutorSizer mainJpaExecutorSizer;
+
+
+
+	/**
+	 * Returns the maximum size of batches of {@link #mainBatchingJpaWriter}. By default {@code 0},
+	 * which means that {@link #mainBatchingJpaWriter} is not created.
+	 * <p>
+	 * If overridden to return a positive value, a {@link BatchingJpaWriter} for
+	 * {@link #getMainPersistenceUnitName() the main persistence unit} is created using
+	 * {@link #createBatchingJpaWriter(String, EntityManagerFactory, Executor, int)} and bound for
+	 * injection similarly to {@link #mainJpaExecutor}.</p>
+	 */
+	protected int getMainJpaWriteBatchSize() { return 0; }
+
+	/**
+	 * Returns the maximum time an entity may await in a {@link BatchingJpaWriter}'s batch before
+	 * the batch is dispatched regardless of its size. By default 10ms.
+	 */
+	protected long getJpaWriteBatchMaxDelayMillis() { return 10l; }
+
+	/**
+	 * Creates a {@link BatchingJpaWriter} that writes batches on <code>jpaExecutor</code>. Used for
+	 * {@link #mainBatchingJpaWriter} if {@link #getMainJpaWriteBatchSize()} is positive. Apps that
+	 * use multiple persistence units may use this method for their other persistence units as well.
+	 * Writers created this way are closed in {@link #contextDestroyed(ServletContextEvent)} before
+	 * JPA executors are shut down, so that pending entities are written.
+	 */
+	protected BatchingJpaWriter createBatchingJpaWriter(
+		String persistenceUnitName,
+		EntityManagerFactory entityManagerFactory,
+		Executor jpaExecutor,
+		int maxBatchSize
+	) {
+		final var writer = new BatchingJpaWriter(
+			persistenceUnitName + BATCHING_WRITER_NAME_SUFFIX,
+			entityManagerFactory,
+			jpaExecutor,
+			getJpaScheduler(),
+			maxBatchSize,
+			getJpaWriteBatchMaxDelayMillis()
+		);
+		batchingJpaWriters.add(writer);
+		return writer;
+	}
+
+	/**
+	 * Appended to persistence unit name to create associated {@link BatchingJpaWriter} name.
+	 * @see #createBatchingJpaWriter(String, EntityManagerFactory, Executor, int)
+	 */
+	public static final String BATCHING_WRITER_NAME_SUFFIX = "BatchingWriter";
+
+	final List<BatchingJpaWriter> batchingJpaWriters = new LinkedList<>();
+
+	/**
+	 * Batching writer of {@link #getMainPersistenceUnitName() the main persistence unit} if
+	 * {@link #getMainJpaWriteBatchSize()} is positive, {@code null} otherwise.
+	 */
+	protected BatchingJpaWriter mainBatchingJpaWriter;
+
+
+
+	/**
+	 * Returns the maximum number of operations merged into a single transaction by
+	 * {@link #mainGroupCommitCoordinator}. By default {@code 0}, which means that
+	 * {@link #mainGroupCommitCoordinator} is not created and
+	 * {@link JpaServlet#executeWithinGroupTx(GroupCommitCoordinator.Operation)} executes each
+	 * operation alone.
+	 * <p>
+	 * If overridden to return a positive value, a {@link GroupCommitCoordinator} for
+	 * {@link #getMainPersistenceUnitName() the main persistence unit} is created using
+	 * {@link #createGroupCommitCoordinator(String, EntityManagerFactory, Executor, int)} and bound
+	 * for injection similarly to {@link #mainJpaExecutor}.</p>
+	 */
+	protected int getMainJpaGroupCommitSize() { return 0; }
+
+	/**
+	 * Returns the time window during which concurrently submitted operations are merged into a
+	 * single transaction by {@link GroupCommitCoordinator}s. By default 2ms.
+	 */
+	protected long getJpaGroupCommitWindowMillis() { return 2l; }
+
+	/**
+	 * Creates a {@link GroupCommitCoordinator} that executes group transactions on
+	 * <code>jpaExecutor</code>. Used for {@link #mainGroupCommitCoordinator} if
+	 * {@link #getMainJpaGroupCommitSize()} is positive. Apps that use multiple persistence units
+	 * may use this method for their other persistence units as well. Coordinators created this way
+	 * are closed in {@link #contextDestroyed(ServletContextEvent)} before JPA executors are shut
+	 * down.
+	 */
+	protected GroupCommitCoordinator createGroupCommitCoordinator(
+		String persistenceUnitName,
+		EntityManagerFactory entityManagerFactory,
+		Executor jpaExecutor,
+		int maxGroupSize
+	) {
+		final var coordinator = new GroupCommitCoordinator(
+			persistenceUnitName + GROUP_COMMIT_COORDINATOR_NAME_SUFFIX,
+			entityManagerFactory,
+			jpaExecutor,
+			getJpaScheduler(),
+			maxGroupSize,
+			getJpaGroupCommitWindowMillis()
+		);
+		groupCommitCoordinators.add(coordinator);
+		return coordinator;
+	}
+
+	/**
+	 * Appended to persistence unit name to create associated {@link GroupCommitCoordinator} name.
+	 * @see #createGroupCommitCoordinator(String, EntityManagerFactory, Executor, int)
+	 */
+	public static final String GROUP_COMMIT_COORDINATOR_NAME_SUFFIX = "GroupCommitCoordinator";
+
+	final List<GroupCommitCoordinator> groupCommitCoordinators = new LinkedList<>();
+
+	/**
+	 * Group commit coordinator of {@link #getMainPersistenceUnitName() the main persistence unit}
+	 * if {@link #getMainJpaGroupCommitSize()} is positive, {@code null} otherwise.
+	 */
+	protected GroupCommitCoordinator mainGroupCommitCoordinator;
+
+
+
+	/**
+	 * Returns the maximum number of entries of {@link #mainQueryResultCache}. By default
+	 * {@code 0}, which means that {@link #mainQueryResultCache} is not created.
+	 * <p>
+	 * If overridden to return a positive value, a {@link QueryResultCache} for
+	 * {@link #getMainPersistenceUnitName() the main persistence unit} is created using
+	 * {@link #createQueryResultCache(String, int)} and bound for injection similarly to
+	 * {@link #mainJpaExecutor}. Entities whose writes should invalidate cached results must be
+	 * registered with {@link QueryResultCache.EntityListener}.</p>
+	 */
+	protected int getMainQueryResultCacheSize() { return 0; }
+
+	/**
+	 * Returns the time after which entries of {@link QueryResultCache}s expire regardless of
+	 * invalidations. By default 60000ms.
+	 */
+	protected long getQueryResultCacheTtlMillis() { return 60_000l; }
+
+	/**
+	 * Creates a {@link QueryResultCache}. Used for {@link #mainQueryResultCache} if
+	 * {@link #getMainQueryResultCacheSize()} is positive. Apps that use multiple persistence units
+	 * may use this method for their other persistence units as well. Caches created this way are
+	 * closed in {@link #contextDestroyed(ServletContextEvent)}.
+	 */
+	protected QueryResultCache createQueryResultCache(String persistenceUnitName, int maxSize) {
+		final var cache = new QueryResultCache(persistenceUnitName + QUERY_RESULT_CACHE_NAME_SUFFIX,
+				maxSize, getQueryResultCacheTtlMillis());
+		queryResultCaches.add(cache);
+		return cache;
+	}
+
+	/**
+	 * Appended to persistence unit name to create associated {@link QueryResultCache} name.
+	 * @see #createQueryResultCache(String, int)
+	 */
+	public static final String QUERY_RESULT_CACHE_NAME_SUFFIX = "QueryResultCache";
+
+	final List<QueryResultCache> queryResultCaches = new LinkedList<>();
+
+	/**
+	 * Query result cache of {@link #getMainPersistenceUnitName() the main persistence unit} if
+	 * {@link #getMainQueryResultCacheSize()} is positive, {@code null} otherwise.
+	 */
+	protected QueryResultCache mainQueryResultCache;
+
+
+
+	/**
+	 * Returns configs of persistence units other than
+	 * {@link #getMainPersistenceUnitName() the main one}. By default an empty list. Requires
+	 * {@link #isSinglePersistenceUnitApp()} to return {@code false}.
+	 * <p>
+	 * For each config, an {@link EntityManagerFactory} and an executor (using
+	 * {@link #createJpaExecutor(String, int)}) are created together with an
+	 * {@link AdaptiveJpaExecutorSizer}, a {@link BatchingJpaWriter} and a
+	 * {@link GroupCommitCoordinator} if the config enables them. All of them and request-scoped
+	 * {@link EntityManager}s (created with {@link #createEntityManager(EntityManagerFactory)}) are
+	 * bound for injection with
+	 * {@link com.google.inject.name.Named @Named(config.getBindingName())} and closed in
+	 * {@link #contextDestroyed(ServletContextEvent)}.</p>
+	 * <p>
+	 * {@link EntityManagerFactory}s of all the configured units and of the main one are created
+	 * in parallel (see {@link #createEntityManagerFactories(List)}).</p>
+	 */
+	protected List<PersistenceUnitConfig> getAdditionalPersistenceUnitConfigs() {
+		return List.of();
+	}
+
+	/**
+	 * Creates {@link EntityManagerFactory}s of <code>persistenceUnitNames</code> in parallel, each
+	 * on a separate thread, as bootstrapping a persistence unit is usually dominated by waiting
+	 * for the DB (schema validation, metadata queries, initial connections).
+	 * <p>
+	 * If {@link #shouldBootstrapPersistenceUnitsInBackground()} returns {@code true}, returns
+	 * {@link DeferredEntityManagerFactory}s immediately. Otherwise awaits for all the factories to
+	 * be created and if any of them fails, the ones created successfully are closed and the
+	 * failure is rethrown.</p>
+	 * @return factories in the order of <code>persistenceUnitNames</code>.
+	 */
+	protected List<EntityManagerFactory> createEntityManagerFactories(
+			List<String> persistenceUnitNames) {
+		final var background = shouldBootstrapPersistenceUnitsInBackground();
+		if (persistenceUnitNames.size() == 1 && !background) {
+			return List.of(createEntityManagerFactory(
+					persistenceUnitNames.get(0), persistenceUnitNames.get(0)));
+		}
+		final var bootstrapExecutor = Executors.newFixedThreadPool(
+			persistenceUnitNames.size(),
+			(task) -> {
+				final var thread = new Thread(task, "persistenceUnitBootstrap");
+				thread.setDaemon(true);
+				return thread;
+			}
+		);
+		try {
+			final var futures = new ArrayList<CompletableFuture<EntityManagerFactory>>(
+					persistenceUnitNames.size());
+			for (var persistenceUnitName: persistenceUnitNames) {
+				futures.add(bootstrapEntityManagerFactory(persistenceUnitName, bootstrapExecutor));
+			}
+			final var entityManagerFactories =
+					new ArrayList<EntityManagerFactory>(persistenceUnitNames.size());
+			if (background) {
+				for (int i = 0; i < futures.size(); i++) {
+					entityManagerFactories.add(new DeferredEntityManagerFactory(
+							persistenceUnitNames.get(i), futures.get(i)));
+				}
+				return entityManagerFactories;
+			}
+			RuntimeException failure = null;
+			for (var future: futures) {
+				try {
+					entityManagerFactories.add(future.join());
+				} catch (CompletionException e) {
+					final var cause = e.getCause() instanceof RuntimeException
+							? (RuntimeException) e.getCause() : e;
+					if (failure == null) {
+						failure = cause;
+					} else {
+						failure.addSuppressed(cause);
+					}
+				}
+			}
+			if (failure != null) {
+				for (var entityManagerFactory: entityManagerFactories) entityManagerFactory.close();
+				throw failure;
+			}
+			return entityManagerFactories;
+		} finally {
+			bootstrapExecutor.shutdown();  // already submitted bootstraps will still be executed
+		}
+	}
+
+	CompletableFuture<EntityManagerFactory> bootstrapEntityManagerFactory(
+			String persistenceUnitName, Executor bootstrapExecutor) {
+		return CompletableFuture.supplyAsync(
+			() -> {
+				final var startMillis = System.currentTimeMillis();
+				final var entityManagerFactory =
+						createEntityManagerFactory(persistenceUnitName, persistenceUnitName);
+				log.info("persistence unit " + persistenceUnitName + " bootstrapped in "
+						+ (System.currentTimeMillis() - startMillis) + "ms");
+				return entityManagerFactory;
+			},
+			bootstrapExecutor
+		).whenComplete((entityManagerFactory, error) -> {
+			if (error != null) {
+				log.error("bootstrap of persistence unit " + persistenceUnitName + " failed, "
+						+ "requests using it will be rejected until the webapp is redeployed",
+						error);
+			}
+		});
+	}
+
+	/**
+	 * Returns classes declaring {@link JpaNamedQuery}-annotated constants that should be
+	 * registered as named queries of <code>persistenceUnitName</code> at its bootstrap using
+	 * {@link JpaNamedQueries#register(EntityManagerFactory, java.util.Collection)}. If any of the
+	 * queries fails to compile, the bootstrap of the unit fails. By default an empty list.
+	 * <p>
+	 * Read replicas of {@link #getMainPersistenceUnitName() the main persistence unit} register
+	 * the queries of the main unit. Registered queries are also
+	 * {@link #getWarmUpNamedQueryNames(String) primed during the warm-up} by default.</p>
+	 */
+	protected List<Class<?>> getNamedQueryClasses(String persistenceUnitName) {
+		return List.of();
+	}
+
+	/**
+	 * Creates the {@link EntityManagerFactory} of <code>persistenceUnitName</code> with
+	 * {@link #getPersistenceUnitProperties(String) its property overrides} and registers named
+	 * queries returned by {@link #getNamedQueryClasses(String)} for
+	 * <code>namedQueryUnitName</code>.
+	 */
+	EntityManagerFactory createEntityManagerFactory(
+			String persistenceUnitName, String namedQueryUnitName) {
+		final var properties =
+				new HashMap<String, Object>(getPersistenceUnitProperties(persistenceUnitName));
+		final var sharedCacheMode = getSharedCacheMode(persistenceUnitName);
+		if (sharedCacheMode != null) properties.put(SHARED_CACHE_MODE_PROPERTY, sharedCacheMode);
+		final var entityManagerFactory = properties.isEmpty()
+				? Persistence.createEntityManagerFactory(persistenceUnitName)
+				: Persistence.createEntityManagerFactory(persistenceUnitName, properties);
+		final var namedQueryClasses = getNamedQueryClasses(namedQueryUnitName);
+		if (namedQueryClasses.isEmpty()) return entityManagerFactory;
+		try {
+			final var queryNames =
+					JpaNamedQueries.register(entityManagerFactory, namedQueryClasses);
+			namedQueryNames.put(persistenceUnitName, queryNames);
+			log.info(queryNames.size() + " named queries registered in " + persistenceUnitName);
+			return entityManagerFactory;
+		} catch (RuntimeException e) {
+			entityManagerFactory.close();
+			throw e;
+		}
+	}
+
+	// persistence unit name -> names of queries registered by createEntityManagerFactory(...)
+	final Map<String, List<String>> namedQueryNames = new ConcurrentHashMap<>();
+
+
+
+	/**
+	 * Returns properties overriding the ones from <code>persistence.xml</code> file for
+	 * <code>persistenceUnitName</code> (the main unit, additional units, read replicas and
+	 * shards). By default an empty map.
+	 * <p>
+	 * This is the place to configure a provider-specific second-level cache: its region factory,
+	 * size bounds, eviction and statistics (for example
+	 * {@link JCacheSecondLevelCache#getHibernateProperties(String, String)} for Hibernate with a
+	 * bounded JCache implementation or {@code eclipselink.cache.size.default} for EclipseLink)
+	 * differently per environment without maintaining separate <code>persistence.xml</code>
+	 * files.</p>
+	 */
+	protected Map<String, Object> getPersistenceUnitProperties(String persistenceUnitName) {
+		return Map.of();
+	}
+
+	/**
+	 * Returns {@link SharedCacheMode} of <code>persistenceUnitName</code> overriding the one from
+	 * <code>persistence.xml</code> file or {@code null} to keep it. By default {@code null}.
+	 * <p>
+	 * {@link SharedCacheMode#ENABLE_SELECTIVE} together with
+	 * {@link javax.persistence.Cacheable @Cacheable} on hot, rarely written reference entities is
+	 * usually the best choice. Cache modes of individual lookups and queries may be further
+	 * adjusted using {@link JpaCachePolicy}.</p>
+	 */
+	protected SharedCacheMode getSharedCacheMode(String persistenceUnitName) { return null; }
+
+	/** Standard JPA property for {@link SharedCacheMode}. */
+	public static final String SHARED_CACHE_MODE_PROPERTY = "javax.persistence.sharedCache.mode";
+
+	/**
+	 * Configures <code>cachePolicy</code> of <code>persistenceUnitName</code> (the main unit or
+	 * an additional one). Does nothing by default.
+	 * <p>
+	 * Policies are bound for injection similarly to {@link #mainJpaExecutor} (additional units:
+	 * with {@link com.google.inject.name.Named @Named(config.getBindingName())}) and available to
+	 * {@link JpaServlet}s as {@link JpaServlet#cachePolicy}.</p>
+	 */
+	protected void configureCachePolicy(String persistenceUnitName, JpaCachePolicy cachePolicy) {}
+
+	/** Cache policy of {@link #getMainPersistenceUnitName() the main persistence unit}. */
+	protected JpaCachePolicy mainCachePolicy;
+
+
+
+	/**
+	 * Coalescer of concurrent identical reads of
+	 * {@link #getMainPersistenceUnitName() the main persistence unit}. Bound for injection
+	 * similarly to {@link #mainJpaExecutor} and available to {@link JpaServlet}s as
+	 * {@link JpaServlet#singleFlight}. Each
+	 * {@link #getAdditionalPersistenceUnitConfigs() additional persistence unit} gets its own
+	 * {@link SingleFlight} as well.
+	 */
+	protected SingleFlight mainSingleFlight;
+
+
+
+	/**
+	 * Indicates whether {@link EntityManagerFactory}s of
+	 * {@link #getMainPersistenceUnitName() the main persistence unit} and
+	 * {@link #getAdditionalPersistenceUnitConfigs() additional ones} should be bootstrapped on
+	 * background threads in parallel with the injector creation and the rest of the webapp
+	 * initialization. By default {@code false}.
+	 * <p>
+	 * If {@code true}, {@link DeferredEntityManagerFactory}s are bound instead of the actual
+	 * factories: their first actual use blocks until the bootstrap is finished.
+	 * {@link SimpleAsyncJpaServlet}s by default reject requests until their persistence unit is
+	 * ready (see {@link SimpleAsyncJpaServlet#shouldRejectRequestsUntilPersistenceUnitReady()}).
+	 * </p>
+	 * <p>
+	 * If a background bootstrap fails, the failure is logged and the webapp keeps running, but
+	 * the unit never becomes ready: {@link SimpleAsyncJpaServlet}s using it keep rejecting
+	 * requests (see {@link JpaServlet#isPersistenceUnitFailed()}) and any other use of it throws
+	 * a {@link javax.persistence.PersistenceException}. Health checks should therefore verify
+	 * {@link DeferredEntityManagerFactory#isBootstrapFailed()} and the webapp needs to be
+	 * redeployed. Synchronous bootstrap failures fail the deployment as usual.</p>
+	 * <p>
+	 * Note that components that use an {@link EntityManagerFactory} during their initialization
+	 * (for example to create named queries in their constructors) will block the injector
+	 * creation until the bootstrap of their unit is finished. Read replica and shard units are
+	 * always bootstrapped synchronously.</p>
+	 */
+	protected boolean shouldBootstrapPersistenceUnitsInBackground() { return false; }
+
+
+
+	/**
+	 * Indicates whether {@link #getMainPersistenceUnitName() the main persistence unit}, its
+	 * {@link #getMainReadReplicaPersistenceUnitNames() read replicas} and
+	 * {@link #getAdditionalPersistenceUnitConfigs() additional persistence units} together with
+	 * their executors should be warmed up using {@link JpaWarmUp} before the webapp starts
+	 * serving requests. By default {@code false}.
+	 * <p>
+	 * Warm-up runs right after the injector is created and before servlets are added, for at most
+	 * {@link #getWarmUpTimeoutMillis()}. If persistence units are
+	 * {@link #shouldBootstrapPersistenceUnitsInBackground() bootstrapped in the background}, the
+	 * warm-up also runs in the background after the bootstrap.</p>
+	 * @see #getWarmUpQueries(String)
+	 * @see #getWarmUpNamedQueryNames(String)
+	 */
+	protected boolean shouldWarmUpPersistenceUnits() { return false; }
+
+	/**
+	 * Returns queries to execute on every thread of the executor of
+	 * <code>persistenceUnitName</code> during the warm-up. Typically these should be the most
+	 * frequent queries of the app with parameters that match no or few rows. By default an empty
+	 * list.
+	 */
+	protected List<JpaWarmUp.Query> getWarmUpQueries(String persistenceUnitName) {
+		return List.of();
+	}
+
+	/**
+	 * Returns names of named queries of <code>persistenceUnitName</code> to create on every
+	 * thread of its executor during the warm-up. By default names of queries registered from
+	 * {@link #getNamedQueryClasses(String)}.
+	 */
+	protected List<String> getWarmUpNamedQueryNames(String persistenceUnitName) {
+		return namedQueryNames.getOrDefault(persistenceUnitName, List.of());
+	}
+
+	/**
+	 * Returns the maximum time the webapp initialization waits for the warm-up to finish. By
+	 * default 30000ms.
+	 */
+	protected long getWarmUpTimeoutMillis() { return 30_000l; }
+
+	/**
+	 * Creates a {@link JpaWarmUp} for <code>persistenceUnitName</code>. Subclasses may override
+	 * this method to customize the warm-up of particular units.
+	 */
+	protected JpaWarmUp createJpaWarmUp(
+		String persistenceUnitName,
+		EntityManagerFactory entityManagerFactory,
+		ContextTrackingExecutor jpaExecutor
+	) {
+		return new JpaWarmUp(
+			persistenceUnitName,
+			entityManagerFactory,
+			jpaExecutor,
+			getWarmUpNamedQueryNames(persistenceUnitName),
+			getWarmUpQueries(persistenceUnitName),
+			getWarmUpTimeoutMillis()
+		);
+	}
+
+	void warmUpPersistenceUnits() {
+		final var startMillis = System.currentTimeMillis();
+		final var warmUps = new ArrayList<CompletableFuture<Void>>();
+		try {
+			warmUps.add(createJpaWarmUp(
+					getMainPersistenceUnitName(), mainEntityManagerFactory, mainJpaExecutor)
+				.start());
+			if (mainReadReplicaRouter != null) {
+				for (var replica: mainReadReplicaRouter.getReplicas()) {
+					warmUps.add(createJpaWarmUp(replica.getPersistenceUnitName(),
+							replica.getEntityManagerFactory(), replica.getJpaExecutor()).start());
+				}
+			}
+			for (var unit: additionalPersistenceUnits.values()) {
+				warmUps.add(createJpaWarmUp(unit.config.getPersistenceUnitName(),
+						unit.entityManagerFactory, unit.jpaExecutor).start());
+			}
+			CompletableFuture.allOf(warmUps.toArray(new CompletableFuture<?>[0]))
+				.get(getWarmUpTimeoutMillis(), TimeUnit.MILLISECONDS);
+			log.info("warm-up of persistence units finished in "
+					+ (System.currentTimeMillis() - startMillis) + "ms");
+		} catch (TimeoutException e) {
+			log.warn("warm-up of persistence units did not finish within "
+					+ getWarmUpTimeoutMillis() + "ms, proceeding");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | RuntimeException e) {
+			log.warn("warm-up of persistence units failed", e);
+		}
+	}
+
+
+
+	/**
+	 * Returns the {@link EntityManagerFactory} of the additional persistence unit bound with
+	 * <code>bindingName</code> (see {@link #getAdditionalPersistenceUnitConfigs()}). Available
+	 * after the injector is created.
+	 */
+	protected EntityManagerFactory getEntityManagerFactory(String bindingName) {
+		return getAdditionalPersistenceUnit(bindingName).entityManagerFactory;
+	}
+
+	/**
+	 * Returns the executor of the additional persistence unit bound with
+	 * <code>bindingName</code> (see {@link #getAdditionalPersistenceUnitConfigs()}). Available
+	 * after the injector is created.
+	 */
+	protected ContextTrackingExecutor getJpaExecutor(String bindingName) {
+		return getAdditionalPersistenceUnit(bindingName).jpaExecutor;
+	}
+
+	AdditionalPersistenceUnit getAdditionalPersistenceUnit(String bindingName) {
+		final var unit = additionalPersistenceUnits.get(bindingName);
+		if (unit == null) {
+			throw new IllegalArgumentException("no persistence unit bound as " + bindingName);
+		}
+		return unit;
+	}
+
+	final Map<String, AdditionalPersistenceUnit> additionalPersistenceUnits =
+			new LinkedHashMap<>();
+
+	static class AdditionalPersistenceUnit {
+
+		final PersistenceUnitConfig config;
+		final EntityManagerFactory entityManagerFactory;
+		ContextTrackingExecutor jpaExecutor;
+		AdaptiveJpaExecutorSizer jpaExecutorSizer;
+		BatchingJpaWriter batchingJpaWriter;
+		GroupCommitCoordinator groupCommitCoordinator;
+		JpaCachePolicy cachePolicy;
+		final SingleFlight singleFlight = new SingleFlight();
+
+		AdditionalPersistenceUnit(
+			PersistenceUnitConfig config,
+			EntityManagerFactory entityManagerFactory
+		) {
+			this.config = config;
+			this.entityManagerFactory = entityManagerFactory;
+		}
+	}
+
+	void createAdditionalPersistenceUnitComponents(AdditionalPersistenceUnit unit) {
+		final var config = unit.config;
+		final var unitName = config.getPersistenceUnitName();
+		unit.jpaExecutor = createJpaExecutor(unitName, config.getThreadPoolSize());
+		if (
+			config.getMaxThreadPoolSize() > config.getThreadPoolSize()
+			&& ! shouldUseVirtualJpaThreads()
+		) {
+			unit.jpaExecutorSizer = createJpaExecutorSizer(unitName, unit.jpaExecutor,
+					config.getThreadPoolSize(), config.getMaxThreadPoolSize());
+		}
+		if (config.getWriteBatchSize() > 0) {
+			unit.batchingJpaWriter = createBatchingJpaWriter(unitName, unit.entityManagerFactory,
+					unit.jpaExecutor, config.getWriteBatchSize());
+		}
+		if (config.getGroupCommitSize() > 0) {
+			unit.groupCommitCoordinator = createGroupCommitCoordinator(unitName,
+					unit.entityManagerFactory, unit.jpaExecutor, config.getGroupCommitSize());
+		}
+		unit.cachePolicy = new JpaCachePolicy(unit.entityManagerFactory, unitName);
+		configureCachePolicy(unitName, unit.cachePolicy);
+		log.info("entity manager factory " + unitName
+				+ " and its JPA executor created successfully");
+	}
+
+	void bindAdditionalPersistenceUnit(Binder binder, AdditionalPersistenceUnit unit) {
+		final var name = Names.named(unit.config.getBindingName());
+		binder.bind(EntityManager.class)
+			.annotatedWith(name)
+			.toProvider(() -> createEntityManager(unit.entityManagerFactory))
+			.in(servletModule.containerCallScope);
+		binder.bind(EntityManagerFactory.class)
+			.annotatedWith(name)
+			.toInstance(unit.entityManagerFactory);
+		binder.bind(ContextTrackingExecutor.class)
+			.annotatedWith(name)
+			.toInstance(unit.jpaExecutor);
+		if (unit.jpaExecutorSizer != null) {
+			binder.bind(AdaptiveJpaExecutorSizer.class)
+				.annotatedWith(name)
+				.toInstance(unit.jpaExecutorSizer);
+		}
+		if (unit.batchingJpaWriter != null) {
+			binder.bind(BatchingJpaWriter.class)
+				.annotatedWith(name)
+				.toInstance(unit.batchingJpaWriter);
+		}
+		if (unit.groupCommitCoordinator != null) {
+			binder.bind(GroupCommitCoordinator.class)
+				.annotatedWith(name)
+				.toInstance(unit.groupCommitCoordinator);
+		}
+		binder.bind(JpaCachePolicy.class)
+			.annotatedWith(name)
+			.toInstance(unit.cachePolicy);
+		binder.bind(SingleFlight.class)
+			.annotatedWith(name)
+			.toInstance(unit.singleFlight);
+	}
+
+
+
+	/**
+	 * Returns names (in <code>persistence.xml</code> file) of read replica persistence units of
+	 * {@link #getMainPersistenceUnitName() the main persistence unit}. Replica units must map the
+	 * same entities as the main one. By default an empty list.
+	 * <p>
+	 * If overridden to return a non-empty list, {@link #mainReadReplicaRouter} is created using
+	 * {@link #createReadReplicaRouter(List)} and bound for injection similarly to
+	 * {@link #mainJpaExecutor}, while {@link EntityManager}s of the main unit are bound as
+	 * {@link ReplicaRoutingEntityManager}s: read-only operations of {@link JpaServlet}s
+	 * ({@link JpaServlet#executeReadOnly(java.util.concurrent.Callable)} and
+	 * {@link JpaServlet#supplyReadOnly(java.util.concurrent.Callable)}) are then automatically
+	 * routed to replicas without changes to DAOs.</p>
+	 */
+	protected List<String> getMainReadReplicaPersistenceUnitNames() { return List.of(); }
+
+	/**
+	 * Returns the size of the thread pool of the executor associated with the read replica
+	 * <code>replicaPersistenceUnitName</code>. By default {@link #getMainJpaThreadPoolSize()}.
+	 */
+	protected int getReadReplicaThreadPoolSize(String replicaPersistenceUnitName) {
+		return getMainJpaThreadPoolSize();
+	}
+
+	/**
+	 * Returns for how long after a write within a given {@link javax.servlet.http.HttpSession}
+	 * read-only operations of the session are routed to the primary unit instead of replicas.
+	 * Should exceed the typical replication lag. By default 5000ms.
+	 */
+	protected long getReadYourWritesMillis() { return 5000l; }
+
+	/**
+	 * Creates {@link EntityManagerFactory}s and executors (using
+	 * {@link #createJpaExecutor(String, int)}) for <code>replicaPersistenceUnitNames</code> and a
+	 * {@link ReadReplicaRouter} routing to them. Used for {@link #mainReadReplicaRouter}. Apps
+	 * that use multiple persistence units may use this method for their other persistence units
+	 * as well. {@link EntityManagerFactory}s created this way are closed in
+	 * {@link #contextDestroyed(ServletContextEvent)}.
+	 */
+	protected ReadReplicaRouter createReadReplicaRouter(List<String> replicaPersistenceUnitNames) {
+		final var replicas = new LinkedList<ReadReplicaRouter.Replica>();
+		for (var replicaName: replicaPersistenceUnitNames) {
+			final var replicaEntityManagerFactory =
+					createEntityManagerFactory(replicaName, getMainPersistenceUnitName());
+			readReplicaEntityManagerFactories.add(replicaEntityManagerFactory);
+			replicas.add(new ReadReplicaRouter.Replica(
+				replicaName,
+				replicaEntityManagerFactory,
+				createJpaExecutor(replicaName, getReadReplicaThreadPoolSize(replicaName))
+			));
+			log.info("entity manager factory of read replica " + replicaName
+					+ " and its JPA executor created successfully");
+		}
+		return new ReadReplicaRouter(replicas, getReadYourWritesMillis());
+	}
+
+	final List<EntityManagerFactory> readReplicaEntityManagerFactories = new LinkedList<>();
+
+	/**
+	 * Read replica router of {@link #getMainPersistenceUnitName() the main persistence unit} if
+	 * {@link #getMainReadReplicaPersistenceUnitNames()} is not empty, {@code null} otherwise.
+	 */
+	protected ReadReplicaRouter mainReadReplicaRouter;
+
+	EntityManager createMainEntityManager() {
+		return mainReadReplicaRouter != null
+				? new ReplicaRoutingEntityManager(mainEntityManagerFactory)
+				: createEntityManager(mainEntityManagerFactory);
+	}
+
+
+
+	/**
+	 * Creates {@link EntityManagerFactory}s and executors (using
+	 * {@link #createJpaExecutor(String, int)} with {@link #getShardThreadPoolSize(String)}) for
+	 * identically mapped persistence units <code>shardPersistenceUnitNames</code> and returns
+	 * {@link JpaShards} that maps keys to them using <code>keyResolver</code>.
+	 * {@link EntityManagerFactory}s created this way are closed in
+	 * {@link #contextDestroyed(ServletContextEvent)}.
+	 * <p>
+	 * Apps should create their shards in {@link #configureInjections()} and bind them for
+	 * injection similarly to the below:</p>
+	 * <pre>
+	 * public static final List&lt;String&gt; USER_SHARD_NAMES =
+	 *         List.of("userDb0", "userDb1", "userDb2");  // same as in persistence.xml
+	 * JpaShards&lt;Long&gt; userShards;
+	 *
+	 * &commat;Override
+	 * protected LinkedList&lt;Module&gt; configureInjections() {
+	 *     userShards = createJpaShards(USER_SHARD_NAMES, ShardKeyResolver.hashModulo());
+	 *     var modules = new LinkedList&lt;Module&gt;();
+	 *     modules.add((binder) -&gt; binder.bind(new TypeLiteral&lt;JpaShards&lt;Long&gt;&gt;() {})
+	 *             .toInstance(userShards));
+	 *
+	 *     // more modules here...
+	 * }</pre>
+	 */
+	protected <K> JpaShards<K> createJpaShards(
+		List<String> shardPersistenceUnitNames,
+		JpaShards.ShardKeyResolver<? super K> keyResolver
+	) {
+		final var shards = new ArrayList<JpaShards.Shard>(shardPersistenceUnitNames.size());
+		for (var shardName: shardPersistenceUnitNames) {
+			final var shardEntityManagerFactory = createEntityManagerFactory(shardName, shardName);
+			shardEntityManagerFactories.add(shardEntityManagerFactory);
+			shards.add(new JpaShards.Shard(
+				shards.size(),
+				shardName,
+				shardEntityManagerFactory,
+				createJpaExecutor(shardName, getShardThreadPoolSize(shardName))
+			));
+			log.info("entity manager factory of shard " + shardName
+					+ " and its JPA executor created successfully");
+		}
+		return new JpaShards<>(shards, keyResolver);
+	}
+
+	/**
+	 * Returns the size of the thread pool of the executor associated with the shard
+	 * <code>shardPersistenceUnitName</code>. By default {@link #getMainJpaThreadPoolSize()}.
+	 */
+	protected int getShardThreadPoolSize(String shardPersistenceUnitName) {
+		return getMainJpaThreadPoolSize();
+	}
+
+	final List<EntityManagerFactory> shardEntityManagerFactories = new LinkedList<>();
+
+
+
+	// shared by components scheduling JPA related housekeeping tasks, created lazily
+	static ScheduledExecutorService jpaScheduler;
+
+	static synchronized ScheduledExecutorService getJpaScheduler() {
+		if (jpaScheduler == null) {
+			jpaScheduler = Executors.newSingleThreadScheduledExecutor((task) -> {
+				final var thread = new Thread(task, "jpaScheduler");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return jpaScheduler;
+	}
+
+	static synchronized void shutdownJpaScheduler() {
+		if (jpaScheduler == null) return;
+		jpaScheduler.shutdownNow();
+		jpaScheduler = null;
+	}
+
+
+
 	/**
 	 * Indicates whether this app uses only 1 persistence unit. By default <code>true</code>.
 	 * <p>
@@ -120,48 +1047,22 @@ public abstract class JpaServletContextListener extends GuiceServletContextListe
 	 * there's only 1 choice.</p>
 	 * <p>
 	 * Apps that use multiple persistence units should create a separate injection binding name
-	 * constant and a separate {@link ContextTrackingExecutor} instance for each persistence
-	 * unit. Each executor's threadPool size should correspond to the connection pool size of its
-	 * persistence unit.<br/>
-	 * After that, given persistence unit's {@link EntityManagerFactory}, executor and
-	 * {@link EntityManager} should be bound with the corresponding constant as the value of
-	 * {@link com.google.inject.name.Named @Named} in {@link #configureInjections()} similarly
-	 * to the below:</p>
+	 * constant for each persistence unit and declare units other than the main one in
+	 * {@link #getAdditionalPersistenceUnitConfigs()}. Each unit's executor threadPool size should
+	 * correspond to the connection pool size of the unit. Given persistence unit's
+	 * {@link EntityManagerFactory}, executor and {@link EntityManager}s are then bound with the
+	 * corresponding constant as the value of {@link com.google.inject.name.Named @Named} and
+	 * closed automatically:</p>
 	 * <pre>
 	 * &commat;Override
 	 * protected boolean isSinglePersistenceUnitApp() { return false; }
 	 *
 	 * public static final String CHAT_LOG_NAME = "chatLogDb"; // same as in persistence.xml
 	 * public static final int CHAT_LOG_POOL_SIZE = 10;
-	 * EntityManagerFactory chatLogEntityManagerFactory;
-	 * ContextTrackingExecutor chatLogJpaExecutor;
 	 *
 	 * &commat;Override
-	 * protected LinkedList<Module> configureInjections() {
-	 *     chatLogEntityManagerFactory = Persistence.createEntityManagerFactory(CHAT_LOG_NAME);
-	 *     chatLogJpaExecutor = createJpaExecutor(CHAT_LOG_NAME, CHAT_LOG_POOL_SIZE);
-	 *     var modules = new LinkedList<Module>();
-	 *     modules.add((binder) -&gt; {
-	 *         binder.bind(EntityManager.class)
-	 *                 .annotatedWith(Names.named(CHAT_LOG_NAME))
-	 *                 .toProvider(() -&gt; chatLogEntityManagerFactory.createEntityManager())
-	 *                 .in(servletModule.containerCallScope);
-	 *         binder.bind(EntityManagerFactory.class)
-	 *                 .annotatedWith(Names.named(CHAT_LOG_NAME))
-	 *                 .toInstance(chatLogEntityManagerFactory);
-	 *         binder.bind(ContextTrackingExecutor.class)
-	 *                 .annotatedWith(Names.named(CHAT_LOG_NAME))
-	 *                 .toInstance(chatLogJpaExecutor);
-	 *     });
-	 *
-	 *     // more modules here...
-	 * }
-	 *
-	 * &commat;Override
-	 * public void contextDestroyed(ServletContextEvent event) {
-	 *     // user components shutdowns here...
-	 *     super.contextDestroyed(event);
-	 *     chatLogEntityManagerFactory.close();
+	 * protected List&lt;PersistenceUnitConfig&gt; getAdditionalPersistenceUnitConfigs() {
+	 *     return List.of(new PersistenceUnitConfig(CHAT_LOG_NAME, CHAT_LOG_POOL_SIZE));
 	 * }</pre>
 	 *
 	 * @see <a href='https://github.com/morgwai/guiced-servlet-jpa/tree/master/sample-multi-jpa'>
@@ -172,6 +1073,58 @@ public abstract class JpaServletContextListener extends GuiceServletContextListe
 	 // stores the result of isSinglePersistenceUnitApp() for JpaServlet to access
 	static boolean singlePersistenceUnitApp;
 
+	// stores the result of getMainPersistenceUnitName() for JpaServlet to access
+	static String mainPersistenceUnitName;
+
+	/**
+	 * Creates {@link JpaMetrics} to collect per-request JPA timings of {@link JpaServlet}s. By
+	 * default returns {@code null} which disables collecting of metrics.
+	 * <p>
+	 * If overridden to return a non-null value (for example {@link HistogramJpaMetrics}), the
+	 * returned instance is bound for injection (without a name regardless of
+	 * {@link #isSinglePersistenceUnitApp()}) and {@link JpaServlet}s obtain their
+	 * {@link JpaMetricsRecorder}s from it. {@link JpaMetrics#close()} is called in
+	 * {@link #contextDestroyed(ServletContextEvent)}.</p>
+	 */
+	protected JpaMetrics createJpaMetrics() { return null; }
+
+	/**
+	 * Result of {@link #createJpaMetrics()}.
+	 */
+	protected JpaMetrics jpaMetrics;
+
+
+
+	/**
+	 * Indicates whether request-scoped {@link EntityManager}s created by
+	 * {@link #createEntityManager(EntityManagerFactory)} should be {@link LazyEntityManager}s.
+	 * By default {@code false}.
+	 * <p>
+	 * If {@code true}, an actual {@link EntityManager} (and, depending on the JPA provider
+	 * settings, a JDBC connection) is created only when a request uses it for the first time, so
+	 * requests that do not touch JPA do not pay for session setup.</p>
+	 */
+	protected boolean shouldUseLazyEntityManagers() { return false; }
+
+	/**
+	 * Creates a request-scoped {@link EntityManager} of the persistence unit of
+	 * <code>entityManagerFactory</code>: either a {@link LazyEntityManager} or a regular one
+	 * depending on {@link #shouldUseLazyEntityManagers()}.
+	 * <p>
+	 * Used in the binding of {@link #getMainPersistenceUnitName() the main persistence unit}'s
+	 * {@link EntityManager}s (unless it has
+	 * {@link #getMainReadReplicaPersistenceUnitNames() read replicas}). Apps with multiple
+	 * persistence units should use it in their bindings as well (see
+	 * {@link #isSinglePersistenceUnitApp()}).</p>
+	 */
+	protected EntityManager createEntityManager(EntityManagerFactory entityManagerFactory) {
+		return shouldUseLazyEntityManagers()
+				? new LazyEntityManager(entityManagerFactory)
+				: entityManagerFactory.createEntityManager();
+	}
+
+
+
 	/**
 	 * Injection binding name for {@link #getMainPersistenceUnitName() the main persistence unit}
 	 * associated objects in apps that use multiple persistence units.
@@ -193,31 +1146,123 @@ public abstract class JpaServletContextListener extends GuiceServletContextListe
 	/**
 	 * Creates injector with an additional module that binds injections of
 	 * {@link EntityManagerFactory}, {@link #mainJpaExecutor} and {@link EntityManager}s of
-	 * {@link #getMainPersistenceUnitName() the main persistence unit}.
+	 * {@link #getMainPersistenceUnitName() the main persistence unit}. Afterwards warms up
+	 * persistence units if {@link #shouldWarmUpPersistenceUnits()} returns {@code true}.
 	 */
 	@Override
 	protected Injector createInjector(LinkedList<Module> modules)  {
 		singlePersistenceUnitApp = isSinglePersistenceUnitApp();
-		mainEntityManagerFactory = Persistence.createEntityManagerFactory(
-				getMainPersistenceUnitName());
+		mainPersistenceUnitName = getMainPersistenceUnitName();
+		final var additionalConfigs = getAdditionalPersistenceUnitConfigs();
+		if (singlePersistenceUnitApp && !additionalConfigs.isEmpty()) {
+			throw new IllegalStateException("additional persistence units require "
+					+ "isSinglePersistenceUnitApp() to return false");
+		}
+		jpaMetrics = createJpaMetrics();
+		final var persistenceUnitNames = new ArrayList<String>(additionalConfigs.size() + 1);
+		persistenceUnitNames.add(getMainPersistenceUnitName());
+		for (var config: additionalConfigs) {
+			persistenceUnitNames.add(config.getPersistenceUnitName());
+		}
+		final var entityManagerFactories = createEntityManagerFactories(persistenceUnitNames);
+		mainEntityManagerFactory = entityManagerFactories.get(0);
+		for (int i = 0; i < additionalConfigs.size(); i++) {
+			final var config = additionalConfigs.get(i);
+			final var unit =
+					new AdditionalPersistenceUnit(config, entityManagerFactories.get(i + 1));
+			if (additionalPersistenceUnits.put(config.getBindingName(), unit) != null) {
+				throw new IllegalStateException(
+						"duplicate persistence unit binding name " + config.getBindingName());
+			}
+		}
 		mainJpaExecutor = createJpaExecutor(
 				getMainPersistenceUnitName(), getMainJpaThreadPoolSize());
+		if (
+			getMainJpaThreadPoolMaxSize() > getMainJpaThreadPoolSize()
+			&& ! shouldUseVirtualJpaThreads()
+		) {
+			mainJpaExecutorSizer = createJpaExecutorSizer(
+				getMainPersistenceUnitName(),
+				mainJpaExecutor,
+				getMainJpaThreadPoolSize(),
+				getMainJpaThreadPoolMaxSize()
+			);
+		}
+		if (getMainJpaWriteBatchSize() > 0) {
+			mainBatchingJpaWriter = createBatchingJpaWriter(
+				getMainPersistenceUnitName(),
+				mainEntityManagerFactory,
+				mainJpaExecutor,
+				getMainJpaWriteBatchSize()
+			);
+		}
+		mainCachePolicy =
+				new JpaCachePolicy(mainEntityManagerFactory, getMainPersistenceUnitName());
+		configureCachePolicy(getMainPersistenceUnitName(), mainCachePolicy);
+		mainSingleFlight = new SingleFlight();
+		if (getMainQueryResultCacheSize() > 0) {
+			mainQueryResultCache = createQueryResultCache(
+					getMainPersistenceUnitName(), getMainQueryResultCacheSize());
+		}
+		final var replicaNames = getMainReadReplicaPersistenceUnitNames();
+		if ( ! replicaNames.isEmpty()) {
+			mainReadReplicaRouter = createReadReplicaRouter(replicaNames);
+		}
+		if (getMainJpaGroupCommitSize() > 0) {
+			mainGroupCommitCoordinator = createGroupCommitCoordinator(
+				getMainPersistenceUnitName(),
+				mainEntityManagerFactory,
+				mainJpaExecutor,
+				getMainJpaGroupCommitSize()
+			);
+		}
 		log.info("entity manager factory " + getMainPersistenceUnitName()
 				+ " and its JPA executor created successfully");
+		for (var unit: additionalPersistenceUnits.values()) {
+			createAdditionalPersistenceUnitComponents(unit);
+		}
 
 		modules.add((binder) -> {
+			if (jpaMetrics != null) binder.bind(JpaMetrics.class).toInstance(jpaMetrics);
+			for (var unit: additionalPersistenceUnits.values()) {
+				bindAdditionalPersistenceUnit(binder, unit);
+			}
 			if (singlePersistenceUnitApp) {
 				binder.bind(EntityManager.class)
-					.toProvider(() -> mainEntityManagerFactory.createEntityManager())
+					.toProvider(this::createMainEntityManager)
 					.in(servletModule.containerCallScope);
 				binder.bind(EntityManagerFactory.class)
 					.toInstance(mainEntityManagerFactory);
 				binder.bind(ContextTrackingExecutor.class)
 					.toInstance(mainJpaExecutor);
+				binder.bind(JpaCachePolicy.class)
+					.toInstance(mainCachePolicy);
+				binder.bind(SingleFlight.class)
+					.toInstance(mainSingleFlight);
+				if (mainJpaExecutorSizer != null) {
+					binder.bind(AdaptiveJpaExecutorSizer.class)
+						.toInstance(mainJpaExecutorSizer);
+				}
+				if (mainBatchingJpaWriter != null) {
+					binder.bind(BatchingJpaWriter.class)
+						.toInstance(mainBatchingJpaWriter);
+				}
+				if (mainGroupCommitCoordinator != null) {
+					binder.bind(GroupCommitCoordinator.class)
+						.toInstance(mainGroupCommitCoordinator);
+				}
+				if (mainReadReplicaRouter != null) {
+					binder.bind(ReadReplicaRouter.class)
+						.toInstance(mainReadReplicaRouter);
+				}
+				if (mainQueryResultCache != null) {
+					binder.bind(QueryResultCache.class)
+						.toInstance(mainQueryResultCache);
+				}
 			} else {
 				binder.bind(EntityManager.class)
 					.annotatedWith(Names.named(MAIN_PERSISTENCE_UNIT_BINDING_NAME))
-					.toProvider(() -> mainEntityManagerFactory.createEntityManager())
+					.toProvider(this::createMainEntityManager)
 					.in(servletModule.containerCallScope);
 				binder.bind(EntityManagerFactory.class)
 					.annotatedWith(Names.named(MAIN_PERSISTENCE_UNIT_BINDING_NAME))
@@ -225,20 +1270,90 @@ public abstract class JpaServletContextListener extends GuiceServletContextListe
 				binder.bind(ContextTrackingExecutor.class)
 					.annotatedWith(Names.named(MAIN_PERSISTENCE_UNIT_BINDING_NAME))
 					.toInstance(mainJpaExecutor);
+				binder.bind(JpaCachePolicy.class)
+					.annotatedWith(Names.named(MAIN_PERSISTENCE_UNIT_BINDING_NAME))
+					.toInstance(mainCachePolicy);
+				binder.bind(SingleFlight.class)
+					.annotatedWith(Names.named(MAIN_PERSISTENCE_UNIT_BINDING_NAME))
+					.toInstance(mainSingleFlight);
+				if (mainJpaExecutorSizer != null) {
+					binder.bind(AdaptiveJpaExecutorSizer.class)
+						.annotatedWith(Names.named(MAIN_PERSISTENCE_UNIT_BINDING_NAME))
+						.toInstance(mainJpaExecutorSizer);
+				}
+				if (mainBatchingJpaWriter != null) {
+					binder.bind(BatchingJpaWriter.class)
+						.annotatedWith(Names.named(MAIN_PERSISTENCE_UNIT_BINDING_NAME))
+						.toInstance(mainBatchingJpaWriter);
+				}
+				if (mainGroupCommitCoordinator != null) {
+					binder.bind(GroupCommitCoordinator.class)
+						.annotatedWith(Names.named(MAIN_PERSISTENCE_UNIT_BINDING_NAME))
+						.toInstance(mainGroupCommitCoordinator);
+				}
+				if (mainReadReplicaRouter != null) {
+					binder.bind(ReadReplicaRouter.class)
+						.annotatedWith(Names.named(MAIN_PERSISTENCE_UNIT_BINDING_NAME))
+						.toInstance(mainReadReplicaRouter);
+				}
+				if (mainQueryResultCache != null) {
+					binder.bind(QueryResultCache.class)
+						.annotatedWith(Names.named(MAIN_PERSISTENCE_UNIT_BINDING_NAME))
+						.toInstance(mainQueryResultCache);
+				}
 			}
 		});
 
-		return super.createInjector(modules);
+		final var injector = super.createInjector(modules);
+		if (shouldWarmUpPersistenceUnits()) {
+			if (shouldBootstrapPersistenceUnitsInBackground()) {
+				final var warmUpThread = new Thread(this::warmUpPersistenceUnits, "jpaWarmUp");
+				warmUpThread.setDaemon(true);
+				warmUpThread.start();
+			} else {
+				warmUpPersistenceUnits();
+			}
+		}
+		return injector;
 	}
 
 
 
 	/**
-	 * Shuts down the main {@link EntityManagerFactory} and {@link #mainJpaExecutor}.
+	 * Shuts down the main {@link EntityManagerFactory} and {@link #mainJpaExecutor}. Stops
+	 * {@link AdaptiveJpaExecutorSizer}s created with
+	 * {@link #createJpaExecutorSizer(String, ContextTrackingExecutor, int, int)}, closes
+	 * {@link BatchingJpaWriter}s created with
+	 * {@link #createBatchingJpaWriter(String, EntityManagerFactory, Executor, int)} and
+	 * {@link GroupCommitCoordinator}s created with
+	 * {@link #createGroupCommitCoordinator(String, EntityManagerFactory, Executor, int)}, closes
+	 * {@link #jpaMetrics} and read replica {@link EntityManagerFactory}s created with
+	 * {@link #createReadReplicaRouter(List)} and shard {@link EntityManagerFactory}s created with
+	 * {@link #createJpaShards(List, JpaShards.ShardKeyResolver)}. Closes
+	 * {@link EntityManagerFactory}s of
+	 * {@link #getAdditionalPersistenceUnitConfigs() additional persistence units} and
+	 * {@link QueryResultCache}s created with {@link #createQueryResultCache(String, int)}.
 	 */
 	@Override
 	public void contextDestroyed(ServletContextEvent event) {
+		for (var sizer: jpaExecutorSizers) sizer.stop();
+		for (var writer: batchingJpaWriters) writer.close();
+		for (var coordinator: groupCommitCoordinators) coordinator.close();
+		for (var cache: queryResultCaches) cache.close();
 		super.contextDestroyed(event);
+		shutdownJpaScheduler();
+		if (jpaMetrics != null) jpaMetrics.close();
+		for (var replicaEntityManagerFactory: readReplicaEntityManagerFactories) {
+			replicaEntityManagerFactory.close();
+		}
+		for (var shardEntityManagerFactory: shardEntityManagerFactories) {
+			shardEntityManagerFactory.close();
+		}
+		for (var unit: additionalPersistenceUnits.values()) {
+			unit.entityManagerFactory.close();
+			log.info("entity manager factory " + unit.config.getPersistenceUnitName()
+					+ " shutdown completed");
+		}
 		mainEntityManagerFactory.close();
 		log.info("entity manager factory " + getMainPersistenceUnitName() + " shutdown completed");
 	}
@@ -0,0 +1,272 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import pl.morgwai.base.servlet.scopes.ContextTrackingExecutor;
+
+
+
+/**
+ * Set of identically mapped persistence units (shards), each with its own
+ * {@link ContextTrackingExecutor} sized for its JDBC connection pool. A {@link ShardKeyResolver}
+ * maps keys of sharded data (user ids, tenant ids etc) to shards.
+ * <p>
+ * Operations on a single shard are executed asynchronously on the shard's executor using
+ * {@link #executeWithinTx(Object, ShardOperation)} or
+ * {@link #executeReadOnly(Object, ShardOperation)}, while
+ * {@link #scatterGather(ShardOperation)} executes a read-only query on all shards in parallel and
+ * merges the results.</p>
+ * <p>
+ * Operations receive a new {@link EntityManager} of the chosen shard, which is closed after the
+ * operation completes: request-scoped {@link EntityManager}s are not involved, so entities
+ * returned by operations are detached.</p>
+ * <p>
+ * Instances are thread-safe.</p>
+ * @see JpaServletContextListener#createJpaShards(List, ShardKeyResolver)
+ */
+public class JpaShards<K> {
+
+
+
+	/** Maps keys of sharded data to shard indexes. */
+	@FunctionalInterface
+	public interface ShardKeyResolver<K> {
+
+		/** Returns the index of the shard that stores data of <code>key</code>. */
+		int resolveShard(K key, int shardCount);
+
+		/**
+		 * Resolves shards by {@link Object#hashCode()} modulo shard count. Suitable if the number
+		 * of shards never changes.
+		 */
+		static <K> ShardKeyResolver<K> hashModulo() {
+			return (key, shardCount) -> Math.floorMod(key.hashCode(), shardCount);
+		}
+	}
+
+
+
+	/** Unit of work executed on an {@link EntityManager} of a shard. */
+	@FunctionalInterface
+	public interface ShardOperation<T> {
+		T execute(EntityManager entityManager) throws Exception;
+	}
+
+
+
+	/** Shard persistence unit together with its executor. */
+	public static class Shard {
+
+		final int index;
+		public int getIndex() { return index; }
+
+		final String persistenceUnitName;
+		public String getPersistenceUnitName() { return persistenceUnitName; }
+
+		final EntityManagerFactory entityManagerFactory;
+		public EntityManagerFactory getEntityManagerFactory() { return entityManagerFactory; }
+
+		final ContextTrackingExecutor jpaExecutor;
+		public ContextTrackingExecutor getJpaExecutor() { return jpaExecutor; }
+
+		public Shard(
+			int index,
+			String persistenceUnitName,
+			EntityManagerFactory entityManagerFactory,
+			ContextTrackingExecutor jpaExecutor
+		) {
+			this.index = index;
+			this.persistenceUnitName = persistenceUnitName;
+			this.entityManagerFactory = entityManagerFactory;
+			this.jpaExecutor = jpaExecutor;
+		}
+	}
+
+
+
+	final List<Shard> shards;
+	public List<Shard> getShards() { return shards; }
+
+	final ShardKeyResolver<? super K> keyResolver;
+
+
+
+	/**
+	 * @param shards shards in the order of their indexes as resolved by
+	 *     <code>keyResolver</code>.
+	 */
+	public JpaShards(List<Shard> shards, ShardKeyResolver<? super K> keyResolver) {
+		if (shards.isEmpty()) throw new IllegalArgumentException("no shards");
+		for (int i = 0; i < shards.size(); i++) {
+			if (shards.get(i).index != i) {
+				throw new IllegalArgumentException(
+						"shard " + i + " has index " + shards.get(i).index);
+			}
+		}
+		this.shards = List.copyOf(shards);
+		this.keyResolver = keyResolver;
+	}
+
+
+
+	/** Returns the shard that stores data of <code>key</code>. */
+	public Shard getShard(K key) {
+		final var index = keyResolver.resolveShard(key, shards.size());
+		if (index < 0 || index >= shards.size()) {
+			throw new IllegalStateException(
+					"shard index " + index + " out of bounds for key " + key);
+		}
+		return shards.get(index);
+	}
+
+
+
+	/**
+	 * Asynchronously executes <code>operation</code> within a transaction on the shard of
+	 * <code>key</code> using its executor.
+	 * @return future completed with the result of <code>operation</code> after the transaction is
+	 *     committed or completed exceptionally if it fails or the shard's executor rejects it.
+	 */
+	public <T> CompletableFuture<T> executeWithinTx(K key, ShardOperation<T> operation) {
+		return execute(getShard(key), operation, false);
+	}
+
+	/**
+	 * Same as {@link #executeWithinTx(Object, ShardOperation)}, but executes
+	 * <code>operation</code> in read-only mode (see
+	 * {@link JpaServlet#executeReadOnly(javax.inject.Provider, java.util.concurrent.Callable)}).
+	 */
+	public <T> CompletableFuture<T> executeReadOnly(K key, ShardOperation<T> operation) {
+		return execute(getShard(key), operation, true);
+	}
+
+
+
+	/**
+	 * Executes read-only <code>query</code> on all shards in parallel, each on its own executor,
+	 * and concatenates the results in the order of shard indexes.
+	 * @return future completed with the merged results after all shards are done or completed
+	 *     exceptionally if any of them fails.
+	 */
+	public <T> CompletableFuture<List<T>> scatterGather(ShardOperation<List<T>> query) {
+		return scatter(query).thenApply((shardResults) -> {
+			int totalSize = 0;
+			for (var shardResult: shardResults) totalSize += shardResult.size();
+			final var merged = new ArrayList<T>(totalSize);
+			for (var shardResult: shardResults) merged.addAll(shardResult);
+			return merged;
+		});
+	}
+
+	/**
+	 * Executes read-only <code>query</code>, which must return results sorted according to
+	 * <code>order</code>, on all shards in parallel and merges the results preserving the order.
+	 * At most <code>limit</code> first results are returned, so "top N" queries should limit
+	 * results to <code>limit</code> on each shard as well (for example with
+	 * {@link javax.persistence.Query#setMaxResults(int)}).
+	 */
+	public <T> CompletableFuture<List<T>> scatterGather(
+		ShardOperation<List<T>> query,
+		Comparator<? super T> order,
+		int limit
+	) {
+		return scatter(query).thenApply((shardResults) -> mergeSorted(shardResults, order, limit));
+	}
+
+
+
+	<T> CompletableFuture<List<List<T>>> scatter(ShardOperation<List<T>> query) {
+		final List<CompletableFuture<List<T>>> futures = new ArrayList<>(shards.size());
+		for (var shard: shards) futures.add(execute(shard, query, true));
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+			.thenApply((ignored) -> {
+				final var shardResults = new ArrayList<List<T>>(futures.size());
+				for (var future: futures) shardResults.add(future.join());
+				return shardResults;
+			});
+	}
+
+	static <T> List<T> mergeSorted(
+			List<List<T>> sortedLists, Comparator<? super T> order, int limit) {
+		final var heads = new PriorityQueue<MergeCursor<T>>(
+				Math.max(1, sortedLists.size()),
+				(cursor1, cursor2) -> order.compare(cursor1.head(), cursor2.head()));
+		for (var sortedList: sortedLists) {
+			if ( ! sortedList.isEmpty()) heads.add(new MergeCursor<>(sortedList));
+		}
+		final var merged = new ArrayList<T>();
+		while (merged.size() < limit && ! heads.isEmpty()) {
+			final var cursor = heads.poll();
+			merged.add(cursor.head());
+			cursor.position++;
+			if (cursor.position < cursor.list.size()) heads.add(cursor);
+		}
+		return merged;
+	}
+
+	static class MergeCursor<T> {
+
+		final List<T> list;
+		int position = 0;
+
+		MergeCursor(List<T> list) { this.list = list; }
+
+		T head() { return list.get(position); }
+	}
+
+
+
+	<T> CompletableFuture<T> execute(Shard shard, ShardOperation<T> operation, boolean readOnly) {
+		final var result = new CompletableFuture<T>();
+		try {
+			shard.jpaExecutor.execute(() -> {
+				T value = null;
+				Throwable failure = null;
+				EntityManager entityManager = null;
+				try {
+					final var createdEntityManager =
+							shard.entityManagerFactory.createEntityManager();
+					entityManager = createdEntityManager;
+					value = readOnly
+						? JpaServlet.executeReadOnly(
+								() -> createdEntityManager,
+								() -> operation.execute(createdEntityManager))
+						: JpaServlet.executeWithinTx(
+								() -> createdEntityManager,
+								() -> operation.execute(createdEntityManager));
+				} catch (Throwable e) {
+					failure = e;
+				}
+				if (entityManager != null) {
+					try {
+						entityManager.close();
+					} catch (RuntimeException e) {
+						if (failure == null) {
+							failure = e;
+						} else {
+							failure.addSuppressed(e);
+						}
+					}
+				}
+				if (failure == null) {
+					result.complete(value);
+				} else {
+					result.completeExceptionally(failure);
+					if (failure instanceof Error) throw (Error) failure;
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,176 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+
+/**
+ * Warms up a persistence unit and its executor, so that the first requests after a deployment do
+ * not pay for lazy JPA metadata initialization, JDBC connection creation, query compilation and
+ * thread creation.
+ * <p>
+ * {@link #start()} first initializes the unit's {@link javax.persistence.metamodel.Metamodel} and
+ * then submits 1 task per core thread of the executor. Each task waits until all the others have
+ * started, so that every thread of the pool is created and every task acquires a separate JDBC
+ * connection (pre-filling the connection pool). Each task then begins a transaction, creates the
+ * configured named queries, executes the configured warm-up {@link Query queries} and finally
+ * rolls the transaction back. Timings are logged at level {@code INFO} after all tasks finish.</p>
+ * <p>
+ * Failures of warm-up tasks are logged at level {@code WARN} and do not fail the warm-up.</p>
+ * @see JpaServletContextListener#shouldWarmUpPersistenceUnits()
+ */
+public class JpaWarmUp {
+
+
+
+	/** Warm-up query executed on every thread of the warmed up executor. */
+	@FunctionalInterface
+	public interface Query {
+		void execute(EntityManager entityManager) throws Exception;
+	}
+
+
+
+	final String persistenceUnitName;
+	public String getPersistenceUnitName() { return persistenceUnitName; }
+
+	final EntityManagerFactory entityManagerFactory;
+	final ThreadPoolExecutor jpaExecutor;
+	final List<String> namedQueryNames;
+	final List<Query> queries;
+	final long timeoutMillis;
+
+	final LongAccumulator maxConnectionNanos = new LongAccumulator(Math::max, 0l);
+	final LongAccumulator maxNamedQueriesNanos = new LongAccumulator(Math::max, 0l);
+	final LongAccumulator maxQueriesNanos = new LongAccumulator(Math::max, 0l);
+	final AtomicLong failedTaskCount = new AtomicLong(0l);
+
+
+
+	/**
+	 * @param namedQueryNames names of named queries to create on every thread.
+	 * @param queries queries to execute on every thread.
+	 * @param timeoutMillis how long each task waits for the others to start before it proceeds
+	 *     anyway (for example if some threads of the executor are busy with other tasks).
+	 */
+	public JpaWarmUp(
+		String persistenceUnitName,
+		EntityManagerFactory entityManagerFactory,
+		ThreadPoolExecutor jpaExecutor,
+		List<String> namedQueryNames,
+		List<Query> queries,
+		long timeoutMillis
+	) {
+		this.persistenceUnitName = persistenceUnitName;
+		this.entityManagerFactory = entityManagerFactory;
+		this.jpaExecutor = jpaExecutor;
+		this.namedQueryNames = List.copyOf(namedQueryNames);
+		this.queries = List.copyOf(queries);
+		this.timeoutMillis = timeoutMillis;
+	}
+
+
+
+	/**
+	 * Starts the warm-up.
+	 * @return future completed after all warm-up tasks finish.
+	 */
+	public CompletableFuture<Void> start() {
+		final var startNanos = System.nanoTime();
+		entityManagerFactory.getMetamodel().getEntities();
+		final var metamodelNanos = System.nanoTime() - startNanos;
+		final var threadCount = Math.max(1, jpaExecutor.getCorePoolSize());
+		final var started = new CountDownLatch(threadCount);
+		final var tasks = new ArrayList<CompletableFuture<Void>>(threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			final var task = new CompletableFuture<Void>();
+			tasks.add(task);
+			try {
+				jpaExecutor.execute(() -> {
+					try {
+						started.countDown();
+						started.await(timeoutMillis, TimeUnit.MILLISECONDS);
+						warmUpThread();
+					} catch (Throwable e) {
+						failedTaskCount.incrementAndGet();
+						log.warn("warm-up task of " + persistenceUnitName + " failed", e);
+						if (e instanceof Error) throw (Error) e;
+					} finally {
+						task.complete(null);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				started.countDown();
+				failedTaskCount.incrementAndGet();
+				log.warn("warm-up task of " + persistenceUnitName + " rejected", e);
+				task.complete(null);
+			}
+		}
+		return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]))
+			.thenRun(() -> log.info(String.format(
+				"warm-up of %s finished in %dms on %d threads (%d failed): metamodel %dms, "
+						+ "connection acquisition max %dms, named queries max %dms, "
+						+ "warm-up queries max %dms",
+				persistenceUnitName,
+				toMillis(System.nanoTime() - startNanos),
+				threadCount,
+				failedTaskCount.get(),
+				toMillis(metamodelNanos),
+				toMillis(maxConnectionNanos.get()),
+				toMillis(maxNamedQueriesNanos.get()),
+				toMillis(maxQueriesNanos.get())
+			)));
+	}
+
+
+
+	void warmUpThread() throws Exception {
+		final var entityManager = entityManagerFactory.createEntityManager();
+		try {
+			final var tx = entityManager.getTransaction();
+			var startNanos = System.nanoTime();
+			tx.begin();
+			maxConnectionNanos.accumulate(System.nanoTime() - startNanos);
+			try {
+				startNanos = System.nanoTime();
+				for (var namedQueryName: namedQueryNames) {
+					entityManager.createNamedQuery(namedQueryName);
+				}
+				maxNamedQueriesNanos.accumulate(System.nanoTime() - startNanos);
+				startNanos = System.nanoTime();
+				for (var query: queries) query.execute(entityManager);
+				maxQueriesNanos.accumulate(System.nanoTime() - startNanos);
+			} finally {
+				if (tx.isActive()) tx.rollback();
+			}
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	static long toMillis(long nanos) { return nanos / 1_000_000l; }
+
+
+
+	/** Returns the number of warm-up tasks that failed or were rejected by the executor. */
+	public long getFailedTaskCount() { return failedTaskCount.get(); }
+
+
+
+	static final Logger log = LoggerFactory.getLogger(JpaWarmUp.class.getName());
+}
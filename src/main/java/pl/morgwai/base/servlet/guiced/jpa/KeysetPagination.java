@@ -0,0 +1,127 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+import javax.persistence.TypedQuery;
+
+
+
+/**
+ * Helpers for keyset (seek) pagination: instead of skipping {@code OFFSET} rows, each page query
+ * continues right after the ordering key of the last row of the previous page, so the cost of
+ * fetching a page depends on the page size only, not on the page number nor the table size (given
+ * an index on the key).
+ * <p>
+ * Page queries must filter by the key using {@link #AFTER_KEY_PARAM} parameter and order by the
+ * same key ascending, for example:<br/>
+ * {@code select e from ChatLogEntry e where e.id > :afterKey order by e.id}<br/>
+ * The key must be unique (a primary key or a unique column).</p>
+ * <p>
+ * The position of the next page is passed between requests as an opaque, URL-safe
+ * {@link Page#getNextPageToken() page token}.</p>
+ */
+public class KeysetPagination {
+
+
+
+	/** Name of the query parameter receiving the key of the last row of the previous page. */
+	public static final String AFTER_KEY_PARAM = "afterKey";
+
+
+
+	/** Converts ordering keys to page tokens and back. */
+	public interface KeyCodec<K> {
+
+		/** Key preceding all keys, used for the first page. */
+		K getFirstPageKey();
+
+		/** Returns a URL-safe token representing <code>key</code>. */
+		String encode(K key);
+
+		/**
+		 * Returns the key represented by <code>pageToken</code>.
+		 * @throws IllegalArgumentException if <code>pageToken</code> is malformed.
+		 */
+		K decode(String pageToken);
+	}
+
+	/** Codec for {@code Long} keys (such as generated ids). */
+	public static final KeyCodec<Long> LONG_KEYS = new KeyCodec<>() {
+
+		@Override public Long getFirstPageKey() { return Long.MIN_VALUE; }
+
+		@Override public String encode(Long key) { return encodeToken(key.toString()); }
+
+		@Override public Long decode(String pageToken) {
+			return Long.valueOf(decodeToken(pageToken));
+		}
+	};
+
+	/** Encodes <code>value</code> as an URL-safe Base64 token without padding. */
+	public static String encodeToken(String value) {
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Decodes a token created with {@link #encodeToken(String)}.
+	 * @throws IllegalArgumentException if <code>token</code> is not a valid token.
+	 */
+	public static String decodeToken(String token) {
+		return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+	}
+
+
+
+	/** A single page of results. */
+	public static class Page<T> {
+
+		final List<T> items;
+		public List<T> getItems() { return items; }
+
+		final String nextPageToken;
+		/** Token of the next page or {@code null} if this is the last one. */
+		public String getNextPageToken() { return nextPageToken; }
+		public boolean hasNextPage() { return nextPageToken != null; }
+
+		public Page(List<T> items, String nextPageToken) {
+			this.items = List.copyOf(items);
+			this.nextPageToken = nextPageToken;
+		}
+	}
+
+
+
+	/**
+	 * Fetches the page following <code>pageToken</code> (or the first page if
+	 * <code>pageToken</code> is {@code null}) using <code>query</code>. Fetches 1 row more than
+	 * <code>pageSize</code> to find out whether there's a next page.
+	 * @param keyExtractor obtains the ordering key from a result row.
+	 * @throws IllegalArgumentException if <code>pageToken</code> is malformed or
+	 *     <code>pageSize</code> is not positive.
+	 */
+	public static <T, K> Page<T> fetchPage(
+		TypedQuery<T> query,
+		Function<? super T, ? extends K> keyExtractor,
+		KeyCodec<K> keyCodec,
+		String pageToken,
+		int pageSize
+	) {
+		if (pageSize < 1) throw new IllegalArgumentException("pageSize must be at least 1");
+		final var afterKey =
+				pageToken == null ? keyCodec.getFirstPageKey() : keyCodec.decode(pageToken);
+		ResultStreamer.setFetchSize(query, pageSize + 1);
+		final var results = query
+			.setParameter(AFTER_KEY_PARAM, afterKey)
+			.setMaxResults(pageSize + 1)
+			.getResultList();
+		if (results.size() <= pageSize) return new Page<>(results, null);
+		final var items = results.subList(0, pageSize);
+		return new Page<>(
+				items, keyCodec.encode(keyExtractor.apply(items.get(pageSize - 1))));
+	}
+}
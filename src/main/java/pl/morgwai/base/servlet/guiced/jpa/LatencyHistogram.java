@@ -0,0 +1,87 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+/**
+ * Lock-free histogram of durations with power-of-2 nanosecond buckets. Recording does not allocate,
+ * so it's suitable for the request processing hot path.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+
+
+	// bucket i holds durations d such that 2^(i-1) <= d < 2^i (bucket 0 holds 0)
+	final AtomicLongArray buckets = new AtomicLongArray(64);
+	final AtomicLong count = new AtomicLong();
+	final AtomicLong sumNanos = new AtomicLong();
+	final AtomicLong maxNanos = new AtomicLong();
+
+
+
+	public void record(long nanos) {
+		if (nanos < 0l) nanos = 0l;
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+		count.incrementAndGet();
+		sumNanos.addAndGet(nanos);
+		long max;
+		do {
+			max = maxNanos.get();
+		} while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+	}
+
+
+
+	/**
+	 * Returns the upper bound (in nanoseconds) of the bucket containing the given percentile or
+	 * {@code 0} if nothing was recorded.
+	 */
+	public long getPercentileNanos(double percentile) {
+		final var total = count.get();
+		if (total == 0l) return 0l;
+		final var threshold = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0l;
+		for (int i = 0; i < 64; i++) {
+			seen += buckets.get(i);
+			if (seen >= threshold) return i == 0 ? 0l : Math.min((1l << i) - 1l, maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+
+
+	@Override public long getCount() { return count.get(); }
+	@Override public long getMaxMicros() { return maxNanos.get() / 1000l; }
+	@Override public long getP50Micros() { return getPercentileNanos(50.0) / 1000l; }
+	@Override public long getP90Micros() { return getPercentileNanos(90.0) / 1000l; }
+	@Override public long getP99Micros() { return getPercentileNanos(99.0) / 1000l; }
+
+	@Override
+	public long getMeanMicros() {
+		final var total = count.get();
+		return total == 0l ? 0l : sumNanos.get() / total / 1000l;
+	}
+
+
+
+	/** Clears all recorded values. Concurrently recorded values may be partially lost. */
+	@Override
+	public void reset() {
+		for (int i = 0; i < 64; i++) buckets.set(i, 0l);
+		count.set(0l);
+		sumNanos.set(0l);
+		maxNanos.set(0l);
+	}
+
+
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean=" + getMeanMicros() + "us, p50=" + getP50Micros()
+				+ "us, p90=" + getP90Micros() + "us, p99=" + getP99Micros() + "us, max="
+				+ getMaxMicros() + "us";
+	}
+}
@@ -0,0 +1,19 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+
+
+/**
+ * JMX view of a {@link LatencyHistogram}. Percentiles are approximate: they are reported as the
+ * upper bound of the power-of-2 bucket containing the given percentile.
+ */
+public interface LatencyHistogramMBean {
+
+	long getCount();
+	long getMeanMicros();
+	long getMaxMicros();
+	long getP50Micros();
+	long getP90Micros();
+	long getP99Micros();
+	void reset();
+}
@@ -0,0 +1,355 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.*;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.CriteriaUpdate;
+import javax.persistence.metamodel.Metamodel;
+
+
+
+/**
+ * {@link EntityManager} that creates the actual {@link EntityManager} from its
+ * {@link EntityManagerFactory} only when it's used for the first time. {@link #close()}
+ * of a {@code LazyEntityManager} that has never been used does not create anything.
+ * <p>
+ * This way requests that do not touch JPA (cache hits, validation failures etc) do not pay for
+ * session setup, even if their servlet unconditionally closes request-scoped
+ * {@link EntityManager}s as {@link SimpleAsyncJpaServlet} does.</p>
+ * <p>
+ * {@link #getEntityManagerFactory()}, {@link #getCriteriaBuilder()} and {@link #getMetamodel()}
+ * are served directly from the {@link EntityManagerFactory} and do not trigger creation either.
+ * </p>
+ * <p>
+ * Like regular {@link EntityManager}s, instances of this class are not thread-safe.</p>
+ * @see JpaServletContextListener#shouldUseLazyEntityManagers()
+ */
+public class LazyEntityManager implements EntityManager {
+
+
+
+	final EntityManagerFactory entityManagerFactory;
+	EntityManager delegate;
+	long creationNanos;
+	boolean closed = false;
+
+
+
+	public LazyEntityManager(EntityManagerFactory entityManagerFactory) {
+		this.entityManagerFactory = entityManagerFactory;
+	}
+
+
+
+	/** Whether the actual {@link EntityManager} has been created. */
+	public boolean isCreated() { return delegate != null; }
+
+	/**
+	 * Returns {@link System#nanoTime()} from the moment the actual {@link EntityManager} was
+	 * created. Undefined if {@link #isCreated() it was not}.
+	 */
+	public long getCreationNanos() { return creationNanos; }
+
+
+
+	/** Returns the actual {@link EntityManager} creating it if needed. */
+	public EntityManager getEntityManager() {
+		if (delegate == null) {
+			if (closed) throw new IllegalStateException("EntityManager is closed");
+			delegate = entityManagerFactory.createEntityManager();
+			creationNanos = System.nanoTime();
+		}
+		return delegate;
+	}
+
+
+
+	/**
+	 * Closes the actual {@link EntityManager} if it has been created, otherwise just marks this
+	 * one as closed.
+	 */
+	@Override
+	public void close() {
+		if (delegate != null) {
+			delegate.close();
+		} else {
+			if (closed) throw new IllegalStateException("EntityManager is closed");
+			closed = true;
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return delegate != null ? delegate.isOpen() : !closed;
+	}
+
+	@Override
+	public EntityManagerFactory getEntityManagerFactory() {
+		if (delegate != null) return delegate.getEntityManagerFactory();
+		if (closed) throw new IllegalStateException("EntityManager is closed");
+		return entityManagerFactory;
+	}
+
+	@Override
+	public CriteriaBuilder getCriteriaBuilder() {
+		if (delegate != null) return delegate.getCriteriaBuilder();
+		if (closed) throw new IllegalStateException("EntityManager is closed");
+		return entityManagerFactory.getCriteriaBuilder();
+	}
+
+	@Override
+	public Metamodel getMetamodel() {
+		if (delegate != null) return delegate.getMetamodel();
+		if (closed) throw new IllegalStateException("EntityManager is closed");
+		return entityManagerFactory.getMetamodel();
+	}
+
+
+
+	@Override
+	public void persist(Object entity) {
+		getEntityManager().persist(entity);
+	}
+
+	@Override
+	public <T> T merge(T entity) {
+		return getEntityManager().merge(entity);
+	}
+
+	@Override
+	public void remove(Object entity) {
+		getEntityManager().remove(entity);
+	}
+
+	@Override
+	public <T> T find(Class<T> entityClass, Object primaryKey) {
+		return getEntityManager().find(entityClass, primaryKey);
+	}
+
+	@Override
+	public <T> T find(Class<T> entityClass, Object primaryKey, Map<String, Object> properties) {
+		return getEntityManager().find(entityClass, primaryKey, properties);
+	}
+
+	@Override
+	public <T> T find(Class<T> entityClass, Object primaryKey, LockModeType lockMode) {
+		return getEntityManager().find(entityClass, primaryKey, lockMode);
+	}
+
+	@Override
+	public <T> T find(
+		Class<T> entityClass,
+		Object primaryKey,
+		LockModeType lockMode,
+		Map<String, Object> properties
+	) {
+		return getEntityManager().find(entityClass, primaryKey, lockMode, properties);
+	}
+
+	@Override
+	public <T> T getReference(Class<T> entityClass, Object primaryKey) {
+		return getEntityManager().getReference(entityClass, primaryKey);
+	}
+
+	@Override
+	public void flush() {
+		getEntityManager().flush();
+	}
+
+	@Override
+	public void setFlushMode(FlushModeType flushMode) {
+		getEntityManager().setFlushMode(flushMode);
+	}
+
+	@Override
+	public FlushModeType getFlushMode() {
+		return getEntityManager().getFlushMode();
+	}
+
+	@Override
+	public void lock(Object entity, LockModeType lockMode) {
+		getEntityManager().lock(entity, lockMode);
+	}
+
+	@Override
+	public void lock(Object entity, LockModeType lockMode, Map<String, Object> properties) {
+		getEntityManager().lock(entity, lockMode, properties);
+	}
+
+	@Override
+	public void refresh(Object entity) {
+		getEntityManager().refresh(entity);
+	}
+
+	@Override
+	public void refresh(Object entity, Map<String, Object> properties) {
+		getEntityManager().refresh(entity, properties);
+	}
+
+	@Override
+	public void refresh(Object entity, LockModeType lockMode) {
+		getEntityManager().refresh(entity, lockMode);
+	}
+
+	@Override
+	public void refresh(Object entity, LockModeType lockMode, Map<String, Object> properties) {
+		getEntityManager().refresh(entity, lockMode, properties);
+	}
+
+	@Override
+	public void clear() {
+		getEntityManager().clear();
+	}
+
+	@Override
+	public void detach(Object entity) {
+		getEntityManager().detach(entity);
+	}
+
+	@Override
+	public boolean contains(Object entity) {
+		return getEntityManager().contains(entity);
+	}
+
+	@Override
+	public LockModeType getLockMode(Object entity) {
+		return getEntityManager().getLockMode(entity);
+	}
+
+	@Override
+	public void setProperty(String propertyName, Object value) {
+		getEntityManager().setProperty(propertyName, value);
+	}
+
+	@Override
+	public Map<String, Object> getProperties() {
+		return getEntityManager().getProperties();
+	}
+
+	@Override
+	public Query createQuery(String qlString) {
+		return getEntityManager().createQuery(qlString);
+	}
+
+	@Override
+	public <T> TypedQuery<T> createQuery(CriteriaQuery<T> criteriaQuery) {
+		return getEntityManager().createQuery(criteriaQuery);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Query createQuery(CriteriaUpdate updateQuery) {
+		return getEntityManager().createQuery(updateQuery);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Query createQuery(CriteriaDelete deleteQuery) {
+		return getEntityManager().createQuery(deleteQuery);
+	}
+
+	@Override
+	public <T> TypedQuery<T> createQuery(String qlString, Class<T> resultClass) {
+		return getEntityManager().createQuery(qlString, resultClass);
+	}
+
+	@Override
+	public Query createNamedQuery(String name) {
+		return getEntityManager().createNamedQuery(name);
+	}
+
+	@Override
+	public <T> TypedQuery<T> createNamedQuery(String name, Class<T> resultClass) {
+		return getEntityManager().createNamedQuery(name, resultClass);
+	}
+
+	@Override
+	public Query createNativeQuery(String sqlString) {
+		return getEntityManager().createNativeQuery(sqlString);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Query createNativeQuery(String sqlString, Class resultClass) {
+		return getEntityManager().createNativeQuery(sqlString, resultClass);
+	}
+
+	@Override
+	public Query createNativeQuery(String sqlString, String resultSetMapping) {
+		return getEntityManager().createNativeQuery(sqlString, resultSetMapping);
+	}
+
+	@Override
+	public StoredProcedureQuery createNamedStoredProcedureQuery(String name) {
+		return getEntityManager().createNamedStoredProcedureQuery(name);
+	}
+
+	@Override
+	public StoredProcedureQuery createStoredProcedureQuery(String procedureName) {
+		return getEntityManager().createStoredProcedureQuery(procedureName);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public StoredProcedureQuery createStoredProcedureQuery(
+			String procedureName, Class... resultClasses) {
+		return getEntityManager().createStoredProcedureQuery(procedureName, resultClasses);
+	}
+
+	@Override
+	public StoredProcedureQuery createStoredProcedureQuery(
+			String procedureName, String... resultSetMappings) {
+		return getEntityManager().createStoredProcedureQuery(procedureName, resultSetMappings);
+	}
+
+	@Override
+	public void joinTransaction() {
+		getEntityManager().joinTransaction();
+	}
+
+	@Override
+	public boolean isJoinedToTransaction() {
+		return getEntityManager().isJoinedToTransaction();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> cls) {
+		if (cls.isInstance(this)) return cls.cast(this);
+		return getEntityManager().unwrap(cls);
+	}
+
+	@Override
+	public Object getDelegate() {
+		return getEntityManager().getDelegate();
+	}
+
+	@Override
+	public EntityTransaction getTransaction() {
+		return getEntityManager().getTransaction();
+	}
+
+	@Override
+	public <T> EntityGraph<T> createEntityGraph(Class<T> rootType) {
+		return getEntityManager().createEntityGraph(rootType);
+	}
+
+	@Override
+	public EntityGraph<?> createEntityGraph(String graphName) {
+		return getEntityManager().createEntityGraph(graphName);
+	}
+
+	@Override
+	public EntityGraph<?> getEntityGraph(String graphName) {
+		return getEntityManager().getEntityGraph(graphName);
+	}
+
+	@Override
+	public <T> List<EntityGraph<? super T>> getEntityGraphs(Class<T> entityClass) {
+		return getEntityManager().getEntityGraphs(entityClass);
+	}
+}
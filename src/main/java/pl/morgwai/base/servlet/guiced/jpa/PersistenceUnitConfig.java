@@ -0,0 +1,91 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+
+
+/**
+ * Declarative configuration of an additional persistence unit of an app that uses multiple
+ * persistence units. {@link JpaServletContextListener} creates {@link
+ * javax.persistence.EntityManagerFactory}s of all the configured units in parallel, creates their
+ * executors and optional components, binds all of them for injection with
+ * {@link com.google.inject.name.Named @Named(bindingName)} and closes them in
+ * {@link JpaServletContextListener#contextDestroyed(javax.servlet.ServletContextEvent)}.
+ * @see JpaServletContextListener#getAdditionalPersistenceUnitConfigs()
+ */
+public class PersistenceUnitConfig {
+
+
+
+	final String persistenceUnitName;
+	/** Name of the persistence unit in <code>persistence.xml</code> file. */
+	public String getPersistenceUnitName() { return persistenceUnitName; }
+
+	final String bindingName;
+	/**
+	 * Value of {@link com.google.inject.name.Named @Named} for injection bindings of the unit's
+	 * components. {@link JpaServlet}s that use the unit should return it from
+	 * {@link JpaServlet#getPersistenceUnitBindingName()}.
+	 */
+	public String getBindingName() { return bindingName; }
+
+	final int threadPoolSize;
+	/**
+	 * Thread pool size of the unit's executor (see
+	 * {@link JpaServletContextListener#getMainJpaThreadPoolSize()}).
+	 */
+	public int getThreadPoolSize() { return threadPoolSize; }
+
+	final int maxThreadPoolSize;
+	/**
+	 * If greater than {@link #getThreadPoolSize()}, the unit's executor is adaptively sized (see
+	 * {@link JpaServletContextListener#getMainJpaThreadPoolMaxSize()}).
+	 */
+	public int getMaxThreadPoolSize() { return maxThreadPoolSize; }
+
+	final int writeBatchSize;
+	/**
+	 * If positive, a {@link BatchingJpaWriter} is created for the unit (see
+	 * {@link JpaServletContextListener#getMainJpaWriteBatchSize()}).
+	 */
+	public int getWriteBatchSize() { return writeBatchSize; }
+
+	final int groupCommitSize;
+	/**
+	 * If positive, a {@link GroupCommitCoordinator} is created for the unit (see
+	 * {@link JpaServletContextListener#getMainJpaGroupCommitSize()}).
+	 */
+	public int getGroupCommitSize() { return groupCommitSize; }
+
+
+
+	public PersistenceUnitConfig(
+		String persistenceUnitName,
+		String bindingName,
+		int threadPoolSize,
+		int maxThreadPoolSize,
+		int writeBatchSize,
+		int groupCommitSize
+	) {
+		if (threadPoolSize < 1) throw new IllegalArgumentException("threadPoolSize must be >= 1");
+		if (maxThreadPoolSize < threadPoolSize) {
+			throw new IllegalArgumentException("maxThreadPoolSize must be >= threadPoolSize");
+		}
+		this.persistenceUnitName = persistenceUnitName;
+		this.bindingName = bindingName;
+		this.threadPoolSize = threadPoolSize;
+		this.maxThreadPoolSize = maxThreadPoolSize;
+		this.writeBatchSize = writeBatchSize;
+		this.groupCommitSize = groupCommitSize;
+	}
+
+	/** Fixed size executor, no batching writer nor group commit. */
+	public PersistenceUnitConfig(
+			String persistenceUnitName, String bindingName, int threadPoolSize) {
+		this(persistenceUnitName, bindingName, threadPoolSize, threadPoolSize, 0, 0);
+	}
+
+	/** Uses <code>persistenceUnitName</code> as the binding name. */
+	public PersistenceUnitConfig(String persistenceUnitName, int threadPoolSize) {
+		this(persistenceUnitName, persistenceUnitName, threadPoolSize);
+	}
+}
@@ -0,0 +1,322 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+
+
+/**
+ * Application-level cache of query results keyed by query name and parameters, bounded by
+ * {@code maxSize} with LRU eviction and by {@code ttlMillis} expiration.
+ * <p>
+ * Each entry is associated with the entity types its result depends on and is invalidated when
+ * an entity of any of these types (or their subtypes) is written:</p>
+ * <ul>
+ *   <li>entities registered with {@link EntityListener} (for example using
+ *       {@link javax.persistence.EntityListeners @EntityListeners}) report their inserts, updates
+ *       and deletes automatically when they are flushed,</li>
+ *   <li>bulk writes (JPQL {@code update} / {@code delete} queries, native queries) must be
+ *       reported manually using {@link #recordWrite(Class)}.</li>
+ * </ul>
+ * <p>
+ * Additionally, transactions executed with any variant of
+ * {@link JpaServlet#executeWithinTx(javax.inject.Provider, Callable) executeWithinTx(...)}
+ * (including the ones of {@link BatchingJpaWriter}, {@link GroupCommitCoordinator} and
+ * {@link JpaShards}) invalidate again all entity types written within the transaction after it
+ * commits, so that results loaded by concurrent requests between the flush and the commit (that
+ * still saw the old state) are not retained either.</p>
+ * <p>
+ * Cached results are shared between requests and threads, so they must be immutable and must
+ * not require an open persistence context (all the needed associations must be fetched, DTOs are
+ * preferred over entities). A load that overlaps with an invalidation of any of the entity types
+ * its result depends on is not cached, while invalidations of unrelated types do not affect it.
+ * </p>
+ * <p>
+ * Instances are thread-safe.</p>
+ * @see JpaServletContextListener#getMainQueryResultCacheSize()
+ * @see SimpleAsyncJpaServlet#serviceFromCache(javax.servlet.http.HttpServletRequest,
+ *     javax.servlet.http.HttpServletResponse)
+ */
+public class QueryResultCache implements AutoCloseable {
+
+
+
+	/**
+	 * JPA entity listener that reports writes of entities to all open {@code QueryResultCache}s
+	 * using {@link QueryResultCache#recordWrite(Class)}.
+	 */
+	public static class EntityListener {
+
+		@PostPersist
+		@PostUpdate
+		@PostRemove
+		public void onWrite(Object entity) {
+			recordWrite(entity.getClass());
+		}
+	}
+
+
+
+	final String name;
+	public String getName() { return name; }
+
+	final int maxSize;
+	public int getMaxSize() { return maxSize; }
+
+	final long ttlMillis;
+	public long getTtlMillis() { return ttlMillis; }
+
+	final LinkedHashMap<List<Object>, CacheEntry> entries;  // guarded by itself
+
+	// sequence numbers of the most recent invalidations, all guarded by entries
+	long invalidationSequence = 0l;
+	long lastInvalidateAllSequence = 0l;
+	final Map<Class<?>, Long> lastInvalidationSequences = new HashMap<>();
+
+	final LongAdder hitCount = new LongAdder();
+	final LongAdder missCount = new LongAdder();
+	final LongAdder invalidationCount = new LongAdder();
+	final LongAdder evictionCount = new LongAdder();
+
+
+
+	public QueryResultCache(String name, int maxSize, long ttlMillis) {
+		if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1");
+		if (ttlMillis <= 0l) throw new IllegalArgumentException("ttlMillis must be positive");
+		this.name = name;
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+		entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<Object>, CacheEntry> eldest) {
+				if (size() <= QueryResultCache.this.maxSize) return false;
+				evictionCount.increment();
+				return true;
+			}
+		};
+		openCaches.add(this);
+	}
+
+
+
+	/**
+	 * Returns the cached result of <code>queryName</code> with <code>params</code> or
+	 * {@code null} if there's no valid entry. Does not touch the DB, so it may be safely called on
+	 * container threads.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(String queryName, Object... params) {
+		final var key = toKey(queryName, params);
+		synchronized (entries) {
+			final var entry = entries.get(key);
+			if (entry != null) {
+				if (System.nanoTime() - entry.expiresAtNanos < 0l) {
+					hitCount.increment();
+					return (T) entry.result;
+				}
+				entries.remove(key);
+			}
+		}
+		missCount.increment();
+		return null;
+	}
+
+	/**
+	 * Returns the cached result of <code>queryName</code> with <code>params</code> or, if there's
+	 * no valid entry, obtains it from <code>loader</code> and caches it associated with
+	 * <code>entityTypes</code>. {@code null} results are not cached. Neither are results loaded
+	 * within a transaction that has already written any of <code>entityTypes</code>, as they may
+	 * contain changes that will never be committed.
+	 */
+	public <T> T getOrLoad(
+		Set<Class<?>> entityTypes,
+		Callable<T> loader,
+		String queryName,
+		Object... params
+	) throws Exception {
+		final T cached = get(queryName, params);
+		if (cached != null) return cached;
+		final long loadSequence;
+		synchronized (entries) {
+			loadSequence = invalidationSequence;
+		}
+		final var result = loader.call();
+		if (result == null) return null;
+		final var entry = new CacheEntry(
+				result, Set.copyOf(entityTypes), System.nanoTime() + ttlMillis * 1_000_000l);
+		final var uncommittedWrites = writtenTypes.get();
+		if (uncommittedWrites != null) {
+			for (var writtenType: uncommittedWrites) {
+				if (entry.dependsOn(writtenType)) return result;
+			}
+		}
+		synchronized (entries) {
+			if ( ! isInvalidatedSince(loadSequence, entry)) {
+				entries.put(toKey(queryName, params), entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Whether any of the types <code>entry</code> depends on was invalidated after
+	 * <code>sequence</code>. Must be called while holding the lock on {@link #entries}.
+	 */
+	boolean isInvalidatedSince(long sequence, CacheEntry entry) {
+		if (lastInvalidateAllSequence > sequence) return true;
+		for (var invalidation: lastInvalidationSequences.entrySet()) {
+			if (invalidation.getValue() > sequence && entry.dependsOn(invalidation.getKey())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+
+	/**
+	 * Removes all entries that depend on <code>entityType</code>, its supertypes or subtypes.
+	 */
+	public void invalidate(Class<?> entityType) {
+		synchronized (entries) {
+			lastInvalidationSequences.put(entityType, ++invalidationSequence);
+			final var iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().dependsOn(entityType)) {
+					iterator.remove();
+					invalidationCount.increment();
+				}
+			}
+		}
+	}
+
+	/** Removes all entries. */
+	public void invalidateAll() {
+		synchronized (entries) {
+			lastInvalidateAllSequence = ++invalidationSequence;
+			lastInvalidationSequences.clear();
+			invalidationCount.add(entries.size());
+			entries.clear();
+		}
+	}
+
+
+
+	/**
+	 * Invalidates entries depending on <code>entityType</code> in all open caches and, if called
+	 * within a transaction of
+	 * {@link JpaServlet#executeWithinTx(javax.inject.Provider, Callable) executeWithinTx(...)},
+	 * records <code>entityType</code> to be invalidated again after the commit or rollback.
+	 */
+	public static void recordWrite(Class<?> entityType) {
+		for (var cache: openCaches) cache.invalidate(entityType);
+		final var written = writtenTypes.get();
+		if (written != null) written.add(entityType);
+	}
+
+	static final Set<QueryResultCache> openCaches = new CopyOnWriteArraySet<>();
+	static final ThreadLocal<Set<Class<?>>> writtenTypes = new ThreadLocal<>();
+
+	/**
+	 * Starts recording entity types written by the current thread. Returns {@code false} if
+	 * already recording (nested transaction) or if there are no open caches.
+	 */
+	static boolean startRecordingWrites() {
+		if (openCaches.isEmpty() || writtenTypes.get() != null) return false;
+		writtenTypes.set(new HashSet<>());
+		return true;
+	}
+
+	/** Stops recording and returns entity types written since {@link #startRecordingWrites()}. */
+	static Set<Class<?>> stopRecordingWrites() {
+		final var written = writtenTypes.get();
+		writtenTypes.remove();
+		return written;
+	}
+
+	/**
+	 * Invalidates entries depending on any of <code>entityTypes</code> in all open caches. Called
+	 * at the end of a transaction, either committed or rolled back.
+	 */
+	static void invalidateWrites(Set<Class<?>> entityTypes) {
+		if (entityTypes.isEmpty()) return;
+		for (var cache: openCaches) {
+			for (var entityType: entityTypes) cache.invalidate(entityType);
+		}
+	}
+
+
+
+	/** Invalidates all entries and stops receiving writes reported by {@link EntityListener}. */
+	@Override
+	public void close() {
+		openCaches.remove(this);
+		invalidateAll();
+	}
+
+
+
+	static List<Object> toKey(String queryName, Object[] params) {
+		final var key = new ArrayList<>(params.length + 1);
+		key.add(queryName);
+		for (var param: params) key.add(param);
+		return key;
+	}
+
+
+
+	static class CacheEntry {
+
+		final Object result;
+		final Set<Class<?>> entityTypes;
+		final long expiresAtNanos;
+
+		CacheEntry(Object result, Set<Class<?>> entityTypes, long expiresAtNanos) {
+			this.result = result;
+			this.entityTypes = entityTypes;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+
+		boolean dependsOn(Class<?> writtenType) {
+			for (var entityType: entityTypes) {
+				if (entityType.isAssignableFrom(writtenType)) return true;
+				if (writtenType.isAssignableFrom(entityType)) return true;
+			}
+			return false;
+		}
+	}
+
+
+
+	/** Number of {@link #get(String, Object...)} calls that found a valid entry. */
+	public long getHitCount() { return hitCount.sum(); }
+
+	/** Number of {@link #get(String, Object...)} calls that did not find a valid entry. */
+	public long getMissCount() { return missCount.sum(); }
+
+	/** Number of entries removed by invalidations. */
+	public long getInvalidationCount() { return invalidationCount.sum(); }
+
+	/** Number of entries evicted because of {@code maxSize}. */
+	public long getEvictionCount() { return evictionCount.sum(); }
+
+	/** Current number of entries (including expired ones not yet removed). */
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+}
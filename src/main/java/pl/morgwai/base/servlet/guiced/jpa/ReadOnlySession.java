@@ -0,0 +1,228 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+
+/**
+ * Switches an {@link EntityManager} into read-only mode and back. Used by
+ * {@link JpaServlet#executeReadOnly(java.util.concurrent.Callable)}.
+ * <p>
+ * Portable part sets {@link FlushModeType#COMMIT}. If the underlying session is a Hibernate one,
+ * additionally its flush mode is set to {@code MANUAL} (so neither commit nor queries trigger
+ * dirty checking and flush) and it is marked as
+ * {@code defaultReadOnly} (so loaded entities have no snapshots). Hibernate is accessed
+ * reflectively, so this class does not depend on it. Optionally the JDBC connection is marked
+ * {@link Connection#setReadOnly(boolean) read-only}, which allows some drivers and DBs to route
+ * to replicas or to skip some locking.</p>
+ * <p>
+ * The read-only flag of the connection must be restored with {@link #restoreConnection()} while
+ * the connection is still held by the {@link EntityManager}, which usually means before the
+ * commit of the transaction: most providers release connections back to the pool at the end of
+ * each transaction. All the other changes are reverted by {@link #exit()}.</p>
+ */
+class ReadOnlySession {
+
+
+
+	final EntityManager entityManager;
+	final Object session;
+	final HibernateMethods hibernate;
+	final FlushModeType previousFlushMode;
+	Object previousHibernateFlushMode;
+	boolean previousDefaultReadOnly;
+	boolean connectionMarked;
+
+
+
+	/**
+	 * Switches <code>entityManager</code> into read-only mode.
+	 * @param markConnection whether to also mark the JDBC connection read-only. This will acquire
+	 *     a connection if the {@link EntityManager} does not hold any yet, so it should be
+	 *     {@code true} only if a transaction is about to be started on it.
+	 */
+	static ReadOnlySession enter(EntityManager entityManager, boolean markConnection) {
+		final var readOnlySession = new ReadOnlySession(entityManager);
+		try {
+			readOnlySession.enter(markConnection);
+		} catch (RuntimeException e) {
+			readOnlySession.exit();
+			throw e;
+		}
+		return readOnlySession;
+	}
+
+
+
+	ReadOnlySession(EntityManager entityManager) {
+		this.entityManager = entityManager;
+		previousFlushMode = entityManager.getFlushMode();
+		final var delegate = entityManager.getDelegate();
+		if (delegate != null) {
+			final var methods = HIBERNATE_METHODS.get(delegate.getClass());
+			this.session = methods != null ? delegate : null;
+			this.hibernate = methods;
+		} else {
+			this.session = null;
+			this.hibernate = null;
+		}
+	}
+
+
+
+	void enter(boolean markConnection) {
+		entityManager.setFlushMode(FlushModeType.COMMIT);
+		if (hibernate != null) {
+			previousHibernateFlushMode = hibernate.invoke(hibernate.getFlushMode, session);
+			hibernate.invoke(hibernate.setFlushMode, session, hibernate.manualFlushMode);
+			previousDefaultReadOnly = (Boolean) hibernate.invoke(hibernate.isReadOnly, session);
+			hibernate.invoke(hibernate.setReadOnly, session, true);
+		}
+		if ( ! markConnection) return;
+		final var connection = unwrapConnection();
+		if (connection == null) return;
+		try {
+			if ( ! connection.isReadOnly()) {
+				connection.setReadOnly(true);
+				connectionMarked = true;
+			}
+		} catch (SQLException e) {
+			log.debug("could not mark JDBC connection read-only", e);
+		}
+	}
+
+
+
+	/**
+	 * Restores read-write mode of the JDBC connection if it was marked read-only. Must be called
+	 * while the {@link EntityManager} still holds the connection, usually from within the
+	 * transaction right before its commit. The connection is obtained again from the
+	 * {@link EntityManager}, so the flag is never restored on a connection that was already
+	 * returned to the pool.
+	 */
+	void restoreConnection() {
+		if ( ! connectionMarked) return;
+		connectionMarked = false;
+		if ( ! entityManager.isOpen()) return;
+		try {
+			final var connection = unwrapConnection();
+			if (connection != null) connection.setReadOnly(false);
+		} catch (SQLException | RuntimeException e) {
+			log.error("could not restore read-write mode of a JDBC connection", e);
+		}
+	}
+
+
+
+	/**
+	 * Reverts all the changes made by {@link #enter(EntityManager, boolean)}. If the connection
+	 * was not restored yet (for example because the transaction could not be started), calls
+	 * {@link #restoreConnection()} first.
+	 */
+	void exit() {
+		restoreConnection();
+		if ( ! entityManager.isOpen()) return;
+		if (hibernate != null && previousHibernateFlushMode != null) {
+			hibernate.invoke(hibernate.setReadOnly, session, previousDefaultReadOnly);
+			hibernate.invoke(hibernate.setFlushMode, session, previousHibernateFlushMode);
+		} else {
+			entityManager.setFlushMode(previousFlushMode);
+		}
+	}
+
+
+
+	Connection unwrapConnection() {
+		try {
+			return entityManager.unwrap(Connection.class);
+		} catch (PersistenceException e) {
+			// not supported by this provider
+		}
+		if (hibernate == null || hibernate.doReturningWork == null) return null;
+		final var workInterface = hibernate.doReturningWork.getParameterTypes()[0];
+		final var work = Proxy.newProxyInstance(
+			workInterface.getClassLoader(),
+			new Class<?>[] {workInterface},
+			(proxy, method, args) -> method.getName().equals("execute") ? args[0] : null
+		);
+		return (Connection) hibernate.invoke(hibernate.doReturningWork, session, work);
+	}
+
+
+
+	/**
+	 * Reflective handles to methods of Hibernate {@code Session}. Obtained once per session class
+	 * via {@link #HIBERNATE_METHODS}.
+	 */
+	static class HibernateMethods {
+
+		final Method getFlushMode;
+		final Method setFlushMode;
+		final Object manualFlushMode;
+		final Method isReadOnly;
+		final Method setReadOnly;
+		final Method doReturningWork;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		HibernateMethods(Class<?> sessionClass) throws ReflectiveOperationException {
+			getFlushMode = sessionClass.getMethod("getHibernateFlushMode");
+			final var flushModeClass = getFlushMode.getReturnType();
+			setFlushMode = sessionClass.getMethod("setHibernateFlushMode", flushModeClass);
+			manualFlushMode = Enum.valueOf((Class<? extends Enum>) flushModeClass, "MANUAL");
+			isReadOnly = sessionClass.getMethod("isDefaultReadOnly");
+			setReadOnly = sessionClass.getMethod("setDefaultReadOnly", boolean.class);
+			Method doReturningWork = null;
+			for (var method: sessionClass.getMethods()) {
+				if (
+					method.getName().equals("doReturningWork")
+					&& method.getParameterCount() == 1
+					&& method.getParameterTypes()[0].isInterface()
+				) {
+					doReturningWork = method;
+					break;
+				}
+			}
+			this.doReturningWork = doReturningWork;
+		}
+
+		Object invoke(Method method, Object session, Object... args) {
+			try {
+				return method.invoke(session, args);
+			} catch (ReflectiveOperationException e) {
+				final var cause = e.getCause();
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				throw new PersistenceException(cause != null ? cause : e);
+			}
+		}
+	}
+
+
+
+	/** {@code null} values indicate that a given class is not a Hibernate session. */
+	static final ClassValue<HibernateMethods> HIBERNATE_METHODS = new ClassValue<>() {
+
+		@Override
+		protected HibernateMethods computeValue(Class<?> delegateClass) {
+			try {
+				return new HibernateMethods(delegateClass);
+			} catch (ReflectiveOperationException | IllegalArgumentException e) {
+				return null;
+			}
+		}
+	};
+
+
+
+	static final Logger log = LoggerFactory.getLogger(ReadOnlySession.class.getName());
+}
@@ -0,0 +1,194 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+import javax.servlet.http.HttpSession;
+
+import pl.morgwai.base.servlet.scopes.ContextTrackingExecutor;
+
+
+
+/**
+ * Routes read-only operations of a primary persistence unit to its read replicas.
+ * <p>
+ * Each operation is routed to the replica with the least number of outstanding (queued and
+ * executing) operations. After a write transaction is committed within an
+ * {@link HttpSession}, read-only operations of that session are routed to the primary unit for
+ * {@code readYourWritesMillis}, so that users see their own writes despite replication lag.
+ * Operations can also be explicitly forced to the primary unit using
+ * {@link #executeOnPrimary(Callable)}.</p>
+ * <p>
+ * {@link JpaServlet#executeReadOnly(Callable)} and {@link JpaServlet#supplyReadOnly(Callable)}
+ * use the router automatically if it's bound for their persistence unit (see
+ * {@link JpaServletContextListener#getMainReadReplicaPersistenceUnitNames()}), while
+ * {@link JpaServlet#executeWithinTx(Callable)} records writes.</p>
+ * <p>
+ * Instances are thread-safe.</p>
+ */
+public class ReadReplicaRouter {
+
+
+
+	/** Read replica persistence unit together with its executor. */
+	public static class Replica {
+
+		final String persistenceUnitName;
+		public String getPersistenceUnitName() { return persistenceUnitName; }
+
+		final EntityManagerFactory entityManagerFactory;
+		public EntityManagerFactory getEntityManagerFactory() { return entityManagerFactory; }
+
+		final ContextTrackingExecutor jpaExecutor;
+		public ContextTrackingExecutor getJpaExecutor() { return jpaExecutor; }
+
+		final AtomicInteger outstanding = new AtomicInteger(0);
+		/** Returns the number of operations currently queued or executing on this replica. */
+		public int getOutstandingCount() { return outstanding.get(); }
+
+		public Replica(
+			String persistenceUnitName,
+			EntityManagerFactory entityManagerFactory,
+			ContextTrackingExecutor jpaExecutor
+		) {
+			this.persistenceUnitName = persistenceUnitName;
+			this.entityManagerFactory = entityManagerFactory;
+			this.jpaExecutor = jpaExecutor;
+		}
+	}
+
+
+
+	final List<Replica> replicas;
+	public List<Replica> getReplicas() { return replicas; }
+
+	final long readYourWritesMillis;
+	public long getReadYourWritesMillis() { return readYourWritesMillis; }
+
+	final AtomicInteger nextStartIndex = new AtomicInteger(0);
+	final ThreadLocal<Boolean> primaryForced = new ThreadLocal<>();
+
+
+
+	/**
+	 * @param readYourWritesMillis for how long after a write within a given {@link HttpSession}
+	 *     read-only operations of the session are routed to the primary unit.
+	 */
+	public ReadReplicaRouter(List<Replica> replicas, long readYourWritesMillis) {
+		if (replicas.isEmpty()) throw new IllegalArgumentException("no replicas");
+		this.replicas = List.copyOf(replicas);
+		this.readYourWritesMillis = readYourWritesMillis;
+	}
+
+
+
+	/**
+	 * Whether a read-only operation executed now by the current thread within
+	 * <code>session</code> (may be {@code null}) should be routed to a replica.
+	 */
+	public boolean shouldRouteToReplica(HttpSession session) {
+		if (primaryForced.get() != null) return false;
+		return ! hasRecentWrite(session);
+	}
+
+	/**
+	 * Whether <code>session</code> (may be {@code null}) committed a write within the last
+	 * {@code readYourWritesMillis}.
+	 */
+	public boolean hasRecentWrite(HttpSession session) {
+		if (session == null || readYourWritesMillis <= 0l) return false;
+		try {
+			final var lastWriteMillis = (Long) session.getAttribute(LAST_WRITE_ATTRIBUTE);
+			return lastWriteMillis != null
+					&& System.currentTimeMillis() - lastWriteMillis <= readYourWritesMillis;
+		} catch (IllegalStateException e) {
+			return false;  // session invalidated
+		}
+	}
+
+	/**
+	 * Records a write committed within <code>session</code>. Does nothing if
+	 * <code>session</code> is {@code null}.
+	 */
+	public void recordWrite(HttpSession session) {
+		if (session == null || readYourWritesMillis <= 0l) return;
+		try {
+			session.setAttribute(LAST_WRITE_ATTRIBUTE, System.currentTimeMillis());
+		} catch (IllegalStateException ignored) {}  // session invalidated
+	}
+
+	/** {@link HttpSession} attribute storing the time of the last write of the session. */
+	public static final String LAST_WRITE_ATTRIBUTE =
+			ReadReplicaRouter.class.getName() + ".lastWriteMillis";
+
+
+
+	/**
+	 * Executes <code>operation</code> with all read-only operations executed by the current
+	 * thread routed to the primary unit.
+	 */
+	public <T> T executeOnPrimary(Callable<T> operation) throws Exception {
+		if (primaryForced.get() != null) return operation.call();
+		primaryForced.set(Boolean.TRUE);
+		try {
+			return operation.call();
+		} finally {
+			primaryForced.remove();
+		}
+	}
+
+
+
+	/**
+	 * Chooses the replica with the least outstanding operations and increments its outstanding
+	 * count. Ties are resolved in a round-robin fashion. Each call must be followed by a call to
+	 * {@link #releaseReplica(Replica)} when the operation is finished.
+	 */
+	public Replica acquireReplica() {
+		final var size = replicas.size();
+		final var startIndex = Math.floorMod(nextStartIndex.getAndIncrement(), size);
+		Replica chosen = null;
+		int chosenOutstanding = Integer.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			final var replica = replicas.get((startIndex + i) % size);
+			final var outstanding = replica.outstanding.get();
+			if (outstanding < chosenOutstanding) {
+				chosen = replica;
+				chosenOutstanding = outstanding;
+			}
+		}
+		chosen.outstanding.incrementAndGet();
+		return chosen;
+	}
+
+	/** Decrements the outstanding count of <code>replica</code>. */
+	public void releaseReplica(Replica replica) {
+		replica.outstanding.decrementAndGet();
+	}
+
+
+
+	/**
+	 * Executes <code>operation</code> with <code>entityManager</code> routed to a new
+	 * {@link javax.persistence.EntityManager} of <code>replica</code>, which is closed afterwards.
+	 * Does not modify outstanding counts.
+	 */
+	public <T> T executeOnReplica(
+		ReplicaRoutingEntityManager entityManager,
+		Replica replica,
+		Callable<T> operation
+	) throws Exception {
+		if (entityManager.isRoutedToReplica()) return operation.call();
+		final var replicaEntityManager = replica.entityManagerFactory.createEntityManager();
+		entityManager.routeTo(replicaEntityManager);
+		try {
+			return operation.call();
+		} finally {
+			entityManager.routeTo(null);
+			replicaEntityManager.close();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.metamodel.Metamodel;
+
+
+
+/**
+ * Request-scoped {@link EntityManager} of a primary persistence unit that has read replicas. By
+ * default it behaves as a {@link LazyEntityManager} of the primary unit, but while
+ * {@link ReadReplicaRouter#executeOnReplica(ReplicaRoutingEntityManager,
+ * ReadReplicaRouter.Replica, java.util.concurrent.Callable)} is in progress, all calls are
+ * delegated to an {@link EntityManager} of the chosen replica. This way DAOs that obtain
+ * {@link EntityManager}s from an injected {@link javax.inject.Provider} are routed to replicas
+ * without any changes.
+ * <p>
+ * Bound by {@link JpaServletContextListener} instead of regular {@link EntityManager}s of
+ * the main persistence unit if
+ * {@link JpaServletContextListener#getMainReadReplicaPersistenceUnitNames() read replicas are
+ * configured}.</p>
+ */
+public class ReplicaRoutingEntityManager extends LazyEntityManager {
+
+
+
+	EntityManager replicaEntityManager;
+
+
+
+	public ReplicaRoutingEntityManager(EntityManagerFactory primaryEntityManagerFactory) {
+		super(primaryEntityManagerFactory);
+	}
+
+
+
+	/** Whether calls are currently delegated to a replica. */
+	public boolean isRoutedToReplica() { return replicaEntityManager != null; }
+
+	void routeTo(EntityManager replicaEntityManager) {
+		this.replicaEntityManager = replicaEntityManager;
+	}
+
+
+
+	/**
+	 * Returns the {@link EntityManager} of the replica if calls are currently routed to one,
+	 * otherwise the one of the primary unit (creating it if needed).
+	 */
+	@Override
+	public EntityManager getEntityManager() {
+		if (replicaEntityManager != null) return replicaEntityManager;
+		return super.getEntityManager();
+	}
+
+	@Override
+	public EntityManagerFactory getEntityManagerFactory() {
+		if (replicaEntityManager != null) return replicaEntityManager.getEntityManagerFactory();
+		return super.getEntityManagerFactory();
+	}
+
+	@Override
+	public CriteriaBuilder getCriteriaBuilder() {
+		if (replicaEntityManager != null) return replicaEntityManager.getCriteriaBuilder();
+		return super.getCriteriaBuilder();
+	}
+
+	@Override
+	public Metamodel getMetamodel() {
+		if (replicaEntityManager != null) return replicaEntityManager.getMetamodel();
+		return super.getMetamodel();
+	}
+}
@@ -0,0 +1,142 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+
+
+/**
+ * Helpers for processing large query results in constant memory. Instead of loading a whole result
+ * list with {@link TypedQuery#getResultList()}, results are pulled one by one from
+ * {@link TypedQuery#getResultStream()} (backed by a forward-only JDBC cursor in Hibernate) and
+ * the persistence context is {@link EntityManager#clear() cleared} after each batch, so that
+ * already processed entities can be garbage collected.
+ * <p>
+ * <b>NOTE:</b> clearing discards all pending changes of the persistence context, so streaming
+ * should be performed in read-only units of work (see
+ * {@link JpaServlet#executeReadOnly(java.util.concurrent.Callable)}). Some JDBC drivers
+ * (PostgreSQL for example) use cursor-based fetching only within a transaction, while others
+ * (MySQL for example) require a driver specific fetch size value to avoid loading all rows into
+ * memory.</p>
+ */
+public class ResultStreamer {
+
+
+
+	/** Hibernate query hint for JDBC fetch size. */
+	public static final String HIBERNATE_FETCH_SIZE_HINT = "org.hibernate.fetchSize";
+
+	/** EclipseLink query hint for JDBC fetch size. */
+	public static final String ECLIPSELINK_FETCH_SIZE_HINT = "eclipselink.jdbc.fetch-size";
+
+
+
+	/**
+	 * Sets JDBC fetch size hints of the major JPA providers on <code>query</code>. Providers
+	 * ignore hints they don't recognize.
+	 * @return <code>query</code>.
+	 */
+	public static <T> TypedQuery<T> setFetchSize(TypedQuery<T> query, int fetchSize) {
+		query.setHint(HIBERNATE_FETCH_SIZE_HINT, fetchSize);
+		query.setHint(ECLIPSELINK_FETCH_SIZE_HINT, String.valueOf(fetchSize));
+		return query;
+	}
+
+
+
+	/** Processes a single streamed result. */
+	@FunctionalInterface
+	public interface ResultConsumer<T> {
+		void accept(T result) throws Exception;
+	}
+
+	/** Called after each batch of results, before the persistence context is cleared. */
+	@FunctionalInterface
+	public interface BatchEndListener {
+		void onBatchEnd() throws Exception;
+	}
+
+
+
+	/**
+	 * Passes results of <code>query</code> one by one to <code>consumer</code> clearing
+	 * <code>entityManager</code> after each <code>batchSize</code> results.
+	 * <code>batchEndListener</code> is called after each batch (including the last incomplete
+	 * one) before clearing.
+	 * @return number of processed results.
+	 */
+	public static <T> long forEach(
+		TypedQuery<T> query,
+		EntityManager entityManager,
+		int batchSize,
+		ResultConsumer<? super T> consumer,
+		BatchEndListener batchEndListener
+	) throws Exception {
+		if (batchSize < 1) throw new IllegalArgumentException("batchSize must be at least 1");
+		long count = 0l;
+		try (Stream<T> results = query.getResultStream()) {
+			final var iterator = results.iterator();
+			while (iterator.hasNext()) {
+				consumer.accept(iterator.next());
+				count++;
+				if (count % batchSize == 0l) {
+					batchEndListener.onBatchEnd();
+					entityManager.clear();
+				}
+			}
+		}
+		if (count % batchSize != 0l) batchEndListener.onBatchEnd();
+		return count;
+	}
+
+
+
+	/** Writes a single streamed result. */
+	@FunctionalInterface
+	public interface RowWriter<T> {
+		void write(T result, PrintWriter writer) throws IOException;
+	}
+
+
+
+	/**
+	 * Streams results of <code>query</code> to <code>writer</code> (usually obtained from
+	 * {@link javax.servlet.http.HttpServletResponse#getWriter()}) as they arrive from the DB.
+	 * Sets fetch size of <code>query</code> to <code>fetchSize</code> and after each
+	 * <code>fetchSize</code> results flushes <code>writer</code> and clears
+	 * <code>entityManager</code>, so that memory usage does not depend on the number of results.
+	 * <p>
+	 * If writing fails (for example because the client disconnected), the streaming is aborted
+	 * with an {@link IOException}, so that no more rows are fetched from the DB.</p>
+	 * @return number of streamed results.
+	 */
+	public static <T> long streamResults(
+		TypedQuery<T> query,
+		EntityManager entityManager,
+		int fetchSize,
+		PrintWriter writer,
+		RowWriter<? super T> rowWriter
+	) throws IOException {
+		try {
+			return forEach(
+				setFetchSize(query, fetchSize),
+				entityManager,
+				fetchSize,
+				(result) -> rowWriter.write(result, writer),
+				() -> {
+					writer.flush();
+					if (writer.checkError()) throw new IOException("writing results failed");
+				}
+			);
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);  // not possible
+		}
+	}
+}
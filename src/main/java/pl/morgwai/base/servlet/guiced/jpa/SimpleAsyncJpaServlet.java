@@ -2,6 +2,14 @@
 package pl.morgwai.base.servlet.guiced.jpa;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
@@ -32,47 +40,370 @@ public abstract class SimpleAsyncJpaServlet extends JpaServlet {
 
 	/**
 	 * Dispatches request handling to {@link JpaServlet#jpaExecutor}.
-	 * Closes the obtained {@link javax.persistence.EntityManager} at the end. By default also calls
-	 * {@link AsyncContext#complete()}: if a subclass wants to dispatch processing back to the
-	 * container via {@link AsyncContext#dispatch(String)} or to another executor, then
+	 * If {@link #jpaExecutor} is adaptively sized, reports queue wait and run time of the dispatched
+	 * task to {@link #jpaExecutorSizer}. Reports queue wait and {@code EntityManager} lifetime to
+	 * {@link #jpaMetricsRecorder}.
+	 * Closes the obtained {@link javax.persistence.EntityManager} at the end (a
+	 * {@link LazyEntityManager} that was never used is not created just to be closed). By default
+	 * also calls {@link AsyncContext#complete()}: if a subclass wants to dispatch processing back
+	 * to the container via {@link AsyncContext#dispatch(String)} or to another executor, then
 	 * {@link #shouldCallAsyncContextComplete(HttpServletRequest)} should be overridden to return
 	 * {@code false}.
 	 * <p>
+	 * If {@link #shouldWriteResponseNonBlocking(HttpServletRequest)} returns {@code true}, the
+	 * {@code doXXX} method receives a {@link BufferingHttpServletResponse} and the buffered body is
+	 * written to the client using {@link javax.servlet.WriteListener non-blocking IO} only after
+	 * the {@code EntityManager} has been closed.</p>
+	 * <p>
 	 * If the invoked {@code doXXX} method throws an exception, then, unless it's an
 	 * {@link IOException} (indicating broken connection), it's logged at level {@code ERROR} and an
 	 * attempt to send {@link HttpServletResponse#SC_INTERNAL_SERVER_ERROR} is made.<br/>
 	 * {@link IOException}s are logged at level {@code DEBUG}.<br/>
 	 * {@link Error}s are additionally re-thrown after being logged.</p>
+	 * <p>
+	 * If there are already {@link #getMaxQueuedRequests()} requests of this servlet awaiting in
+	 * {@link #jpaExecutor}'s queue or {@link #jpaExecutor} rejects the task, or if the request was
+	 * awaiting in the queue for longer than {@link #getMaxQueueWaitMillis()}, then the request is
+	 * shed using {@link #sendOverloaded(HttpServletResponse)}.</p>
+	 * <p>
+	 * If the persistence unit is still being
+	 * {@link JpaServletContextListener#shouldBootstrapPersistenceUnitsInBackground() bootstrapped
+	 * in the background} and {@link #shouldRejectRequestsUntilPersistenceUnitReady()} returns
+	 * {@code true} or if its bootstrap failed, the request is rejected using
+	 * {@link #sendOverloaded(HttpServletResponse)}.</p>
+	 * <p>
+	 * Before any of the above, {@link #serviceFromCache(HttpServletRequest, HttpServletResponse)}
+	 * is called on the container thread and if it returns {@code true}, the request is not
+	 * dispatched at all (it may still be served asynchronously using
+	 * {@link #serviceCoalesced serviceCoalesced(...)}, which applies the same queue bound and
+	 * deadline).</p>
 	 */
 	@Override
 	protected void service(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
+		if (serviceFromCache(request, response)) return;
+		if (shouldRejectAsNotReady()) {
+			rejectedUntilReady.increment();
+			sendOverloaded(response);
+			return;
+		}
+		if (queuedRequests.incrementAndGet() > getMaxQueuedRequests()) {
+			queuedRequests.decrementAndGet();
+			shedByQueueBound.increment();
+			sendOverloaded(response);
+			return;
+		}
 		final var asyncCtx = startAsync(request, response);
 		final var timeout = getAsyncContextTimeout();
 		if (timeout >= 0l) asyncCtx.setTimeout(timeout);
 		final var asyncRequest = new AsyncHttpServletRequest(request);
-		jpaExecutor.execute(response, () -> {
+		final var bufferingResponse =
+				shouldWriteResponseNonBlocking(request) && shouldCallAsyncContextComplete(request)
+						? new BufferingHttpServletResponse(response) : null;
+		final var processingResponse = bufferingResponse != null ? bufferingResponse : response;
+		final var sizer = jpaExecutorSizer;
+		final var metricsRecorder = jpaMetricsRecorder;
+		final var maxQueueWaitMillis = getMaxQueueWaitMillis();
+		final var dispatchNanos = System.nanoTime();
+		try {
+			jpaExecutor.execute(() -> {
+				queuedRequests.decrementAndGet();
+				final var startNanos = System.nanoTime();
+				if (sizer != null) sizer.startTask(startNanos - dispatchNanos);
+				metricsRecorder.recordQueueWait(startNanos - dispatchNanos);
+				if (
+					maxQueueWaitMillis >= 0l
+					&& startNanos - dispatchNanos > maxQueueWaitMillis * 1_000_000l
+				) {
+					shedByDeadline.increment();
+					try {
+						sendOverloaded(response);
+					} catch (IOException ignored) {
+					} catch (RuntimeException e) {
+						log.error("", e);
+					} finally {
+						asyncCtx.complete();
+					}
+					return;
+				}
+				try {
+					super.service(asyncRequest, processingResponse);
+				} catch (Throwable e) {
+					if (e instanceof IOException) {
+						log.debug("probably just a broken connection", e);
+					} else {
+						log.error("", e);
+					}
+					if ( ! response.isCommitted()) {
+						try {
+							response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+						} catch (IOException ignored) {}  // not even worth log.finest()  ;]
+					}
+					if (e instanceof Error) throw (Error) e;
+				} finally {
+					closeEntityManager(metricsRecorder, startNanos);
+					if (bufferingResponse != null) {
+						try {
+							bufferingResponse.writeNonBlocking(asyncCtx);
+						} catch (Throwable e) {
+							log.debug("probably just a broken connection", e);
+							asyncCtx.complete();
+						}
+					} else if (shouldCallAsyncContextComplete(request)) {
+						asyncCtx.complete();
+					}
+					if (sizer != null) sizer.finishTask(System.nanoTime() - startNanos);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			queuedRequests.decrementAndGet();
+			shedByQueueBound.increment();
+			try {
+				sendOverloaded(response);
+			} finally {
+				asyncCtx.complete();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Allows subclasses to handle <code>request</code> directly on the container thread, without
+	 * taking a {@link #jpaExecutor} slot nor a JDBC connection, if it can be served entirely from
+	 * {@link #queryResultCache} (or any other in-memory source). Must not perform any JPA
+	 * operations nor other blocking calls except writing the response. By default returns
+	 * {@code false}.
+	 * @return {@code true} if the response was written and the request should not be dispatched
+	 *     to {@link #jpaExecutor}.
+	 */
+	protected boolean serviceFromCache(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		return false;
+	}
+
+
+
+	/** Writes a result obtained by {@link #serviceCoalesced serviceCoalesced(...)}. */
+	@FunctionalInterface
+	public interface ResponseWriter<T> {
+		void write(T result, HttpServletResponse response) throws IOException;
+	}
+
+	/**
+	 * Serves <code>request</code> asynchronously with the result of
+	 * <code>readOnlyOperation</code> coalesced with concurrent identical reads using
+	 * {@link #singleFlight}: only the first request for a given <code>queryName</code> and
+	 * <code>params</code> dispatches the operation using {@link #supplyReadOnly(Callable)}, while
+	 * the others await for its result without taking {@link #jpaExecutor} slots nor JDBC
+	 * connections. Once the result is available, each response is written by
+	 * <code>responseWriter</code> on a container thread (see {@link AsyncContext#start(Runnable)}),
+	 * so that slow clients do not hold {@link #jpaExecutor} threads.
+	 * <p>
+	 * Intended to be called from
+	 * {@link #serviceFromCache(HttpServletRequest, HttpServletResponse)} (on the container thread)
+	 * for hot reads, typically after a {@link #queryResultCache} miss. Always returns
+	 * {@code true}. <code>readOnlyOperation</code> must return a result that is safe to share
+	 * between requests (see {@link SingleFlight}). If {@link #singleFlight} is not bound, each
+	 * request dispatches its own operation.</p>
+	 * <p>
+	 * Dispatched operations are subject to the same {@link #getMaxQueuedRequests()} bound and
+	 * {@link #getMaxQueueWaitMillis()} deadline as requests dispatched by
+	 * {@link #service(HttpServletRequest, HttpServletResponse)} (only the dispatching request of a
+	 * flight takes a queue slot) and while the queue is full, all requests (including the ones
+	 * that would join a flight) are shed. Requests exceeding these limits, as well as rejections by
+	 * {@link #jpaExecutor}, are sent using {@link #sendOverloaded(HttpServletResponse)}, other
+	 * failures are logged and sent as {@link HttpServletResponse#SC_INTERNAL_SERVER_ERROR}.</p>
+	 * <p>
+	 * Requests of sessions that committed a write recently (see
+	 * {@link ReadReplicaRouter#hasRecentWrite(javax.servlet.http.HttpSession)}) are not coalesced,
+	 * so that they never receive a result of a flight that started before their commit.</p>
+	 */
+	protected <T> boolean serviceCoalesced(
+		HttpServletRequest request,
+		HttpServletResponse response,
+		Callable<T> readOnlyOperation,
+		ResponseWriter<T> responseWriter,
+		String queryName,
+		Object... params
+	) throws IOException {
+		if (shouldRejectAsNotReady()) {
+			rejectedUntilReady.increment();
+			sendOverloaded(response);
+			return true;
+		}
+		final var maxQueuedRequests = getMaxQueuedRequests();
+		if (queuedRequests.get() >= maxQueuedRequests) {
+			shedByQueueBound.increment();
+			sendOverloaded(response);
+			return true;
+		}
+		final var asyncCtx = startAsync(request, response);
+		final var timeout = getAsyncContextTimeout();
+		if (timeout >= 0l) asyncCtx.setTimeout(timeout);
+		final Supplier<CompletableFuture<T>> execution =
+				() -> supplyQueuedReadOnly(readOnlyOperation, maxQueuedRequests);
+		final var flight = singleFlight;
+		final var router = readReplicaRouter;
+		final var bypassFlight =
+				router != null && router.hasRecentWrite(request.getSession(false));
+		final var result = flight == null || bypassFlight
+				? execution.get()
+				: flight.execute(execution, queryName, params);
+		result.whenComplete((value, error) -> asyncCtx.start(() -> {
 			try {
-				super.service(asyncRequest, response);
-			} catch (Throwable e) {
-				if (e instanceof IOException) {
-					log.debug("probably just a broken connection", e);
+				if (error == null) {
+					responseWriter.write(value, response);
 				} else {
-					log.error("", e);
-				}
-				if ( ! response.isCommitted()) {
-					try {
-						response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-					} catch (IOException ignored) {}  // not even worth log.finest()  ;]
+					final var cause = error instanceof CompletionException
+							&& error.getCause() != null ? error.getCause() : error;
+					if (cause instanceof QueueWaitDeadlineExceededException) {
+						shedByDeadline.increment();
+						sendOverloaded(response);
+					} else if (cause instanceof RejectedExecutionException) {
+						shedByQueueBound.increment();
+						sendOverloaded(response);
+					} else {
+						log.error("", cause);
+						if ( ! response.isCommitted()) {
+							response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+						}
+					}
 				}
-				if (e instanceof Error) throw (Error) e;
+			} catch (IOException e) {
+				log.debug("probably just a broken connection", e);
+			} catch (RuntimeException e) {
+				log.error("", e);
 			} finally {
-				entityManagerProvider.get().close();
-				if (shouldCallAsyncContextComplete(request)) asyncCtx.complete();
+				asyncCtx.complete();
+			}
+		}));
+		return true;
+	}
+
+	/**
+	 * Dispatches <code>operation</code> using {@link #supplyReadOnly(Callable)} applying
+	 * {@link #getMaxQueuedRequests()} bound and {@link #getMaxQueueWaitMillis()} deadline.
+	 */
+	<T> CompletableFuture<T> supplyQueuedReadOnly(Callable<T> operation, int maxQueuedRequests) {
+		if (queuedRequests.incrementAndGet() > maxQueuedRequests) {
+			queuedRequests.decrementAndGet();
+			return CompletableFuture.failedFuture(new RejectedExecutionException("queue full"));
+		}
+		final var dequeued = new AtomicBoolean(false);
+		final Runnable dequeue = () -> {
+			if (dequeued.compareAndSet(false, true)) queuedRequests.decrementAndGet();
+		};
+		final var maxQueueWaitMillis = getMaxQueueWaitMillis();
+		final var dispatchNanos = System.nanoTime();
+		final CompletableFuture<T> result = supplyReadOnly(operation, () -> {
+			dequeue.run();
+			if (
+				maxQueueWaitMillis >= 0l
+				&& System.nanoTime() - dispatchNanos > maxQueueWaitMillis * 1_000_000l
+			) {
+				throw new QueueWaitDeadlineExceededException();
 			}
 		});
+		result.whenComplete((value, error) -> dequeue.run());  // rejected by the executor
+		return result;
+	}
+
+	/** Signals that a dispatched operation was awaiting in the queue for too long. */
+	@SuppressWarnings("serial")
+	static class QueueWaitDeadlineExceededException extends RejectedExecutionException {}
+
+
+
+	/**
+	 * Returns the maximum number of requests of this servlet that may be awaiting in
+	 * {@link #jpaExecutor}'s queue. Subsequent requests will be shed using
+	 * {@link #sendOverloaded(HttpServletResponse)} without being queued. By default
+	 * {@link Integer#MAX_VALUE} (meaning no bound).
+	 * <p>
+	 * Bounding the queue prevents latency from growing for everyone when the DB slows down: excess
+	 * requests get a quick response and may be retried by clients (or routed to other nodes by a
+	 * load-balancer) instead of piling up.</p>
+	 */
+	protected int getMaxQueuedRequests() { return Integer.MAX_VALUE; }
+
+	/**
+	 * Returns the maximum time a request of this servlet may be awaiting in {@link #jpaExecutor}'s
+	 * queue. Requests that waited longer are shed using {@link #sendOverloaded(HttpServletResponse)}
+	 * without being processed, as their clients have likely already given up. Negative number
+	 * indicates no deadline. By default {@code -1}.
+	 */
+	protected long getMaxQueueWaitMillis() { return -1l; }
+
+	/**
+	 * Whether requests should be rejected using {@link #sendOverloaded(HttpServletResponse)} while
+	 * the persistence unit is being
+	 * {@link JpaServletContextListener#shouldBootstrapPersistenceUnitsInBackground() bootstrapped
+	 * in the background}. By default {@code true}, so that during rolling restarts clients (or
+	 * load-balancers) retry on nodes that are ready. If {@code false}, requests are dispatched to
+	 * {@link #jpaExecutor} as usual and block on their first use of an {@code EntityManager} until
+	 * the persistence unit is ready.
+	 * <p>
+	 * If the bootstrap {@link #isPersistenceUnitFailed() failed}, requests are rejected regardless
+	 * of this setting until the webapp is redeployed, so that clients (or load-balancers) keep
+	 * retrying on healthy nodes instead of receiving
+	 * {@link HttpServletResponse#SC_INTERNAL_SERVER_ERROR}s.</p>
+	 */
+	protected boolean shouldRejectRequestsUntilPersistenceUnitReady() { return true; }
+
+	/**
+	 * Whether the request should be rejected because the persistence unit is not ready: either
+	 * it's still being bootstrapped and {@link #shouldRejectRequestsUntilPersistenceUnitReady()}
+	 * returns {@code true} or its bootstrap {@link #isPersistenceUnitFailed() failed}.
+	 */
+	boolean shouldRejectAsNotReady() {
+		if (isPersistenceUnitReady()) return false;
+		return isPersistenceUnitFailed() || shouldRejectRequestsUntilPersistenceUnitReady();
 	}
 
+	/**
+	 * Returns the value of {@code Retry-After} header sent with shed requests. By default
+	 * {@code 1}.
+	 */
+	protected int getRetryAfterSeconds() { return 1; }
+
+	/**
+	 * Sends {@link HttpServletResponse#SC_SERVICE_UNAVAILABLE} with {@code Retry-After} header set
+	 * to {@link #getRetryAfterSeconds()}. Called for requests that are shed by {@link
+	 * #service(HttpServletRequest, HttpServletResponse)}. May be overridden to customize the
+	 * response.
+	 */
+	protected void sendOverloaded(HttpServletResponse response) throws IOException {
+		if (response.isCommitted()) return;
+		response.setHeader("Retry-After", String.valueOf(getRetryAfterSeconds()));
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+	}
+
+	final AtomicInteger queuedRequests = new AtomicInteger(0);
+	final LongAdder shedByQueueBound = new LongAdder();
+	final LongAdder shedByDeadline = new LongAdder();
+	final LongAdder rejectedUntilReady = new LongAdder();
+
+	/** Returns the number of requests of this servlet currently awaiting in the queue. */
+	public int getQueuedRequestCount() { return queuedRequests.get(); }
+
+	/**
+	 * Returns the number of requests shed because of {@link #getMaxQueuedRequests()} bound or
+	 * {@link #jpaExecutor} rejection.
+	 */
+	public long getShedByQueueBoundCount() { return shedByQueueBound.sum(); }
+
+	/** Returns the number of requests shed because of {@link #getMaxQueueWaitMillis()} deadline. */
+	public long getShedByDeadlineCount() { return shedByDeadline.sum(); }
+
+	/**
+	 * Returns the number of requests rejected because the persistence unit was not ready (see
+	 * {@link #shouldRejectRequestsUntilPersistenceUnitReady()}).
+	 */
+	public long getRejectedUntilReadyCount() { return rejectedUntilReady.sum(); }
+
+
+
 	/**
 	 * Returns timeout for {@link AsyncContext#setTimeout(long)}; Negative number indicates that
 	 * {@link AsyncContext#setTimeout(long)} should not be called in which case container default
@@ -93,9 +424,38 @@ public abstract class SimpleAsyncJpaServlet extends JpaServlet {
 	 * Whether {@link AsyncContext#complete()} should be called automatically at the end of request
 	 * processing. By default {@code true}. Should be overridden if processing is dispatched back to
 	 * the container via {@link AsyncContext#dispatch(String)} or to another executor,
+	 * <p>
+	 * Called on the {@link #jpaExecutor} thread after the {@code doXXX} method returns, so the
+	 * decision may depend on the outcome of the processing, unless
+	 * {@link #shouldWriteResponseNonBlocking(HttpServletRequest)} returns {@code true}: in such
+	 * case it's called once on the container thread before the request is dispatched (to decide
+	 * whether the response can be buffered) and the result is used at the end of the
+	 * processing.</p>
 	 */
 	protected boolean shouldCallAsyncContextComplete(HttpServletRequest request) { return true; }
 
+	/**
+	 * Whether the response to <code>request</code> should be buffered in memory while the
+	 * {@code doXXX} method runs on {@link #jpaExecutor} and then written to the client using
+	 * {@link BufferingHttpServletResponse#writeNonBlocking(AsyncContext) non-blocking IO} after the
+	 * {@code EntityManager} has been closed. By default {@code false}.
+	 * <p>
+	 * With this mode a slow client does not hold a {@link #jpaExecutor} thread and its JDBC
+	 * connection for as long as it takes to read the response. The cost is that the whole response
+	 * is kept in memory until it's sent: results streamed with
+	 * {@link ResultStreamer#streamResults(javax.persistence.TypedQuery,
+	 * javax.persistence.EntityManager, int, java.io.PrintWriter, ResultStreamer.RowWriter)} are
+	 * still fetched in constant memory of the persistence context, but accumulate in the buffer, and
+	 * the client receives the first byte only after the DB part is finished. Therefore this mode is
+	 * well suited for small and medium responses, while very large ones should rather be streamed
+	 * directly.</p>
+	 * <p>
+	 * Ignored if {@link #shouldCallAsyncContextComplete(HttpServletRequest)} returns
+	 * {@code false} (evaluated before the dispatch in this mode): as the buffer would never be
+	 * written, the {@code doXXX} method receives the original response in such case.</p>
+	 */
+	protected boolean shouldWriteResponseNonBlocking(HttpServletRequest request) { return false; }
+
 	/**
 	 * Starts {@link AsyncContext}. By default calls {@link HttpServletRequest#startAsync()}. Can be
 	 * overridden if {@link
@@ -0,0 +1,93 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+
+
+/**
+ * Coalesces concurrent identical reads: while an execution of a given query with given parameters
+ * is in flight, subsequent {@link #execute(Supplier, String, Object...) calls} with the same query
+ * name and parameters do not start another one, but receive the result of the one in flight.
+ * Under a thundering herd of identical requests (a page that "went viral") this collapses N
+ * {@link JpaServlet#jpaExecutor} tasks and JDBC connections into 1.
+ * <p>
+ * An execution is removed from the flight right before its result is delivered, so calls made
+ * after that start a new execution and never receive a stale result. Results are shared between
+ * requests and threads, so the same requirements as for {@link QueryResultCache} apply: they
+ * must be immutable and must not require an open persistence context.</p>
+ * <p>
+ * Instances are thread-safe.</p>
+ * @see SimpleAsyncJpaServlet#serviceCoalesced(javax.servlet.http.HttpServletRequest,
+ *     javax.servlet.http.HttpServletResponse, java.util.concurrent.Callable,
+ *     SimpleAsyncJpaServlet.ResponseWriter, String, Object...)
+ */
+public class SingleFlight {
+
+
+
+	final ConcurrentHashMap<List<Object>, CompletableFuture<?>> inFlight =
+			new ConcurrentHashMap<>();
+
+	final LongAdder executionCount = new LongAdder();
+	final LongAdder coalescedCount = new LongAdder();
+
+
+
+	/**
+	 * Returns a future of the in-flight execution of <code>queryName</code> with
+	 * <code>params</code> or, if there's none, starts a new one by calling
+	 * <code>execution</code> (for example
+	 * {@code () -> supplyReadOnly(() -> dao.findAll())}).
+	 * <p>
+	 * Each caller receives a separate copy of the shared future, so cancelling or completing it
+	 * does not affect other callers. Dependent stages executed synchronously run on the thread that
+	 * completed the execution: callers that perform blocking operations (such as writing a
+	 * response) should use async stages or hand the result off to another executor.</p>
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> CompletableFuture<T> execute(
+		Supplier<CompletableFuture<T>> execution,
+		String queryName,
+		Object... params
+	) {
+		final var key = QueryResultCache.toKey(queryName, params);
+		final var shared = new CompletableFuture<T>();
+		final var existing = inFlight.putIfAbsent(key, shared);
+		if (existing != null) {
+			coalescedCount.increment();
+			return ((CompletableFuture<T>) existing).copy();
+		}
+		executionCount.increment();
+		CompletableFuture<T> started;
+		try {
+			started = execution.get();
+		} catch (Throwable e) {
+			started = CompletableFuture.failedFuture(e);
+		}
+		started.whenComplete((result, error) -> {
+			inFlight.remove(key, shared);
+			if (error != null) {
+				shared.completeExceptionally(error);
+			} else {
+				shared.complete(result);
+			}
+		});
+		return shared.copy();
+	}
+
+
+
+	/** Number of executions actually started. */
+	public long getExecutionCount() { return executionCount.sum(); }
+
+	/** Number of calls that received the result of an already in-flight execution. */
+	public long getCoalescedCount() { return coalescedCount.sum(); }
+
+	/** Current number of in-flight executions. */
+	public int getInFlightCount() { return inFlight.size(); }
+}
@@ -0,0 +1,122 @@
+// Copyright (c) Piotr Morgwai Kotarbinski, Licensed under the Apache License, Version 2.0
+package pl.morgwai.base.servlet.guiced.jpa;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+import javax.persistence.LockTimeoutException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PessimisticLockException;
+
+
+
+/**
+ * Determines which transaction failures are transient and how
+ * {@link JpaServlet#executeWithinTxWithRetries(java.util.concurrent.Callable, TxRetryPolicy)}
+ * retries them: how many attempts at most and how long to back off between them.
+ * <p>
+ * Backoff before attempt {@code n+1} is chosen randomly from
+ * {@code [minBackoffMillis, min(maxBackoffMillis, minBackoffMillis * 2^(n-1))]} ("exponential
+ * backoff with jitter"), so that transactions that collided once do not collide again.</p>
+ */
+public class TxRetryPolicy {
+
+
+
+	/**
+	 * 3 attempts, backoff between 10ms and 200ms, {@link #isTransientFailure(Throwable)} as the
+	 * classifier.
+	 */
+	public static final TxRetryPolicy DEFAULT = new TxRetryPolicy(3, 10l, 200l);
+
+
+
+	final int maxAttempts;
+	public int getMaxAttempts() { return maxAttempts; }
+
+	final long minBackoffMillis;
+	public long getMinBackoffMillis() { return minBackoffMillis; }
+
+	final long maxBackoffMillis;
+	public long getMaxBackoffMillis() { return maxBackoffMillis; }
+
+	final Predicate<Throwable> transientFailureClassifier;
+
+
+
+	/**
+	 * @param maxAttempts total number of attempts including the first one.
+	 * @param transientFailureClassifier returns {@code true} for failures that may succeed if the
+	 *     transaction is retried.
+	 */
+	public TxRetryPolicy(
+		int maxAttempts,
+		long minBackoffMillis,
+		long maxBackoffMillis,
+		Predicate<Throwable> transientFailureClassifier
+	) {
+		if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be at least 1");
+		if (minBackoffMillis < 0l || maxBackoffMillis < minBackoffMillis) {
+			throw new IllegalArgumentException(
+					"backoff bounds must satisfy 0 <= minBackoffMillis <= maxBackoffMillis");
+		}
+		this.maxAttempts = maxAttempts;
+		this.minBackoffMillis = minBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.transientFailureClassifier = transientFailureClassifier;
+	}
+
+	/** Uses {@link #isTransientFailure(Throwable)} as the classifier. */
+	public TxRetryPolicy(int maxAttempts, long minBackoffMillis, long maxBackoffMillis) {
+		this(maxAttempts, minBackoffMillis, maxBackoffMillis, TxRetryPolicy::isTransientFailure);
+	}
+
+
+
+	/**
+	 * Whether the failure of attempt number <code>attempt</code> (counting from 1) should be
+	 * retried.
+	 */
+	public boolean shouldRetry(Throwable failure, int attempt) {
+		return attempt < maxAttempts && transientFailureClassifier.test(failure);
+	}
+
+
+
+	/** Returns a randomized backoff to apply after the failure of attempt number {@code attempt}. */
+	public long getBackoffMillis(int attempt) {
+		final var shift = Math.min(attempt - 1, 30);
+		final var upperBound = Math.min(maxBackoffMillis, minBackoffMillis << shift);
+		if (upperBound <= minBackoffMillis) return minBackoffMillis;
+		return ThreadLocalRandom.current().nextLong(minBackoffMillis, upperBound + 1);
+	}
+
+
+
+	/**
+	 * Default classifier: returns {@code true} if <code>failure</code> or any of its causes is
+	 * an {@link OptimisticLockException}, {@link PessimisticLockException},
+	 * {@link LockTimeoutException}, {@link SQLTransientException} or an {@link SQLException} with
+	 * SQL state of class {@code 40} (transaction rollback: serialization failures and deadlocks in
+	 * most DBs).
+	 */
+	public static boolean isTransientFailure(Throwable failure) {
+		for (var cause = failure; cause != null; cause = cause.getCause()) {
+			if (
+				cause instanceof OptimisticLockException
+				|| cause instanceof PessimisticLockException
+				|| cause instanceof LockTimeoutException
+				|| cause instanceof SQLTransientException
+			) {
+				return true;
+			}
+			if (cause instanceof SQLException) {
+				final var sqlState = ((SQLException) cause).getSQLState();
+				if (sqlState != null && sqlState.startsWith("40")) return true;
+			}
+		}
+		return false;
+	}
+}